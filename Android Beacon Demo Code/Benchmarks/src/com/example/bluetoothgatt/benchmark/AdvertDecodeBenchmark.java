@@ -0,0 +1,107 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.AdCursor;
+import com.example.bluetoothgatt.AdRecord;
+import com.example.bluetoothgatt.DecoderRegistry;
+import com.example.bluetoothgatt.SensorReading;
+import com.example.bluetoothgatt.WimotoClimate;
+import com.example.bluetoothgatt.WimotoConversions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AdvertDecodeBenchmark
+ * Per-advert cost of the scan record parsers and the profile decoders.
+ * Run with -prof gc (the default for the jmh task) to see bytes per op.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdvertDecodeBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private byte[][] mMixed;
+    private byte[][] mClimate;
+    private int mIndex;
+
+    private AdCursor mCursor;
+    private SensorReading mReading;
+    private DecoderRegistry mRegistry;
+
+    @Setup
+    public void setUp() {
+        mMixed = ScanRecordCorpus.mixed(CORPUS_SIZE, 42);
+        mClimate = ScanRecordCorpus.climate(CORPUS_SIZE, 42);
+        mCursor = new AdCursor();
+        mReading = new SensorReading();
+        mRegistry = DecoderRegistry.getDefault();
+    }
+
+    private byte[] nextMixed() {
+        mIndex = (mIndex + 1) & (CORPUS_SIZE - 1);
+        return mMixed[mIndex];
+    }
+
+    private byte[] nextClimate() {
+        mIndex = (mIndex + 1) & (CORPUS_SIZE - 1);
+        return mClimate[mIndex];
+    }
+
+    /* Copying parser, one AdRecord and payload array per structure */
+    @Benchmark
+    public List<AdRecord> parseScanRecord() {
+        return AdRecord.parseScanRecord(nextMixed());
+    }
+
+    /* In-place walk over the same records */
+    @Benchmark
+    public void cursorWalk(Blackhole blackhole) {
+        AdCursor cursor = mCursor.reset(nextMixed());
+        while (cursor.next()) {
+            blackhole.consume(cursor.getType());
+            blackhole.consume(cursor.getLength());
+        }
+    }
+
+    /* Full UUID dispatch and decode, as done by the WimotoClimate constructors */
+    @Benchmark
+    public boolean registryDecodeMixed() {
+        return mRegistry.decode(nextMixed(), mReading);
+    }
+
+    @Benchmark
+    public boolean registryDecodeClimate() {
+        return mRegistry.decode(nextClimate(), mReading);
+    }
+
+    /* Decode plus the model object the scan callbacks build for every advert */
+    @Benchmark
+    public WimotoClimate climateConstructor() {
+        return new WimotoClimate(nextClimate(), "00:11:22:33:44:55", "Wimoto_Climate", -60);
+    }
+
+    /* Fixed-offset temperature conversion, formerly WimotoClimate.parseTemp */
+    @Benchmark
+    public float parseTemp() {
+        byte[] record = nextClimate();
+        int raw = ((record[23] & 0xFF) << 8) | (record[24] & 0xFF);
+        return WimotoConversions.toCelsius(raw);
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.BulkDecoder;
+import com.example.bluetoothgatt.LoggerRecord;
+import com.example.bluetoothgatt.LoggerRecordDecoder;
+import com.example.bluetoothgatt.SimulatedLoggerLink;
+import com.example.bluetoothgatt.WimotoConversions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BulkDecodeBenchmark
+ * Logger backfill throughput: the per-record LoggerRecord path against
+ * BulkDecoder on one thread and on every core. Scores are whole dumps per
+ * second; multiply by records to compare sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkDecodeBenchmark {
+
+    /* About a week, and about two years, of one-minute records */
+    @Param({"10080", "1048576"})
+    public int records;
+
+    private byte[] mDump;
+    private int[] mRawTemp;
+    private long[] mTime;
+    private float[] mTemp;
+    private int[] mLux;
+    private float[] mHumidity;
+
+    private LoggerRecordDecoder mDecoder;
+    private BulkDecoder mSerial;
+    private BulkDecoder mParallel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDump = SimulatedLoggerLink.createLogger(records, 2015, 1, 1);
+        mRawTemp = new int[records];
+        for (int i = 0; i < records; i++) {
+            mRawTemp[i] = (i * 31) & 0xFFFF;
+        }
+        mTime = new long[records];
+        mTemp = new float[records];
+        mLux = new int[records];
+        mHumidity = new float[records];
+
+        mDecoder = new LoggerRecordDecoder();
+        mSerial = new BulkDecoder(1);
+        mParallel = new BulkDecoder();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSerial.close();
+        mParallel.close();
+    }
+
+    /* The download path: one reused LoggerRecord per entry, copied out */
+    @Benchmark
+    public float[] loggerRecords() {
+        mDecoder.reset();
+        mDecoder.feed(mDump, 0, mDump.length, new LoggerRecordDecoder.Listener() {
+            @Override
+            public void onRecord(LoggerRecord record) {
+                int i = (int) record.getIndex();
+                mTime[i] = record.getTime();
+                mTemp[i] = record.getTemperature();
+                mLux[i] = record.getLight();
+                mHumidity[i] = record.getHumidity();
+            }
+        });
+        return mTemp;
+    }
+
+    @Benchmark
+    public float[] bulkLoggerSerial() {
+        mSerial.decodeLogger(mDump, 0, records, mTime, mTemp, mLux, mHumidity, 0);
+        return mTemp;
+    }
+
+    @Benchmark
+    public float[] bulkLoggerParallel() {
+        mParallel.decodeLogger(mDump, 0, records, mTime, mTemp, mLux, mHumidity, 0);
+        return mTemp;
+    }
+
+    /* Temperature only, from samples already unpacked */
+    @Benchmark
+    public float[] scalarTemp() {
+        for (int i = 0; i < records; i++) {
+            mTemp[i] = WimotoConversions.toCelsius(mRawTemp[i]);
+        }
+        return mTemp;
+    }
+
+    @Benchmark
+    public float[] bulkTempParallel() {
+        mParallel.convert(mRawTemp, null, null, 0, records, mTemp, null, null, 0);
+        return mTemp;
+    }
+}
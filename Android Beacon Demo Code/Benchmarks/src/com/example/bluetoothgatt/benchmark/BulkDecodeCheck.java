@@ -0,0 +1,173 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.BulkDecoder;
+import com.example.bluetoothgatt.LoggerRecord;
+import com.example.bluetoothgatt.LoggerRecordDecoder;
+import com.example.bluetoothgatt.SimulatedLoggerLink;
+import com.example.bluetoothgatt.WimotoConversions;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * BulkDecodeCheck
+ * Checks that BulkDecoder gives exactly what the scalar path gives:
+ * decodeLogger against LoggerRecord through LoggerRecordDecoder, and
+ * convert against WimotoConversions, element by element and bit for bit.
+ * Runs serial and split across threads, at counts either side of
+ * PARALLEL_THRESHOLD, from non-zero input and output offsets, and checks
+ * nothing outside the output range is written.
+ *
+ * Usage: gradle bulk
+ */
+public class BulkDecodeCheck {
+
+    private static final int THRESHOLD = BulkDecoder.PARALLEL_THRESHOLD;
+    private static final int[] COUNTS = {0, 1, 17, THRESHOLD - 1, THRESHOLD, THRESHOLD + 1,
+            3 * THRESHOLD + 7};
+    /* Input offset in records or samples, plus a byte to misalign the logger data */
+    private static final int OFFSET = 5;
+    private static final int MISALIGN = 3;
+    private static final int OUT_OFFSET = 11;
+    /* Written into outputs beforehand, to catch stray writes */
+    private static final int SENTINEL = 0x7F7F7F7F;
+
+    private static int sFailures;
+
+    public static void main(String[] args) {
+        int max = COUNTS[COUNTS.length - 1];
+        int size = OFFSET + max + OUT_OFFSET;
+        Random random = new Random(42);
+
+        //Logger records with every raw channel random, past the simulator's narrow ranges
+        byte[] logger = new byte[MISALIGN + size * LoggerRecord.SIZE];
+        byte[] image = SimulatedLoggerLink.createLogger(size, 2015, 1, 1);
+        System.arraycopy(image, 0, logger, MISALIGN, image.length);
+        for (int i = 0; i < size; i++) {
+            int o = MISALIGN + i * LoggerRecord.SIZE;
+            for (int b = 8; b < 16; b++) {
+                logger[o + b] = (byte) random.nextInt(256);
+            }
+        }
+
+        //Every 16-bit value first, then random ones
+        int[] rawTemp = new int[size];
+        int[] rawLight = new int[size];
+        int[] rawHumidity = new int[size];
+        for (int i = 0; i < size; i++) {
+            rawTemp[i] = i < 65536 ? i : random.nextInt(65536);
+            rawLight[i] = random.nextInt(65536);
+            rawHumidity[i] = (i * 7) & 0xFFFF;
+        }
+
+        BulkDecoder serial = new BulkDecoder(1);
+        BulkDecoder parallel = new BulkDecoder(4);
+        try {
+            for (int count : COUNTS) {
+                checkLogger("serial", serial, logger, count);
+                checkLogger("parallel", parallel, logger, count);
+                checkConvert("serial", serial, rawTemp, rawLight, rawHumidity, count);
+                checkConvert("parallel", parallel, rawTemp, rawLight, rawHumidity, count);
+            }
+        } finally {
+            serial.close();
+            parallel.close();
+        }
+
+        if (sFailures > 0) {
+            System.out.println("FAILED: " + sFailures + " checks");
+            System.exit(1);
+        }
+        System.out.println(String.format("All checks passed, %d counts up to %d", COUNTS.length, max));
+    }
+
+    private static void checkLogger(String name, BulkDecoder decoder, byte[] logger, int count) {
+        int length = OUT_OFFSET + count + OUT_OFFSET;
+        long[] time = new long[length];
+        float[] temp = new float[length];
+        int[] lux = new int[length];
+        float[] humidity = new float[length];
+        Arrays.fill(time, SENTINEL);
+        Arrays.fill(temp, Float.intBitsToFloat(SENTINEL));
+        Arrays.fill(lux, SENTINEL);
+        Arrays.fill(humidity, Float.intBitsToFloat(SENTINEL));
+
+        int offset = MISALIGN + OFFSET * LoggerRecord.SIZE;
+        decoder.decodeLogger(logger, offset, count, time, temp, lux, humidity, OUT_OFFSET);
+
+        //The scalar path, as a download delivers it
+        final long[] expectedTime = new long[count];
+        final float[] expectedTemp = new float[count];
+        final int[] expectedLux = new int[count];
+        final float[] expectedHumidity = new float[count];
+        new LoggerRecordDecoder().feed(logger, offset, count * LoggerRecord.SIZE,
+                new LoggerRecordDecoder.Listener() {
+                    @Override
+                    public void onRecord(LoggerRecord record) {
+                        int i = (int) record.getIndex();
+                        expectedTime[i] = record.getTime();
+                        expectedTemp[i] = record.getTemperature();
+                        expectedLux[i] = record.getLight();
+                        expectedHumidity[i] = record.getHumidity();
+                    }
+                });
+
+        String what = "decodeLogger " + name + " x" + count;
+        int bad = 0;
+        for (int i = 0; i < length; i++) {
+            int k = i - OUT_OFFSET;
+            boolean inside = k >= 0 && k < count;
+            if (time[i] != (inside ? expectedTime[k] : SENTINEL)
+                    || Float.floatToRawIntBits(temp[i]) != (inside ? Float.floatToRawIntBits(expectedTemp[k]) : SENTINEL)
+                    || lux[i] != (inside ? expectedLux[k] : SENTINEL)
+                    || Float.floatToRawIntBits(humidity[i]) != (inside ? Float.floatToRawIntBits(expectedHumidity[k]) : SENTINEL)) {
+                if (bad++ == 0) {
+                    System.out.println(String.format("%s: element %d is %d %s %d %s", what, i,
+                            time[i], temp[i], lux[i], humidity[i]));
+                }
+            }
+        }
+        report(what, bad);
+    }
+
+    private static void checkConvert(String name, BulkDecoder decoder, int[] rawTemp,
+            int[] rawLight, int[] rawHumidity, int count) {
+        int length = OUT_OFFSET + count + OUT_OFFSET;
+        float[] temp = new float[length];
+        int[] lux = new int[length];
+        float[] humidity = new float[length];
+        Arrays.fill(temp, Float.intBitsToFloat(SENTINEL));
+        Arrays.fill(lux, SENTINEL);
+        Arrays.fill(humidity, Float.intBitsToFloat(SENTINEL));
+
+        decoder.convert(rawTemp, rawLight, rawHumidity, OFFSET, count, temp, lux, humidity,
+                OUT_OFFSET);
+
+        String what = "convert " + name + " x" + count;
+        int bad = 0;
+        for (int i = 0; i < length; i++) {
+            int k = i - OUT_OFFSET;
+            boolean inside = k >= 0 && k < count;
+            int expectedTemp = inside
+                    ? Float.floatToRawIntBits(WimotoConversions.toCelsius(rawTemp[OFFSET + k])) : SENTINEL;
+            int expectedLux = inside ? WimotoConversions.toLux(rawLight[OFFSET + k]) : SENTINEL;
+            int expectedHumidity = inside
+                    ? Float.floatToRawIntBits(WimotoConversions.toRelativeHumidity(rawHumidity[OFFSET + k]))
+                    : SENTINEL;
+            if (Float.floatToRawIntBits(temp[i]) != expectedTemp || lux[i] != expectedLux
+                    || Float.floatToRawIntBits(humidity[i]) != expectedHumidity) {
+                if (bad++ == 0) {
+                    System.out.println(String.format("%s: element %d is %s %d %s", what, i,
+                            temp[i], lux[i], humidity[i]));
+                }
+            }
+        }
+        report(what, bad);
+    }
+
+    private static void report(String what, int bad) {
+        if (bad == 0) return;
+        System.out.println(String.format("%s: %d elements differ", what, bad));
+        sFailures++;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.AdvertDeduplicator;
+import com.example.bluetoothgatt.AdvertSink;
+import com.example.bluetoothgatt.BeaconSnapshot;
+import com.example.bluetoothgatt.BeaconTracker;
+import com.example.bluetoothgatt.DecodePipeline;
+import com.example.bluetoothgatt.DeviceCache;
+import com.example.bluetoothgatt.FleetGenerator;
+import com.example.bluetoothgatt.PipelineMetrics;
+
+/**
+ * FleetStress
+ * Drives a synthetic fleet through the ingest path and reports throughput
+ * and heap per device, first straight into a BeaconTracker as the
+ * gateway does, then end to end through DecodePipeline with a consumer
+ * taking snapshots once per frame as the UI does. Fails if the tracker
+ * doesn't end up with every unit that sent a good advert, or if its
+ * undecoded count isn't the generator's malformed adverts less those the
+ * deduplicator dropped as repeats.
+ *
+ * Usage: gradle stress [-Pdevices=100000] [-Padverts=5000000] [-Pmalformed=0.01]
+ */
+public class FleetStress {
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long FRAME_MILLIS = 16;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long adverts = args.length > 1 ? Long.parseLong(args[1]) : 5000000;
+        double malformed = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+
+        System.out.println(String.format("%d devices, %d adverts, %.1f%% malformed",
+                devices, adverts, malformed * 100));
+        tracker(devices, adverts, malformed);
+        pipeline(devices, adverts, malformed);
+
+        if (sFailures > 0) {
+            System.out.println("FAILED: " + sFailures + " checks");
+            System.exit(1);
+        }
+    }
+
+    private static FleetGenerator fleet(int devices, double malformed) {
+        return new FleetGenerator(devices, 42)
+                .setStartTime(System.currentTimeMillis())
+                .setMalformedRate(malformed);
+    }
+
+    private static void tracker(int devices, long adverts, double malformed) {
+        FleetGenerator generator = fleet(devices, malformed);
+        BeaconTracker tracker = new BeaconTracker();
+        AdvertDeduplicator deduplicator = new AdvertDeduplicator();
+        tracker.setDeduplicator(deduplicator);
+        //Units that sent at least one good advert
+        boolean[] heard = new boolean[devices];
+        int good = 0;
+        //Malformed repeats the deduplicator dropped before they were decoded
+        long repeats = 0;
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (long i = 0; i < adverts; i++) {
+            //Devices advertise in turn
+            int device = (int) (generator.getGeneratedCount() % devices);
+            long passed = deduplicator.getPassedCount();
+            if (generator.next(tracker) != FleetGenerator.MALFORMED_NONE) {
+                if (deduplicator.getPassedCount() == passed) repeats++;
+            } else if (!heard[device]) {
+                heard[device] = true;
+                good++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+
+        System.out.println(String.format("Tracker: %.0f adverts/s, %d units, %d undecoded, %d bytes/unit",
+                adverts / (elapsed / 1e9), tracker.size(), tracker.getUndecodedCount(),
+                tracker.size() == 0 ? 0 : heap / tracker.size()));
+        check("Tracker", "units", tracker.size(), good);
+        check("Tracker", "undecoded", tracker.getUndecodedCount(),
+                generator.getMalformedCount() - repeats);
+    }
+
+    private static void pipeline(int devices, long adverts, double malformed) throws Exception {
+        FleetGenerator generator = fleet(devices, malformed);
+        final DecodePipeline pipeline = new DecodePipeline(QUEUE_CAPACITY, new AdvertDeduplicator(),
+                new DeviceCache(devices, DeviceCache.DEFAULT_TIME_TO_LIVE));
+        pipeline.start();
+
+        //Stands in for the UI thread, taking a snapshot per frame
+        final long[] shown = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    BeaconSnapshot snapshot = pipeline.takeSnapshot();
+                    if (snapshot != null) shown[0] = snapshot.size();
+                    try {
+                        Thread.sleep(FRAME_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "FleetStress consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+
+        //Hold the producer back instead of dropping, to measure the worker
+        AdvertSink producer = new AdvertSink() {
+            @Override
+            public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+                    byte[] data, int offset, int length) {
+                while (pipeline.getQueueSize() >= QUEUE_CAPACITY) {
+                    pipeline.flush();
+                    Thread.yield();
+                }
+                pipeline.offer(timestamp, address, deviceName, rssi, data, offset, length);
+            }
+        };
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (long sent = 0; sent < adverts; sent += QUEUE_CAPACITY / 4) {
+            generator.generate(producer, Math.min(QUEUE_CAPACITY / 4, adverts - sent));
+            pipeline.flush();
+        }
+        while (pipeline.getProcessedCount() < adverts) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+
+        Thread.sleep(FRAME_MILLIS * 4);
+        consumer.interrupt();
+        consumer.join();
+        pipeline.stop();
+
+        PipelineMetrics.Snapshot metrics = pipeline.getMetrics().snapshot();
+        System.out.println(String.format("Pipeline: %.0f adverts/s, %d units shown, %d snapshots, %d bytes/unit",
+                adverts / (elapsed / 1e9), shown[0], pipeline.getPublishedCount(),
+                shown[0] == 0 ? 0 : heap / shown[0]));
+        System.out.print(metrics);
+    }
+
+    private static void check(String name, String what, long actual, long expected) {
+        if (actual == expected) return;
+        System.out.println(String.format("%s: %s %d, expected %d", name, what, actual, expected));
+        sFailures++;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
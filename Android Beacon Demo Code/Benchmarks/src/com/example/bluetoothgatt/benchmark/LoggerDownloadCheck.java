@@ -0,0 +1,152 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.LoggerDownloadEngine;
+import com.example.bluetoothgatt.LoggerRecord;
+import com.example.bluetoothgatt.SimulatedLoggerLink;
+
+/**
+ * LoggerDownloadCheck
+ * Runs LoggerDownloadEngine against SimulatedLoggerLink and checks every
+ * record delivered: at MTU 23, 185 and 517 and at one byte per
+ * notification, straight through and with the link dropping mid-record
+ * several times and the download resumed, and against a logger that was
+ * rewritten between the drop and the resume.
+ *
+ * Usage: gradle download [-Precords=5000]
+ */
+public class LoggerDownloadCheck {
+
+    /* 2015-01-01T00:00:00Z, the start of SimulatedLoggerLink.createLogger */
+    private static final long START_TIME = 1420070400000L;
+    private static final int[] MTUS = {23, 185, 517};
+    private static final int DROPS = 3;
+
+    private static int sFailures;
+
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        byte[] logger = SimulatedLoggerLink.createLogger(records, 2015, 1, 1);
+
+        for (int mtu : MTUS) {
+            download("MTU " + mtu, logger, records, mtu, 0, 0);
+            download("MTU " + mtu + ", " + DROPS + " drops", logger, records, mtu, 0, DROPS);
+        }
+        download("1 byte", logger, records, LoggerDownloadEngine.DEFAULT_MTU, 1, 0);
+        download("1 byte, " + DROPS + " drops", logger, records,
+                LoggerDownloadEngine.DEFAULT_MTU, 1, DROPS);
+        mismatch(logger, records);
+
+        if (sFailures > 0) {
+            System.out.println("FAILED: " + sFailures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    /*
+     * Downloads the logger, dropping the link part way through a record
+     * drops times and resuming on a fresh link after each
+     */
+    private static void download(String name, byte[] logger, int records, int maxMtu,
+            int fixedPayload, int drops) {
+        Checker checker = new Checker();
+        LoggerDownloadEngine engine = new LoggerDownloadEngine(checker);
+        long notifications = 0;
+        for (int attempt = 0; attempt <= drops; attempt++) {
+            SimulatedLoggerLink link = new SimulatedLoggerLink(logger, maxMtu, fixedPayload);
+            if (attempt < drops) {
+                //Each link resends from the start, so drop further in each time, mid-record
+                link.setDropAfter((long) logger.length * (attempt + 1) / (drops + 1)
+                        / LoggerRecord.SIZE * LoggerRecord.SIZE + 7);
+            }
+            engine.start(link);
+            notifications += link.run();
+        }
+
+        check(name, "state", engine.getState(), LoggerDownloadEngine.STATE_COMPLETE);
+        check(name, "records", checker.mNext, records);
+        check(name, "completed with", checker.mCompleted, records);
+        check(name, "interruptions", checker.mInterruptions, drops);
+        check(name, "resumes", engine.getResumeCount(), drops);
+        check(name, "bad records", checker.mBad, 0);
+        System.out.println(String.format("%-20s %6d records, %7d notifications, %5.1f bytes each",
+                name, checker.mNext, notifications, engine.getBytesPerNotification()));
+    }
+
+    /*
+     * Resumes on a logger whose contents changed after the drop; the
+     * engine must fail rather than deliver records from the new contents
+     */
+    private static void mismatch(byte[] logger, int records) {
+        String name = "Rewritten logger";
+        Checker checker = new Checker();
+        LoggerDownloadEngine engine = new LoggerDownloadEngine(checker);
+        SimulatedLoggerLink link = new SimulatedLoggerLink(logger, 185);
+        link.setDropAfter(logger.length / 2 + 7);
+        engine.start(link);
+        link.run();
+        long delivered = checker.mNext;
+
+        byte[] rewritten = SimulatedLoggerLink.createLogger(records, 2015, 1, 2);
+        SimulatedLoggerLink resumed = new SimulatedLoggerLink(rewritten, 185);
+        engine.start(resumed);
+        resumed.run();
+
+        check(name, "state", engine.getState(), LoggerDownloadEngine.STATE_FAILED);
+        check(name, "failures", checker.mFailures, 1);
+        check(name, "records after rewrite", checker.mNext, delivered);
+        check(name, "bad records", checker.mBad, 0);
+        System.out.println(String.format("%-20s failed after %d records as expected", name, delivered));
+    }
+
+    private static void check(String name, String what, long actual, long expected) {
+        if (actual == expected) return;
+        System.out.println(String.format("%s: %s %d, expected %d", name, what, actual, expected));
+        sFailures++;
+    }
+
+    /**
+     * Checker
+     * Expects the records of SimulatedLoggerLink.createLogger in order,
+     * each exactly once
+     */
+    private static class Checker implements LoggerDownloadEngine.Listener {
+
+        long mNext;
+        long mBad;
+        long mCompleted = -1;
+        int mInterruptions;
+        int mFailures;
+
+        @Override
+        public void onRecord(LoggerRecord record) {
+            long i = mNext++;
+            if (record.getIndex() != i
+                    || record.getTime() != START_TIME + i * 60000
+                    || record.getRawTemp() != 0x6000 + (int) (i % 512)
+                    || record.getRawLight() != 200 + (int) (i % 1000)
+                    || record.getRawHumidity() != 0x7000 + (int) (i % 256)) {
+                if (mBad++ == 0) {
+                    System.out.println(String.format("Record %d: index %d, time %d, raw %04x %d %04x",
+                            i, record.getIndex(), record.getTime(), record.getRawTemp(),
+                            record.getRawLight(), record.getRawHumidity()));
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(long records) {
+            mCompleted = records;
+        }
+
+        @Override
+        public void onInterrupted(long records) {
+            mInterruptions++;
+        }
+
+        @Override
+        public void onFailed(String reason) {
+            mFailures++;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.FleetGenerator;
+import com.example.bluetoothgatt.WimotoProfile;
+
+import java.util.Random;
+
+/**
+ * ScanRecordCorpus
+ * Builds 62-byte scan records in the layout the Wimoto units broadcast:
+ * flags, a 16-bit service UUID list, the shortened name and the manufacturer
+ * data carrying the sensor fields, laid out by FleetGenerator. Values are
+ * seeded so every run decodes the same corpus.
+ */
+public class ScanRecordCorpus {
+
+    public static final int RECORD_LENGTH = FleetGenerator.RECORD_LENGTH;
+
+    /*
+     * A mix of Climate, Grow and Sentry adverts with varying readings;
+     * size must be a power of two so callers can cycle with a mask
+     */
+    public static byte[][] mixed(int size, long seed) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Corpus size must be a power of two");
+        }
+
+        Random random = new Random(seed);
+        byte[][] records = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            switch (i % 3) {
+                case 0:
+                    records[i] = climate(random.nextInt(0x10000), random.nextInt(2000),
+                            random.nextInt(0x10000));
+                    break;
+                case 1:
+                    records[i] = grow(random.nextInt(0x10000), random.nextInt(2000),
+                            random.nextInt(1024));
+                    break;
+                default:
+                    records[i] = sentry(random.nextInt(64), random.nextInt(64),
+                            random.nextInt(64), random.nextInt(2), random.nextInt(256));
+                    break;
+            }
+        }
+        return records;
+    }
+
+    /*
+     * Only Climate adverts, which keep the sensor fields at bytes 23-28
+     */
+    public static byte[][] climate(int size, long seed) {
+        Random random = new Random(seed);
+        byte[][] records = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            records[i] = climate(random.nextInt(0x10000), random.nextInt(2000),
+                    random.nextInt(0x10000));
+        }
+        return records;
+    }
+
+    public static byte[] climate(int temp, int light, int humidity) {
+        return build(WimotoProfile.CLIMATE_TEMP_SERVICE, "Wimoto_Cli",
+                new byte[] {
+                        (byte) (temp >> 8), (byte) temp,
+                        (byte) (light >> 8), (byte) light,
+                        (byte) (humidity >> 8), (byte) humidity });
+    }
+
+    public static byte[] grow(int temp, int light, int moisture) {
+        return build(WimotoProfile.GROW_TEMP_SERVICE, "Wimoto_Gro",
+                new byte[] {
+                        (byte) (temp >> 8), (byte) temp,
+                        (byte) (light >> 8), (byte) light,
+                        (byte) (moisture >> 8), (byte) moisture });
+    }
+
+    public static byte[] sentry(int x, int y, int z, int motion, int battery) {
+        return build(WimotoProfile.SENTRY_ACCEL_SERVICE, "Wimoto_Sen",
+                new byte[] { (byte) x, (byte) y, (byte) z, (byte) motion, (byte) battery });
+    }
+
+    /*
+     * The payload goes in at FleetGenerator.PAYLOAD_OFFSET and the generator
+     * lays out the rest, so both corpora broadcast the same layout
+     */
+    private static byte[] build(int uuid, String name, byte[] payload) {
+        byte[] record = new byte[RECORD_LENGTH];
+        System.arraycopy(payload, 0, record, FleetGenerator.PAYLOAD_OFFSET, payload.length);
+        FleetGenerator.writeRecord(record, uuid, name, payload.length);
+        return record;
+    }
+
+    private ScanRecordCorpus() {
+    }
+}
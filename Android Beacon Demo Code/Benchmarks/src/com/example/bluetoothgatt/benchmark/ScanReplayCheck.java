@@ -0,0 +1,191 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.AdvertSink;
+import com.example.bluetoothgatt.FleetGenerator;
+import com.example.bluetoothgatt.ScanRecorder;
+import com.example.bluetoothgatt.ScanReplayer;
+import com.example.bluetoothgatt.WimotoClimate;
+import com.example.bluetoothgatt.WimotoProfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * ScanReplayCheck
+ * Records a synthetic fleet, some of it malformed and some of it out of
+ * timestamp order, with ScanRecorder and replays it with ScanReplayer,
+ * checking every advert comes back with the same timestamp, address and
+ * RSSI, and the same bytes less only trailing zero padding. Adverts whose
+ * AD structures don't parse must come back whole, and every advert must
+ * decode as the original did. Also checks the file stays compact.
+ *
+ * Usage: gradle replay [-Pdevices=500] [-Padverts=20000]
+ */
+public class ScanReplayCheck {
+
+    /* What the ScanRecorder doc promises for a Climate advert, with some slack */
+    private static final double MAX_BYTES_PER_ADVERT = 40;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int adverts = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        roundTrip("Climate fleet", new FleetGenerator(devices, new int[] {WimotoProfile.CLIMATE}, 42),
+                adverts, true);
+        roundTrip("Mixed, 5% malformed", new FleetGenerator(devices, 43).setMalformedRate(0.05),
+                adverts, false);
+
+        if (sFailures > 0) {
+            System.out.println("FAILED: " + sFailures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void roundTrip(String name, FleetGenerator generator, int adverts,
+            boolean checkSize) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ScanRecorder recorder = new ScanRecorder(out);
+        Capture capture = new Capture(recorder);
+        for (int i = 0; i < adverts; i++) {
+            int malformed = generator.next(capture);
+            capture.mUnparsed.add(malformed == FleetGenerator.MALFORMED_TRUNCATED
+                    || malformed == FleetGenerator.MALFORMED_LENGTH);
+        }
+        recorder.close();
+
+        ScanReplayer replayer = new ScanReplayer(new ByteArrayInputStream(out.toByteArray()));
+        Checker checker = new Checker(capture);
+        long replayed = replayer.replay(checker);
+        replayer.close();
+
+        check(name, "recorded", recorder.getRecordedCount(), adverts);
+        check(name, "replayed", replayed, adverts);
+        check(name, "devices", replayer.getDeviceCount(), generator.getDeviceCount());
+        check(name, "recorder errors", recorder.getErrorCount(), 0);
+        check(name, "bad adverts", checker.mBad, 0);
+        check(name, "unparsed adverts trimmed", checker.mTrimmedUnparsed, 0);
+
+        double perAdvert = (double) out.size() / adverts;
+        if (checkSize && perAdvert > MAX_BYTES_PER_ADVERT) {
+            System.out.println(String.format("%s: %.1f bytes per advert, expected at most %.0f",
+                    name, perAdvert, MAX_BYTES_PER_ADVERT));
+            sFailures++;
+        }
+        System.out.println(String.format("%-20s %6d adverts, %8d bytes, %5.1f bytes each",
+                name, replayed, out.size(), perAdvert));
+    }
+
+    private static void check(String name, String what, long actual, long expected) {
+        if (actual == expected) return;
+        System.out.println(String.format("%s: %s %d, expected %d", name, what, actual, expected));
+        sFailures++;
+    }
+
+    /**
+     * Capture
+     * Keeps a copy of every advert on its way to the recorder. Every
+     * seventh is stamped up to two seconds early, as batched results can
+     * be, so the recorder sees timestamps going backwards.
+     */
+    private static class Capture implements AdvertSink {
+
+        final ArrayList<Long> mTimestamps = new ArrayList<Long>();
+        final ArrayList<String> mAddresses = new ArrayList<String>();
+        final ArrayList<Integer> mRssi = new ArrayList<Integer>();
+        final ArrayList<byte[]> mData = new ArrayList<byte[]>();
+        final ArrayList<Boolean> mUnparsed = new ArrayList<Boolean>();
+        private final AdvertSink mSink;
+
+        Capture(AdvertSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+                byte[] data, int offset, int length) {
+            int index = mTimestamps.size();
+            if (index % 7 == 6) timestamp -= index % 2000;
+            mTimestamps.add(timestamp);
+            mAddresses.add(address);
+            mRssi.add(rssi);
+            mData.add(Arrays.copyOfRange(data, offset, offset + length));
+            mSink.onAdvert(timestamp, address, deviceName, rssi, data, offset, length);
+        }
+    }
+
+    /**
+     * Checker
+     * Compares each replayed advert with the one captured in its place
+     */
+    private static class Checker implements AdvertSink {
+
+        long mBad;
+        long mTrimmedUnparsed;
+        private final Capture mCapture;
+        private int mNext;
+
+        Checker(Capture capture) {
+            mCapture = capture;
+        }
+
+        @Override
+        public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+                byte[] data, int offset, int length) {
+            int i = mNext++;
+            if (i >= mCapture.mData.size()) {
+                mBad++;
+                return;
+            }
+            byte[] original = mCapture.mData.get(i);
+            boolean same = timestamp == mCapture.mTimestamps.get(i)
+                    && address.equals(mCapture.mAddresses.get(i))
+                    && rssi == mCapture.mRssi.get(i)
+                    && length <= original.length
+                    && matches(original, data, offset, length)
+                    && decodesAlike(timestamp, address, rssi, original, data, offset, length);
+            if (!same) {
+                if (mBad++ == 0) {
+                    System.out.println(String.format("Advert %d: %s at %d, %ddBm, %d of %d bytes",
+                            i, address, timestamp, rssi, length, original.length));
+                }
+            }
+            if (mCapture.mUnparsed.get(i) && length != original.length) {
+                mTrimmedUnparsed++;
+            }
+        }
+
+        /*
+         * The replayed bytes are the original's, and only zeros were left off
+         */
+        private static boolean matches(byte[] original, byte[] data, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (data[offset + i] != original[i]) return false;
+            }
+            for (int i = length; i < original.length; i++) {
+                if (original[i] != 0) return false;
+            }
+            return true;
+        }
+
+        private static boolean decodesAlike(long timestamp, String address, int rssi,
+                byte[] original, byte[] data, int offset, int length) {
+            WimotoClimate before = new WimotoClimate(timestamp, original, 0, original.length,
+                    address, null, rssi);
+            WimotoClimate after = new WimotoClimate(timestamp, data, offset, length,
+                    address, null, rssi);
+            if (before.isDecoded() != after.isDecoded()) return false;
+            if (!before.isDecoded()) return true;
+            return before.getProfile() == after.getProfile()
+                    && before.getRawTemp() == after.getRawTemp()
+                    && before.getLightLevel() == after.getLightLevel()
+                    && before.getRawHumidity() == after.getRawHumidity()
+                    && before.getTxPower() == after.getTxPower();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.AdaptiveScanScheduler;
+import com.example.bluetoothgatt.ScanScheduler;
+
+/**
+ * ScanScheduleCheck
+ * Drives AdaptiveScanScheduler through scan cycles on a simulated clock
+ * and checks each decision: discovery growing the window and cutting the
+ * pause, steady traffic backing off gently and shrinking the window when
+ * the rate is high, idle windows doubling the pause up to its cap, and
+ * the limits external power and a low battery put on all of them.
+ *
+ * Usage: gradle schedule
+ */
+public class ScanScheduleCheck {
+
+    /* As the beacon activities configure it */
+    private static final long BASE_WINDOW = 5000;
+    private static final long BASE_INTERVAL = 100;
+    private static final long MIN_WINDOW = BASE_WINDOW / 2;
+    private static final long MAX_WINDOW = BASE_WINDOW * 2;
+    private static final long MAX_INTERVAL = 30000;
+
+    private static int sFailures;
+
+    private static AdaptiveScanScheduler sScheduler;
+    private static long sNow;
+    private static long sScanned;
+    private static long sIdle;
+
+    public static void main(String[] args) {
+        sScheduler = new AdaptiveScanScheduler(BASE_WINDOW, BASE_INTERVAL);
+        sNow = 1000000;
+
+        //New devices: the window grows by half up to its cap, the pause drops to the minimum
+        cycle("discovery", 40, 5, AdaptiveScanScheduler.REASON_DISCOVERY, 7500, BASE_INTERVAL);
+        cycle("discovery", 40, 1, AdaptiveScanScheduler.REASON_DISCOVERY, MAX_WINDOW, BASE_INTERVAL);
+        cycle("discovery capped", 40, 2, AdaptiveScanScheduler.REASON_DISCOVERY, MAX_WINDOW,
+                BASE_INTERVAL);
+
+        //Known devices at 5/s: the window holds, the pause grows by half
+        cycle("steady", 50, 0, AdaptiveScanScheduler.REASON_STEADY, MAX_WINDOW, 150);
+        cycle("steady", 50, 0, AdaptiveScanScheduler.REASON_STEADY, MAX_WINDOW, 225);
+        //At 50/s everyone is heard quickly, so the window shrinks by a third
+        cycle("steady, fast", 500, 0, AdaptiveScanScheduler.REASON_STEADY, 6666, 337);
+
+        //Nothing heard: shortest window and the pause doubles, up to the cap
+        cycle("idle", 0, 0, AdaptiveScanScheduler.REASON_IDLE, MIN_WINDOW, 674);
+        long interval = 674;
+        for (int i = 0; i < 8; i++) {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+            cycle("idle", 0, 0, AdaptiveScanScheduler.REASON_IDLE, MIN_WINDOW, interval);
+        }
+        check("idle backoff", "capped at", interval, MAX_INTERVAL);
+
+        //A new device straight after idling brings the pause right back down
+        cycle("discovery after idle", 3, 1, AdaptiveScanScheduler.REASON_DISCOVERY, 3750,
+                BASE_INTERVAL);
+
+        //External power: the pause never backs off past the base
+        sScheduler.setPowerState(ScanScheduler.POWER_PLUGGED);
+        cycle("plugged, idle", 0, 0, AdaptiveScanScheduler.REASON_IDLE, MIN_WINDOW,
+                BASE_INTERVAL);
+        cycle("plugged, steady", 50, 0, AdaptiveScanScheduler.REASON_STEADY, MIN_WINDOW,
+                BASE_INTERVAL);
+
+        //Back on battery, discovery grows the window again
+        sScheduler.setPowerState(ScanScheduler.POWER_BATTERY);
+        cycle("battery, discovery", 40, 4, AdaptiveScanScheduler.REASON_DISCOVERY, 3750,
+                BASE_INTERVAL);
+
+        //Low battery: the window drops to its minimum from the next start, and
+        //stays there even through discovery; the pause is four times the base
+        sScheduler.setPowerState(ScanScheduler.POWER_LOW);
+        long length = cycle("low, discovery", 40, 4, AdaptiveScanScheduler.REASON_DISCOVERY,
+                MIN_WINDOW, BASE_INTERVAL * 4);
+        check("low, discovery", "window", length, MIN_WINDOW);
+        cycle("low, idle", 0, 0, AdaptiveScanScheduler.REASON_IDLE, MIN_WINDOW, 800);
+
+        check("decisions", "discovery", sScheduler.getDecisionCount(
+                AdaptiveScanScheduler.REASON_DISCOVERY), 6);
+        check("decisions", "steady", sScheduler.getDecisionCount(
+                AdaptiveScanScheduler.REASON_STEADY), 4);
+        check("decisions", "idle", sScheduler.getDecisionCount(
+                AdaptiveScanScheduler.REASON_IDLE), 11);
+        //The pause after the last window hasn't been taken, so it isn't counted
+        long idle = sIdle - sScheduler.getIntervalMillis();
+        float expected = (float) sScanned / (sScanned + idle);
+        if (Math.abs(sScheduler.getDutyCycle() - expected) > 1e-4) {
+            System.out.println(String.format("duty cycle %.4f, expected %.4f",
+                    sScheduler.getDutyCycle(), expected));
+            sFailures++;
+        }
+
+        if (sFailures > 0) {
+            System.out.println("FAILED: " + sFailures + " checks");
+            System.exit(1);
+        }
+        System.out.println(String.format("All checks passed, duty cycle %.1f%%",
+                sScheduler.getDutyCycle() * 100));
+    }
+
+    /*
+     * One window as long as the scheduler asks for with the given adverts
+     * spread across it, then the pause it returns. Checks the decision and
+     * the next cycle's window and pause, and returns this window's length.
+     */
+    private static long cycle(String name, int adverts, int newDevices, int reason,
+            long window, long interval) {
+        long length = sScheduler.onWindowStart(sNow);
+        for (int i = 0; i < adverts; i++) {
+            sScheduler.onAdvert(i < newDevices);
+        }
+        sNow += length;
+        sScanned += length;
+        long pause = sScheduler.onWindowEnd(sNow);
+        sNow += pause;
+        sIdle += pause;
+
+        check(name, "reason", sScheduler.getLastReason(), reason);
+        check(name, "adverts", sScheduler.getLastAdvertCount(), adverts);
+        check(name, "new devices", sScheduler.getLastNewDeviceCount(), newDevices);
+        check(name, "next window", sScheduler.getWindowMillis(), window);
+        check(name, "pause", pause, interval);
+        System.out.println(String.format("%-22s %5dms window, %3d adverts -> %-9s %5dms, then %5dms",
+                name, length, adverts, AdaptiveScanScheduler.getReasonName(sScheduler.getLastReason()),
+                sScheduler.getWindowMillis(), pause));
+        return length;
+    }
+
+    private static void check(String name, String what, long actual, long expected) {
+        if (actual == expected) return;
+        System.out.println(String.format("%s: %s %d, expected %d", name, what, actual, expected));
+        sFailures++;
+    }
+}
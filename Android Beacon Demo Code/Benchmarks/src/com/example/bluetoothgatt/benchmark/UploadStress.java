@@ -0,0 +1,193 @@
+package com.example.bluetoothgatt.benchmark;
+
+import com.example.bluetoothgatt.BeaconTracker;
+import com.example.bluetoothgatt.FleetGenerator;
+import com.example.bluetoothgatt.ReadingUploader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * UploadStress
+ * Runs a fleet in real time through a BeaconTracker into a
+ * ReadingUploader, against a stand-in collector on localhost that goes
+ * down part way through. Prints throughput, lag and spill once a second,
+ * so the backoff, the spill to disk and the catch-up afterwards can be
+ * watched, then checks every reading was either received or accounted
+ * for as dropped.
+ *
+ * Usage: gradle upload [-Pdevices=1000] [-Prate=2000] [-Pseconds=30]
+ *            [-Poutage=10,8] [-Platency=0]
+ *
+ * The outage is "start,length" in seconds; latency is added to every
+ * collector answer in milliseconds.
+ */
+public class UploadStress {
+
+    private static final int BATCH_SIZE = 500;
+    private static final long MAX_DELAY = 1000;
+    private static final int MEMORY_BATCHES = 4;
+    private static final long MAX_SPILL_BYTES = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        String[] outage = (args.length > 3 ? args[3] : "10,8").split(",");
+        long latency = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        long start = System.currentTimeMillis();
+        Collector collector = new Collector(start + Long.parseLong(outage[0]) * 1000,
+                start + (Long.parseLong(outage[0]) + Long.parseLong(outage[1])) * 1000, latency);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/readings", collector);
+        server.start();
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/readings");
+
+        File spill = File.createTempFile("upload", "");
+        spill.delete();
+        ReadingUploader uploader = new ReadingUploader(url, spill, BATCH_SIZE, MAX_DELAY,
+                MEMORY_BATCHES, MAX_SPILL_BYTES);
+        uploader.start();
+
+        BeaconTracker tracker = new BeaconTracker();
+        tracker.setUploader(uploader);
+        FleetGenerator generator = new FleetGenerator(devices, 42)
+                .setStartTime(start)
+                .setRate(rate);
+
+        System.out.println(String.format("%d devices at %.0f adverts/s for %ds, collector down %s-%ss, %dms latency",
+                devices, rate, seconds, outage[0],
+                Long.parseLong(outage[0]) + Long.parseLong(outage[1]), latency));
+        System.out.println(" time  received/s     lag   pending  spilled   backoff");
+
+        long end = start + seconds * 1000L;
+        long nextReport = start + 1000;
+        long lastReceived = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= end) break;
+            //Keep advert timestamps on the wall clock so lag is real
+            while (generator.getTime() <= now) {
+                generator.next(tracker);
+            }
+            if (now >= nextReport) {
+                long received = collector.mReadings.get();
+                System.out.println(String.format("%4ds  %10d  %5dms  %8d  %7d  %7dms",
+                        (now - start) / 1000, received - lastReceived, uploader.getLag(now),
+                        uploader.getPendingCount(), uploader.getSpillCount(), uploader.getBackoff()));
+                lastReceived = received;
+                nextReport += 1000;
+            }
+            Thread.sleep(5);
+        }
+
+        //Let it catch up once the fleet goes quiet
+        long drainBy = System.currentTimeMillis() + ReadingUploader.MAX_BACKOFF;
+        while (uploader.getPendingCount() > 0 && System.currentTimeMillis() < drainBy) {
+            Thread.sleep(100);
+        }
+        uploader.close();
+        server.stop(0);
+        spill.delete();
+
+        long offered = uploader.getOfferedCount();
+        long received = collector.mReadings.get();
+        long accounted = received + uploader.getDroppedCount() + uploader.getRejectedCount()
+                + uploader.getPendingCount();
+        System.out.println(String.format("Offered %d, received %d in %d batches, dropped %d, rejected %d, pending %d",
+                offered, received, collector.mBatches.get(), uploader.getDroppedCount(),
+                uploader.getRejectedCount(), uploader.getPendingCount()));
+        System.out.println(String.format("%d failed attempts, %d spills, %.1fx compression, upload p50 %.1fms p99 %.1fms",
+                uploader.getFailureCount(), uploader.getSpillCount(),
+                uploader.getSentBytes() == 0 ? 0 : (double) uploader.getRawBytes() / uploader.getSentBytes(),
+                uploader.getUploadLatency().snapshot().getValueAtPercentile(50) / 1e6,
+                uploader.getUploadLatency().snapshot().getValueAtPercentile(99) / 1e6));
+        if (accounted != offered || collector.mErrors.get() > 0) {
+            System.out.println(String.format("FAILED: %d readings unaccounted for, %d malformed batches",
+                    offered - accounted, collector.mErrors.get()));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Collector
+     * Decodes and counts uploaded batches, answering 503 during the outage
+     */
+    private static class Collector implements HttpHandler {
+
+        final AtomicLong mReadings = new AtomicLong();
+        final AtomicLong mBatches = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+        private final long mDownFrom;
+        private final long mDownUntil;
+        private final long mLatency;
+
+        Collector(long downFrom, long downUntil, long latency) {
+            mDownFrom = downFrom;
+            mDownUntil = downUntil;
+            mLatency = latency;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (mLatency > 0) Thread.sleep(mLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            long now = System.currentTimeMillis();
+            int status;
+            if (now >= mDownFrom && now < mDownUntil) {
+                drain(exchange.getRequestBody());
+                status = 503;
+            } else {
+                status = 200;
+                try {
+                    int count = decode(exchange.getRequestBody());
+                    String expected = exchange.getRequestHeaders().getFirst("X-Reading-Count");
+                    if (expected == null || Integer.parseInt(expected) != count) {
+                        throw new IOException("Count " + count + ", header " + expected);
+                    }
+                    mReadings.addAndGet(count);
+                    mBatches.incrementAndGet();
+                } catch (IOException e) {
+                    mErrors.incrementAndGet();
+                    status = 400;
+                }
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        private static int decode(InputStream body) throws IOException {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(body));
+            if (in.readInt() != 0x57525550) throw new IOException("Bad magic");
+            if (in.readShort() != 1) throw new IOException("Bad version");
+            int count = in.readInt();
+            byte[] record = new byte[ReadingUploader.RECORD_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(record);
+            }
+            if (in.read() >= 0) throw new IOException("Trailing data");
+            return count;
+        }
+
+        private static void drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                //Discard
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.bluetoothgatt;
+
+/**
+ * AdCursor
+ * A flyweight over a raw scan record that walks the AD structures in place.
+ *
+ * Unlike AdRecord.parseScanRecord() nothing is copied or allocated per
+ * advertisement: the cursor only tracks the type, offset and length of the
+ * current structure inside the caller's array. Reuse one instance per thread
+ * by calling reset() for each new scan record.
+ */
+public class AdCursor {
+
+    /* Returned by getTxPower() when the structure carries no power level */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    private byte[] mData;
+    private int mEnd;
+    //Index of the length byte of the next structure
+    private int mNext;
+    //Just past the last structure that parsed
+    private int mGoodEnd;
+
+    //Current structure
+    private int mRecordOffset;
+    private int mType;
+    private int mOffset;
+    private int mLength;
+
+    private boolean mMalformed;
+
+    public AdCursor() {
+        mData = new byte[0];
+    }
+
+    public AdCursor(byte[] scanRecord) {
+        reset(scanRecord);
+    }
+
+    /*
+     * Point the cursor at the start of a new scan record
+     */
+    public AdCursor reset(byte[] scanRecord) {
+        return reset(scanRecord, 0, scanRecord.length);
+    }
+
+    public AdCursor reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length
+                    + " for " + data.length + " bytes");
+        }
+
+        mData = data;
+        mEnd = offset + length;
+        mNext = offset;
+        mGoodEnd = offset;
+        mMalformed = false;
+        clearCurrent();
+        return this;
+    }
+
+    /*
+     * Advance to the next AD structure. Returns false once the record is
+     * exhausted, hits zero padding, or contains a structure that cannot be
+     * trusted; the latter case is reported by isMalformed().
+     */
+    public boolean next() {
+        clearCurrent();
+        if (mNext >= mEnd) return false;
+
+        int length = mData[mNext] & 0xFF;
+        //Done once we run out of records
+        if (length == 0) {
+            mNext = mEnd;
+            return false;
+        }
+
+        //Length runs past the end of the array
+        if (mNext + 1 + length > mEnd) {
+            mMalformed = true;
+            mNext = mEnd;
+            return false;
+        }
+
+        int type = mData[mNext + 1] & 0xFF;
+        //Done if our record isn't a valid type
+        if (type == 0) {
+            mMalformed = true;
+            mNext = mEnd;
+            return false;
+        }
+
+        mRecordOffset = mNext;
+        mType = type;
+        mOffset = mNext + 2;
+        mLength = length - 1;
+        //Advance
+        mNext += length + 1;
+        mGoodEnd = mNext;
+        return true;
+    }
+
+    /*
+     * Advance until a structure of the given type is found, starting from
+     * the current position
+     */
+    public boolean find(int type) {
+        while (next()) {
+            if (mType == type) return true;
+        }
+        return false;
+    }
+
+    private void clearCurrent() {
+        mRecordOffset = -1;
+        mType = 0;
+        mOffset = 0;
+        mLength = 0;
+    }
+
+    /* Accessors for the current structure */
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /*
+     * Offset of the first payload byte (after the type byte) in getData()
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /*
+     * Number of payload bytes, not counting the type byte
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /*
+     * Offset of the length byte that starts the current structure
+     */
+    public int getRecordOffset() {
+        return mRecordOffset;
+    }
+
+    /*
+     * Offset just past the last well-formed structure read so far. Zero
+     * padding and a malformed structure both stop the walk without
+     * moving it, so once next() returns false this is where the usable
+     * part of the record ends.
+     */
+    public int getPosition() {
+        return mGoodEnd;
+    }
+
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    public int getByte(int index) {
+        return mData[mOffset + index] & 0xFF;
+    }
+
+    /* Little-endian, as used by the GAP assigned numbers */
+    public int getUint16(int index) {
+        return (mData[mOffset + index] & 0xFF)
+                | ((mData[mOffset + index + 1] & 0xFF) << 8);
+    }
+
+    /* Big-endian, as used by the Wimoto sensor fields */
+    public int getUint16BigEndian(int index) {
+        return ((mData[mOffset + index] & 0xFF) << 8)
+                | (mData[mOffset + index + 1] & 0xFF);
+    }
+
+    /* Typed accessors for common AD structures */
+
+    public int getFlags() {
+        if (mType != AdRecord.TYPE_FLAGS || mLength < 1) return -1;
+        return getByte(0);
+    }
+
+    public int getServiceDataUuid() {
+        if (mType != AdRecord.TYPE_SERVICEDATA || mLength < 2) return -1;
+        return getUint16(0);
+    }
+
+    public int getServiceDataOffset() {
+        return mOffset + 2;
+    }
+
+    public int getServiceDataLength() {
+        if (mType != AdRecord.TYPE_SERVICEDATA || mLength < 2) return 0;
+        return mLength - 2;
+    }
+
+    public int getManufacturerId() {
+        if (mType != AdRecord.TYPE_MANUFACTURER || mLength < 2) return -1;
+        return getUint16(0);
+    }
+
+    public int getManufacturerDataOffset() {
+        return mOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        if (mType != AdRecord.TYPE_MANUFACTURER || mLength < 2) return 0;
+        return mLength - 2;
+    }
+
+    public int getUuid16Count() {
+        if (mType != AdRecord.TYPE_UUID16 && mType != AdRecord.TYPE_UUID16_INC) return 0;
+        return mLength / 2;
+    }
+
+    public int getUuid16(int index) {
+        return getUint16(index * 2);
+    }
+
+    /*
+     * Signed power level in dBm, or TX_POWER_UNKNOWN
+     */
+    public int getTxPower() {
+        if (mType != AdRecord.TYPE_TRANSMITPOWER || mLength < 1) return TX_POWER_UNKNOWN;
+        return mData[mOffset];
+    }
+
+    public boolean isName() {
+        return mType == AdRecord.TYPE_NAME || mType == AdRecord.TYPE_NAME_SHORT;
+    }
+
+    /*
+     * Compare the name bytes against an expected value without decoding them
+     */
+    public boolean nameEquals(byte[] expected) {
+        if (!isName() || mLength != expected.length) return false;
+        for (int i = 0; i < mLength; i++) {
+            if (mData[mOffset + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Copy the name bytes into dst, returning the number of bytes copied
+     */
+    public int copyName(byte[] dst, int dstOffset) {
+        if (!isName()) return 0;
+        int count = Math.min(mLength, dst.length - dstOffset);
+        System.arraycopy(mData, mOffset, dst, dstOffset, count);
+        return count;
+    }
+
+    /*
+     * Convenience only; this allocates, so keep it off the hot path
+     */
+    public String getName() {
+        if (!isName()) return null;
+        return new String(mData, mOffset, mLength);
+    }
+}
@@ -24,29 +24,21 @@ public class AdRecord {
     public static final int TYPE_TRANSMITPOWER = 0xA;
     public static final int TYPE_CONNINTERVAL = 0x12;
     public static final int TYPE_SERVICEDATA = 0x16;
+    public static final int TYPE_MANUFACTURER = 0xFF;
 
     /*
      * Read out all the AD structures from the raw scan record
+     * This copies every payload; use an AdCursor on hot paths instead
      */
     public static List<AdRecord> parseScanRecord(byte[] scanRecord) {
         List<AdRecord> records = new ArrayList<AdRecord>();
 
-        int index = 0;
-        while (index < scanRecord.length) {
-            int length = scanRecord[index++];
-            //Done once we run out of records
-            if (length == 0) break;
+        AdCursor cursor = new AdCursor(scanRecord);
+        while (cursor.next()) {
+            int index = cursor.getOffset();
+            byte[] data = Arrays.copyOfRange(scanRecord, index, index + cursor.getLength());
 
-            int type = scanRecord[index];
-            //Done if our record isn't a valid type
-            if (type == 0) break;
-
-
-            byte[] data = Arrays.copyOfRange(scanRecord, index+1, index+length);
-
-            records.add(new AdRecord(length, type, data));
-            //Advance
-            index += length;
+            records.add(new AdRecord(cursor.getLength() + 1, cursor.getType(), data));
         }
 
         return records;
@@ -62,6 +54,7 @@ public class AdRecord {
         if (serviceData.mType != TYPE_SERVICEDATA) return -1;
 
         byte[] raw = serviceData.mData;
+        if (raw.length < 2) return -1;
         //Find UUID data in byte array
         int uuid = (raw[1] & 0xFF) << 8;
         uuid += (raw[0] & 0xFF);
@@ -73,6 +66,7 @@ public class AdRecord {
         if (serviceData.mType != TYPE_SERVICEDATA) return null;
 
         byte[] raw = serviceData.mData;
+        if (raw.length < 2) return null;
         //Chop out the uuid
         return Arrays.copyOfRange(raw, 2, raw.length);
     }
@@ -114,6 +108,8 @@ public class AdRecord {
                 return "Connect Interval";
             case TYPE_SERVICEDATA:
                 return "Service Data";
+            case TYPE_MANUFACTURER:
+                return "Manufacturer Data";
             default:
                 return "Unknown Structure: "+mType;
         }
@@ -0,0 +1,211 @@
+package com.example.bluetoothgatt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdaptiveScanScheduler
+ * Sizes each scan cycle from what the previous window heard:
+ *
+ * - New devices turned up: the population is changing, so scan longer
+ *   and come back as soon as possible.
+ * - Nothing heard at all: shortest window and double the pause, up to the
+ *   maximum, so an empty room doesn't keep the radio busy.
+ * - Only known devices: a high advert rate means every unit is heard
+ *   quickly, so the window shrinks; the pause grows gently either way.
+ *
+ * On external power the pause never backs off; on a low battery the
+ * window stays at its minimum and the pause at four times the base.
+ * Every decision is kept as metrics for the caller to log or export.
+ */
+public class AdaptiveScanScheduler implements ScanScheduler {
+
+    public static final int REASON_NONE = 0;
+    public static final int REASON_DISCOVERY = 1;
+    public static final int REASON_STEADY = 2;
+    public static final int REASON_IDLE = 3;
+    public static final int REASON_COUNT = 4;
+
+    /* Adverts per second above which a shorter window still hears everyone */
+    private static final float FAST_RATE = 20f;
+    private static final long DEFAULT_MAX_INTERVAL = 30000;
+
+    private final long mMinWindow;
+    private final long mMaxWindow;
+    private final long mBaseInterval;
+    private final long mMinInterval;
+    private final long mMaxInterval;
+
+    private long mWindow;
+    private long mInterval;
+    private volatile int mPowerState = POWER_BATTERY;
+
+    //Written from the scan callback or decode thread
+    private final AtomicInteger mAdverts = new AtomicInteger();
+    private final AtomicInteger mNewDevices = new AtomicInteger();
+
+    private long mWindowStart;
+    private long mWindowEnd = -1;
+
+    //Metrics
+    private float mLastRate;
+    private int mLastAdverts;
+    private int mLastNewDevices;
+    private int mLastReason = REASON_NONE;
+    private final long[] mDecisions = new long[REASON_COUNT];
+    private long mScanTime;
+    private long mIdleTime;
+
+    /*
+     * Window between half and twice baseWindow, pause from 100ms up to 30s
+     */
+    public AdaptiveScanScheduler(long baseWindow, long baseInterval) {
+        this(baseWindow / 2, baseWindow * 2, baseInterval,
+                Math.min(baseInterval, 100), Math.max(baseInterval, DEFAULT_MAX_INTERVAL));
+        mWindow = baseWindow;
+    }
+
+    public AdaptiveScanScheduler(long minWindow, long maxWindow, long baseInterval,
+            long minInterval, long maxInterval) {
+        if (minWindow <= 0 || maxWindow < minWindow || minInterval < 0
+                || baseInterval < minInterval || maxInterval < baseInterval) {
+            throw new IllegalArgumentException("Inconsistent scan bounds");
+        }
+        mMinWindow = minWindow;
+        mMaxWindow = maxWindow;
+        mBaseInterval = baseInterval;
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+
+        mWindow = minWindow;
+        mInterval = baseInterval;
+    }
+
+    @Override
+    public synchronized long onWindowStart(long now) {
+        if (mWindowEnd >= 0) {
+            mIdleTime += now - mWindowEnd;
+        }
+        mWindowStart = now;
+        mAdverts.set(0);
+        mNewDevices.set(0);
+
+        if (mPowerState == POWER_LOW) {
+            mWindow = mMinWindow;
+        }
+        return mWindow;
+    }
+
+    @Override
+    public void onAdvert(boolean newDevice) {
+        mAdverts.incrementAndGet();
+        if (newDevice) mNewDevices.incrementAndGet();
+    }
+
+    @Override
+    public synchronized long onWindowEnd(long now) {
+        long elapsed = Math.max(1, now - mWindowStart);
+        mScanTime += elapsed;
+        mWindowEnd = now;
+
+        int adverts = mAdverts.get();
+        int newDevices = mNewDevices.get();
+        float rate = adverts * 1000f / elapsed;
+
+        int reason;
+        if (newDevices > 0) {
+            reason = REASON_DISCOVERY;
+            mWindow = Math.min(mMaxWindow, mWindow * 3 / 2);
+            mInterval = mMinInterval;
+        } else if (adverts == 0) {
+            reason = REASON_IDLE;
+            mWindow = mMinWindow;
+            mInterval = Math.min(mMaxInterval, Math.max(mBaseInterval, mInterval * 2));
+        } else {
+            reason = REASON_STEADY;
+            if (rate >= FAST_RATE) {
+                mWindow = Math.max(mMinWindow, mWindow * 2 / 3);
+            }
+            mInterval = Math.min(mMaxInterval, Math.max(mBaseInterval, mInterval * 3 / 2));
+        }
+
+        switch (mPowerState) {
+            case POWER_PLUGGED:
+                mInterval = Math.min(mInterval, mBaseInterval);
+                break;
+            case POWER_LOW:
+                mWindow = mMinWindow;
+                mInterval = Math.min(mMaxInterval, Math.max(mInterval, mBaseInterval * 4));
+                break;
+        }
+
+        mLastRate = rate;
+        mLastAdverts = adverts;
+        mLastNewDevices = newDevices;
+        mLastReason = reason;
+        mDecisions[reason]++;
+        return mInterval;
+    }
+
+    @Override
+    public void setPowerState(int powerState) {
+        mPowerState = powerState;
+    }
+
+    /* Metrics */
+
+    public synchronized long getWindowMillis() {
+        return mWindow;
+    }
+
+    public synchronized long getIntervalMillis() {
+        return mInterval;
+    }
+
+    public synchronized float getLastAdvertRate() {
+        return mLastRate;
+    }
+
+    public synchronized int getLastAdvertCount() {
+        return mLastAdverts;
+    }
+
+    public synchronized int getLastNewDeviceCount() {
+        return mLastNewDevices;
+    }
+
+    public synchronized int getLastReason() {
+        return mLastReason;
+    }
+
+    public synchronized long getDecisionCount(int reason) {
+        return mDecisions[reason];
+    }
+
+    /*
+     * Fraction of time spent scanning across all completed cycles
+     */
+    public synchronized float getDutyCycle() {
+        long total = mScanTime + mIdleTime;
+        return total == 0 ? 0f : (float) mScanTime / total;
+    }
+
+    public static String getReasonName(int reason) {
+        switch (reason) {
+            case REASON_DISCOVERY:
+                return "discovery";
+            case REASON_STEADY:
+                return "steady";
+            case REASON_IDLE:
+                return "idle";
+            default:
+                return "none";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getReasonName(mLastReason) + ": " + mLastAdverts + " adverts ("
+                + Math.round(mLastRate) + "/s), " + mLastNewDevices + " new; next window "
+                + mWindow + "ms after " + mInterval + "ms, duty " + Math.round(getDutyCycle() * 100) + "%";
+    }
+}
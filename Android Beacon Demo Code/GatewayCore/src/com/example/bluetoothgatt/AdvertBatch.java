@@ -0,0 +1,157 @@
+package com.example.bluetoothgatt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * AdvertBatch
+ * The outcome of decoding a whole batch of scan results, handed to the
+ * tracker in one step. Each device appears at most once: a later decode
+ * replaces an earlier one, a signal-only update is folded into a decode
+ * from the same batch, and a decode supersedes an earlier signal-only
+ * update.
+ *
+ * A batch is filled on one thread and then handed off; it is not
+ * synchronized.
+ */
+public class AdvertBatch {
+
+    private final ArrayList<WimotoClimate> mBeacons;
+    private final HashMap<String, Integer> mBeaconIndex;
+
+    private final ArrayList<String> mSignalAddresses;
+    private int[] mSignalRssi;
+    private long[] mSignalTimes;
+    private final HashMap<String, Integer> mSignalIndex;
+
+    private int mResultCount;
+
+    public AdvertBatch() {
+        this(16);
+    }
+
+    public AdvertBatch(int capacity) {
+        mBeacons = new ArrayList<WimotoClimate>(capacity);
+        mBeaconIndex = new HashMap<String, Integer>(capacity * 2);
+        mSignalAddresses = new ArrayList<String>(capacity);
+        mSignalRssi = new int[capacity > 0 ? capacity : 1];
+        mSignalTimes = new long[mSignalRssi.length];
+        mSignalIndex = new HashMap<String, Integer>(capacity * 2);
+    }
+
+    /*
+     * Decode one raw result into the batch. Returns false if it carried
+     * no Wimoto sensor data.
+     */
+    public boolean decode(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        mResultCount++;
+        WimotoClimate beacon = new WimotoClimate(timestamp, data, offset, length,
+                address, deviceName, rssi);
+        if (!beacon.isDecoded()) return false;
+        addBeacon(beacon);
+        return true;
+    }
+
+    public void addBeacon(WimotoClimate beacon) {
+        String address = beacon.getAddress();
+        //Applied after the beacons, an older signal would overwrite this one
+        removeSignal(address);
+        Integer index = mBeaconIndex.get(address);
+        if (index != null) {
+            mBeacons.set(index, beacon);
+        } else {
+            mBeaconIndex.put(address, mBeacons.size());
+            mBeacons.add(beacon);
+        }
+    }
+
+    public void addSignal(long timestamp, String address, int rssi) {
+        mResultCount++;
+        Integer index = mBeaconIndex.get(address);
+        if (index != null) {
+            //Already decoded in this batch, just carry the newer level
+            mBeacons.set(index, mBeacons.get(index).withSignal(rssi, timestamp));
+            return;
+        }
+
+        index = mSignalIndex.get(address);
+        if (index != null) {
+            mSignalRssi[index] = rssi;
+            mSignalTimes[index] = timestamp;
+            return;
+        }
+
+        int i = mSignalAddresses.size();
+        if (i == mSignalRssi.length) {
+            int[] grown = new int[i * 2];
+            System.arraycopy(mSignalRssi, 0, grown, 0, i);
+            mSignalRssi = grown;
+            long[] times = new long[i * 2];
+            System.arraycopy(mSignalTimes, 0, times, 0, i);
+            mSignalTimes = times;
+        }
+        mSignalIndex.put(address, i);
+        mSignalAddresses.add(address);
+        mSignalRssi[i] = rssi;
+        mSignalTimes[i] = timestamp;
+    }
+
+    private void removeSignal(String address) {
+        Integer index = mSignalIndex.remove(address);
+        if (index == null) return;
+        //Move the last entry into the gap
+        int i = index;
+        int last = mSignalAddresses.size() - 1;
+        String moved = mSignalAddresses.remove(last);
+        if (i != last) {
+            mSignalAddresses.set(i, moved);
+            mSignalRssi[i] = mSignalRssi[last];
+            mSignalTimes[i] = mSignalTimes[last];
+            mSignalIndex.put(moved, i);
+        }
+    }
+
+    public int getBeaconCount() {
+        return mBeacons.size();
+    }
+
+    public WimotoClimate getBeacon(int i) {
+        return mBeacons.get(i);
+    }
+
+    public int getSignalCount() {
+        return mSignalAddresses.size();
+    }
+
+    public String getSignalAddress(int i) {
+        return mSignalAddresses.get(i);
+    }
+
+    public int getSignalRssi(int i) {
+        return mSignalRssi[i];
+    }
+
+    public long getSignalTimestamp(int i) {
+        return mSignalTimes[i];
+    }
+
+    /*
+     * Number of results fed in, before collapsing per device
+     */
+    public int getResultCount() {
+        return mResultCount;
+    }
+
+    public boolean isEmpty() {
+        return mBeacons.isEmpty() && mSignalAddresses.isEmpty();
+    }
+
+    public void clear() {
+        mBeacons.clear();
+        mBeaconIndex.clear();
+        mSignalAddresses.clear();
+        mSignalIndex.clear();
+        mResultCount = 0;
+    }
+}
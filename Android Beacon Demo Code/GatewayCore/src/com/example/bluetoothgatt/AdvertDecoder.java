@@ -0,0 +1,15 @@
+package com.example.bluetoothgatt;
+
+/**
+ * AdvertDecoder
+ * Decodes the sensor fields of one product family from the bytes that
+ * follow the UUID (service data) or company identifier (manufacturer data).
+ */
+public interface AdvertDecoder {
+
+    /*
+     * Fill out from data[offset, offset + length). Returns false if the
+     * payload is too short to hold this profile's fields.
+     */
+    boolean decode(byte[] data, int offset, int length, SensorReading out);
+}
@@ -0,0 +1,137 @@
+package com.example.bluetoothgatt;
+
+import java.util.HashMap;
+
+/**
+ * AdvertDeduplicator
+ * Sits ahead of decoding and drops adverts whose payload is identical to
+ * the last one heard from the same device, which is most of the traffic in
+ * low latency scan mode. A repeat whose RSSI moved by at least the
+ * threshold is reported separately, so callers can update the signal
+ * without decoding the payload again.
+ *
+ * Only the first sighting of a device allocates. Calls are synchronized:
+ * MainActivity checks on whichever binder thread delivers the advert,
+ * ahead of its tracker on the main thread. In a DecodePipeline only the
+ * worker calls in, so the lock is never contended.
+ */
+public class AdvertDeduplicator {
+
+    /* Unseen device, decode it */
+    public static final int RESULT_NEW = 0;
+    /* Payload differs from the last advert, decode it */
+    public static final int RESULT_CHANGED = 1;
+    /* Same payload, but the RSSI moved; update the signal only */
+    public static final int RESULT_RSSI_CHANGED = 2;
+    /* Same payload and signal, drop it */
+    public static final int RESULT_DUPLICATE = 3;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static class Entry {
+        long hash;
+        int length;
+        int rssi;
+    }
+
+    private final HashMap<String, Entry> mLast;
+    private final boolean mTrackRssi;
+    private final int mRssiThreshold;
+
+    private long mPassed;
+    private long mRssiUpdates;
+    private long mSuppressed;
+
+    /*
+     * Report RSSI moves of 2dB or more on the cheap path
+     */
+    public AdvertDeduplicator() {
+        this(true, 2);
+    }
+
+    /*
+     * trackRssi false drops every repeat regardless of signal
+     */
+    public AdvertDeduplicator(boolean trackRssi, int rssiThreshold) {
+        mLast = new HashMap<String, Entry>();
+        mTrackRssi = trackRssi;
+        mRssiThreshold = Math.max(1, rssiThreshold);
+    }
+
+    public int check(String address, int rssi, byte[] scanRecord) {
+        return check(address, rssi, scanRecord, 0, scanRecord.length);
+    }
+
+    public synchronized int check(String address, int rssi, byte[] data, int offset, int length) {
+        long hash = hash(data, offset, length);
+
+        Entry entry = mLast.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            mLast.put(address, entry);
+            set(entry, hash, length, rssi);
+            mPassed++;
+            return RESULT_NEW;
+        }
+
+        if (entry.hash != hash || entry.length != length) {
+            set(entry, hash, length, rssi);
+            mPassed++;
+            return RESULT_CHANGED;
+        }
+
+        if (mTrackRssi && Math.abs(rssi - entry.rssi) >= mRssiThreshold) {
+            entry.rssi = rssi;
+            mRssiUpdates++;
+            return RESULT_RSSI_CHANGED;
+        }
+
+        mSuppressed++;
+        return RESULT_DUPLICATE;
+    }
+
+    private static void set(Entry entry, long hash, int length, int rssi) {
+        entry.hash = hash;
+        entry.length = length;
+        entry.rssi = rssi;
+    }
+
+    /*
+     * 64-bit FNV-1a over the raw payload
+     */
+    static long hash(byte[] data, int offset, int length) {
+        long hash = FNV_OFFSET;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /*
+     * Forget a device so its next advert decodes in full
+     */
+    public synchronized void forget(String address) {
+        mLast.remove(address);
+    }
+
+    public synchronized void clear() {
+        mLast.clear();
+    }
+
+    /* Adverts passed on for decoding */
+    public synchronized long getPassedCount() {
+        return mPassed;
+    }
+
+    /* Repeats passed on as RSSI-only updates */
+    public synchronized long getRssiUpdateCount() {
+        return mRssiUpdates;
+    }
+
+    /* Repeats dropped outright */
+    public synchronized long getSuppressedCount() {
+        return mSuppressed;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.bluetoothgatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdvertQueue
+ * Bounded single-producer, single-consumer ring of raw adverts. The
+ * producer copies each advert into a preallocated slot and never blocks:
+ * when the ring is full the advert is dropped and counted. No locks are
+ * taken on either side. The head is published with an ordered write; the
+ * tail with a volatile one, so a consumer that flags itself as waiting and
+ * then finds the ring empty can rely on the producer seeing the flag.
+ *
+ * Exactly one thread may offer and one thread may drain.
+ */
+public class AdvertQueue implements AdvertSink {
+
+    /* Legacy advert plus scan response */
+    private static final int SLOT_SIZE = 62;
+
+    private final int mCapacity;
+    private final int mMask;
+
+    private final long[] mTimestamps;
+    private final String[] mAddresses;
+    private final String[] mNames;
+    private final int[] mRssi;
+    private final int[] mLengths;
+    private final byte[][] mData;
+
+    //Next slot to read, written by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    //Next slot to write, written by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    //Producer's last look at the head, refreshed only when the ring seems full
+    private long mHeadCache;
+
+    //Single writer, read from anywhere
+    private volatile long mDropped;
+
+    /*
+     * capacity is rounded up to a power of two
+     */
+    public AdvertQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        mCapacity = size;
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mAddresses = new String[size];
+        mNames = new String[size];
+        mRssi = new int[size];
+        mLengths = new int[size];
+        mData = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            mData[i] = new byte[SLOT_SIZE];
+        }
+    }
+
+    /*
+     * Producer side. Returns false if the ring was full and the advert
+     * was dropped.
+     */
+    public boolean offer(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mCapacity) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mCapacity) {
+                mDropped++;
+                return false;
+            }
+        }
+
+        int i = (int) tail & mMask;
+        byte[] slot = mData[i];
+        if (slot.length < length) {
+            //Extended adverts, rare enough to allocate for
+            mData[i] = slot = new byte[length];
+        }
+        System.arraycopy(data, offset, slot, 0, length);
+        mTimestamps[i] = timestamp;
+        mAddresses[i] = address;
+        mNames[i] = deviceName;
+        mRssi[i] = rssi;
+        mLengths[i] = length;
+
+        //Not lazySet: the caller reads the consumer's waiting flag next, and
+        //only a full fence keeps that load from passing this store
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    @Override
+    public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        offer(timestamp, address, deviceName, rssi, data, offset, length);
+    }
+
+    /*
+     * Consumer side. Hands up to max queued adverts to the sink, which must
+     * not keep the data array, and returns how many were delivered.
+     */
+    public int drain(AdvertSink sink, int max) {
+        long head = mHead.get();
+        int count = (int) Math.min(mTail.get() - head, max);
+        for (int k = 0; k < count; k++) {
+            int i = (int) (head + k) & mMask;
+            sink.onAdvert(mTimestamps[i], mAddresses[i], mNames[i], mRssi[i],
+                    mData[i], 0, mLengths[i]);
+            mAddresses[i] = null;
+            mNames[i] = null;
+        }
+        if (count > 0) mHead.lazySet(head + count);
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /*
+     * Total adverts accepted since creation
+     */
+    public long getOfferedCount() {
+        return mTail.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.bluetoothgatt;
+
+/**
+ * AdvertSink
+ * Receives raw advertisements from any source: the Android scan callbacks,
+ * an HCI capture or a replay file. The data array is only valid for the
+ * duration of the call.
+ */
+public interface AdvertSink {
+
+    /*
+     * timestamp is in milliseconds since the epoch; deviceName may be null
+     * when the source has no cached name for the device
+     */
+    void onAdvert(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length);
+}
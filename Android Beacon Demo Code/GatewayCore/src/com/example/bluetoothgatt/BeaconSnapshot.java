@@ -0,0 +1,120 @@
+package com.example.bluetoothgatt;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * BeaconSnapshot
+ * Immutable copy of every tracked beacon at one point in time, published
+ * by the DecodePipeline worker for the UI to read without locking, along
+ * with each beacon's smoothed signal and estimated distance, and their
+ * order from nearest to furthest.
+ */
+public final class BeaconSnapshot {
+
+    private final long mSequence;
+    private final WimotoClimate[] mBeacons;
+    private final float[] mRssi;
+    private final float[] mDistance;
+    //Indices into mBeacons, nearest first
+    private final int[] mNearest;
+    private final long mDropped;
+
+    /*
+     * filter may be null, leaving the raw signal of each beacon; without a
+     * proximity index the nearest ordering is empty
+     */
+    BeaconSnapshot(long sequence, Collection<WimotoClimate> beacons, RssiFilterEngine filter,
+            ProximityIndex proximity, long dropped) {
+        mSequence = sequence;
+        mBeacons = beacons.toArray(new WimotoClimate[beacons.size()]);
+        mRssi = new float[mBeacons.length];
+        mDistance = new float[mBeacons.length];
+        for (int i = 0; i < mBeacons.length; i++) {
+            WimotoClimate beacon = mBeacons[i];
+            int slot = filter == null ? RssiFilterEngine.NO_SLOT : filter.getSlot(beacon.getAddress());
+            if (slot == RssiFilterEngine.NO_SLOT) {
+                mRssi[i] = beacon.getSignal();
+                mDistance[i] = Float.NaN;
+            } else {
+                mRssi[i] = filter.getRssi(slot);
+                mDistance[i] = filter.getDistance(slot);
+            }
+        }
+        mNearest = order(filter, proximity);
+        mDropped = dropped;
+    }
+
+    private int[] order(RssiFilterEngine filter, ProximityIndex proximity) {
+        if (filter == null || proximity == null) return new int[0];
+        int[] indexBySlot = new int[filter.getRegistry().getSlotCount()];
+        Arrays.fill(indexBySlot, -1);
+        for (int i = 0; i < mBeacons.length; i++) {
+            int slot = filter.getSlot(mBeacons[i].getAddress());
+            if (slot != RssiFilterEngine.NO_SLOT) indexBySlot[slot] = i;
+        }
+
+        //The index also holds devices that never decoded; skip those
+        int[] slots = new int[proximity.size()];
+        int count = proximity.top(slots.length, slots);
+        int[] nearest = new int[mBeacons.length];
+        int n = 0;
+        for (int i = 0; i < count && n < nearest.length; i++) {
+            int slot = slots[i];
+            if (slot < indexBySlot.length && indexBySlot[slot] >= 0) {
+                nearest[n++] = indexBySlot[slot];
+            }
+        }
+        return n == nearest.length ? nearest : Arrays.copyOf(nearest, n);
+    }
+
+    /*
+     * Increases with every snapshot published by the same pipeline
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public int size() {
+        return mBeacons.length;
+    }
+
+    public WimotoClimate get(int i) {
+        return mBeacons[i];
+    }
+
+    /*
+     * Smoothed RSSI in dBm
+     */
+    public float getRssi(int i) {
+        return mRssi[i];
+    }
+
+    /*
+     * Estimated distance in metres, or NaN without an advertised power level
+     */
+    public float getDistance(int i) {
+        return mDistance[i];
+    }
+
+    /*
+     * Beacons in the proximity ordering; every beacon with a filtered signal
+     */
+    public int getNearestCount() {
+        return mNearest.length;
+    }
+
+    /*
+     * Index for get() of the beacon at the given rank, 0 being nearest
+     */
+    public int getNearest(int rank) {
+        return mNearest[rank];
+    }
+
+    /*
+     * Adverts dropped on a full queue up to this snapshot
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.bluetoothgatt;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * BeaconTracker
+ * Per-device state for every Wimoto unit heard, keyed by device address.
+ *
+ * The tracker is not synchronized. On Android it is owned by the main
+ * thread; on a gateway run one tracker per ingest thread and partition the
+ * traffic between them by address.
+ */
+public class BeaconTracker implements AdvertSink {
+
+    public interface Listener {
+        void onBeaconUpdated(WimotoClimate beacon, boolean isNew);
+    }
+
+    private final HashMap<String, WimotoClimate> mBeacons;
+    private Listener mListener;
+    private AdvertDeduplicator mDeduplicator;
+    private SensorHistory mHistory;
+    private ReadingLog mLog;
+    private ReadingUploader mUploader;
+
+    private long mAdverts;
+    private long mUndecoded;
+
+    public BeaconTracker() {
+        mBeacons = new HashMap<String, WimotoClimate>();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /*
+     * Drop repeated payloads before they reach the decoder
+     */
+    public void setDeduplicator(AdvertDeduplicator deduplicator) {
+        mDeduplicator = deduplicator;
+    }
+
+    public AdvertDeduplicator getDeduplicator() {
+        return mDeduplicator;
+    }
+
+    /*
+     * Keep every reading, not just the latest, in a fixed-size history
+     */
+    public void setHistory(SensorHistory history) {
+        mHistory = history;
+    }
+
+    public SensorHistory getHistory() {
+        return mHistory;
+    }
+
+    /*
+     * Persist every update; the log is written on the tracker's thread
+     */
+    public void setReadingLog(ReadingLog log) {
+        mLog = log;
+    }
+
+    /*
+     * Ship every update to a collector; offering never blocks on the
+     * network
+     */
+    public void setUploader(ReadingUploader uploader) {
+        mUploader = uploader;
+    }
+
+    /*
+     * Decode a raw advert and record it. Anything that doesn't carry Wimoto
+     * sensor data is counted and dropped.
+     */
+    @Override
+    public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        mAdverts++;
+        if (mDeduplicator != null) {
+            switch (mDeduplicator.check(address, rssi, data, offset, length)) {
+                case AdvertDeduplicator.RESULT_DUPLICATE:
+                    return;
+                case AdvertDeduplicator.RESULT_RSSI_CHANGED:
+                    updateSignal(address, rssi, timestamp);
+                    return;
+            }
+        }
+
+        WimotoClimate beacon = new WimotoClimate(timestamp, data, offset, length,
+                address, deviceName, rssi);
+        if (!beacon.isDecoded()) {
+            mUndecoded++;
+            return;
+        }
+        update(beacon);
+    }
+
+    /*
+     * Record a beacon that was already decoded on another thread
+     */
+    public void update(WimotoClimate beacon) {
+        boolean isNew = mBeacons.put(beacon.getAddress(), beacon) == null;
+        if (mHistory != null) {
+            mHistory.record(beacon);
+        }
+        if (mLog != null) {
+            mLog.append(beacon);
+        }
+        if (mUploader != null) {
+            mUploader.offer(beacon);
+        }
+        if (mListener != null) {
+            mListener.onBeaconUpdated(beacon, isNew);
+        }
+    }
+
+    /*
+     * Record a whole batch decoded on another thread. Signal updates for
+     * devices that haven't been decoded yet are dropped.
+     */
+    public void update(AdvertBatch batch) {
+        for (int i = 0, n = batch.getBeaconCount(); i < n; i++) {
+            update(batch.getBeacon(i));
+        }
+        for (int i = 0, n = batch.getSignalCount(); i < n; i++) {
+            updateSignal(batch.getSignalAddress(i), batch.getSignalRssi(i),
+                    batch.getSignalTimestamp(i));
+        }
+    }
+
+    /*
+     * Apply a new signal reading to a known device without decoding.
+     * The sensor values are the ones already recorded, so only the stored
+     * beacon changes; history, log and uploader aren't given a copy.
+     * Returns false if the device hasn't been decoded yet.
+     */
+    public boolean updateSignal(String address, int rssi) {
+        return updateSignal(address, rssi, System.currentTimeMillis());
+    }
+
+    public boolean updateSignal(String address, int rssi, long timestamp) {
+        WimotoClimate beacon = mBeacons.get(address);
+        if (beacon == null) return false;
+        beacon = beacon.withSignal(rssi, timestamp);
+        mBeacons.put(address, beacon);
+        if (mListener != null) {
+            mListener.onBeaconUpdated(beacon, false);
+        }
+        return true;
+    }
+
+    /*
+     * Apply one channel read or notified over a connection. Returns false
+     * if the device hasn't been decoded yet.
+     */
+    public boolean updateReading(String address, int channel, int raw, long timestamp) {
+        WimotoClimate beacon = mBeacons.get(address);
+        if (beacon == null) return false;
+        update(beacon.withReading(channel, raw, timestamp));
+        return true;
+    }
+
+    public WimotoClimate get(String address) {
+        return mBeacons.get(address);
+    }
+
+    public Collection<WimotoClimate> getBeacons() {
+        return mBeacons.values();
+    }
+
+    /*
+     * Forget a device that has gone away, along with its deduplicator
+     * state. Its history is kept for when it returns; SensorHistory
+     * expires that on its own. Returns the last reading, or null.
+     */
+    public WimotoClimate remove(String address) {
+        WimotoClimate beacon = mBeacons.remove(address);
+        if (mDeduplicator != null) mDeduplicator.forget(address);
+        return beacon;
+    }
+
+    public int size() {
+        return mBeacons.size();
+    }
+
+    public void clear() {
+        mBeacons.clear();
+    }
+
+    public long getAdvertCount() {
+        return mAdverts;
+    }
+
+    public long getUndecodedCount() {
+        return mUndecoded;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.bluetoothgatt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * BtSnoopReader
+ * Reads LE advertising reports out of a raw HCI capture in btsnoop format,
+ * as written by Android's "Bluetooth HCI snoop log" or by btmon/hcidump on a
+ * Linux gateway, and feeds them to an AdvertSink.
+ *
+ * Reports are delivered as the controller sent them, so a scan response
+ * arrives as its own advert rather than appended to the advertising data.
+ */
+public class BtSnoopReader {
+
+    /* Un-encapsulated HCI, packet type carried in the record flags */
+    public static final int DATALINK_H1 = 1001;
+    /* HCI UART, packet type carried in the first byte */
+    public static final int DATALINK_H4 = 1002;
+
+    private static final byte[] MAGIC = { 'b', 't', 's', 'n', 'o', 'o', 'p', 0 };
+    //Microseconds between 0000-01-01 and 1970-01-01
+    private static final long EPOCH_OFFSET_MICROS = 0x00dcddb30f2f8000L;
+
+    private static final int HCI_EVENT = 0x04;
+    private static final int EVENT_LE_META = 0x3E;
+    private static final int LE_ADVERTISING_REPORT = 0x02;
+    private static final int FLAG_RECEIVED = 0x01;
+    private static final int FLAG_EVENT = 0x02;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final DataInputStream mIn;
+    private final int mDatalink;
+    private byte[] mPacket = new byte[512];
+
+    private long mPackets;
+    private long mReports;
+
+    public BtSnoopReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+
+        byte[] magic = new byte[MAGIC.length];
+        mIn.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a btsnoop capture");
+        }
+        int version = mIn.readInt();
+        if (version != 1) {
+            throw new IOException("Unsupported btsnoop version " + version);
+        }
+        mDatalink = mIn.readInt();
+        if (mDatalink != DATALINK_H1 && mDatalink != DATALINK_H4) {
+            throw new IOException("Unsupported datalink type " + mDatalink);
+        }
+    }
+
+    /*
+     * Read to the end of the capture, returning the number of reports seen
+     */
+    public long readAll(AdvertSink sink) throws IOException {
+        while (readPacket(sink)) {
+            //Keep going
+        }
+        return mReports;
+    }
+
+    /*
+     * Read a single packet record. Returns false at the end of the capture;
+     * a record cut short by an interrupted capture also ends it.
+     */
+    public boolean readPacket(AdvertSink sink) throws IOException {
+        int length;
+        int flags;
+        long timestamp;
+        try {
+            mIn.readInt(); //original length
+            length = mIn.readInt();
+            flags = mIn.readInt();
+            mIn.readInt(); //cumulative drops
+            timestamp = (mIn.readLong() - EPOCH_OFFSET_MICROS) / 1000;
+
+            if (length < 0) {
+                throw new IOException("Corrupt record length " + length);
+            }
+            if (length > mPacket.length) {
+                mPacket = new byte[length];
+            }
+            mIn.readFully(mPacket, 0, length);
+        } catch (EOFException e) {
+            return false;
+        }
+        mPackets++;
+
+        int offset = 0;
+        if (mDatalink == DATALINK_H4) {
+            if (length < 1 || mPacket[0] != HCI_EVENT) return true;
+            offset = 1;
+            length--;
+        } else if ((flags & (FLAG_EVENT | FLAG_RECEIVED)) != (FLAG_EVENT | FLAG_RECEIVED)) {
+            return true;
+        }
+
+        parseEvent(timestamp, mPacket, offset, length, sink);
+        return true;
+    }
+
+    /*
+     * LE Advertising Report parameters are laid out as one array per field,
+     * each with an entry per report
+     */
+    private void parseEvent(long timestamp, byte[] packet, int offset, int length, AdvertSink sink) {
+        if (length < 4) return;
+        if ((packet[offset] & 0xFF) != EVENT_LE_META) return;
+        int end = offset + 2 + (packet[offset + 1] & 0xFF);
+        if (end > offset + length) return;
+        if ((packet[offset + 2] & 0xFF) != LE_ADVERTISING_REPORT) return;
+
+        int reports = packet[offset + 3] & 0xFF;
+        int addressBase = offset + 4 + 2 * reports;
+        int lengthBase = addressBase + 6 * reports;
+        int dataBase = lengthBase + reports;
+        if (dataBase > end) return;
+
+        int totalData = 0;
+        for (int i = 0; i < reports; i++) {
+            totalData += packet[lengthBase + i] & 0xFF;
+        }
+        int rssiBase = dataBase + totalData;
+        if (rssiBase + reports > end) return;
+
+        int dataOffset = dataBase;
+        for (int i = 0; i < reports; i++) {
+            int dataLength = packet[lengthBase + i] & 0xFF;
+            String address = formatAddress(packet, addressBase + 6 * i);
+            int rssi = packet[rssiBase + i];
+
+            sink.onAdvert(timestamp, address, null, rssi, packet, dataOffset, dataLength);
+            dataOffset += dataLength;
+            mReports++;
+        }
+    }
+
+    /*
+     * HCI sends the address least significant byte first
+     */
+    static String formatAddress(byte[] data, int offset) {
+        char[] text = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = data[offset + 5 - i] & 0xFF;
+            text[i * 3] = HEX[b >> 4];
+            text[i * 3 + 1] = HEX[b & 0xF];
+            if (i < 5) text[i * 3 + 2] = ':';
+        }
+        return new String(text);
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    public long getReportCount() {
+        return mReports;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
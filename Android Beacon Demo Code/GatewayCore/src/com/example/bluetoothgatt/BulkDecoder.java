@@ -0,0 +1,181 @@
+package com.example.bluetoothgatt;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * BulkDecoder
+ * Converts raw readings in bulk into primitive arrays, for backfilling
+ * logger dumps and replayed captures without building a WimotoClimate or
+ * LoggerRecord per sample. Each value goes through the same
+ * WimotoConversions call as the per-advert path, so results are identical.
+ *
+ * Inputs of at least PARALLEL_THRESHOLD samples are cut into one range per
+ * thread; the calling thread converts the last range itself and then
+ * waits for the others. Any output array may be null to skip that channel.
+ *
+ * A BulkDecoder can be shared between threads. Close it to stop its pool.
+ */
+public class BulkDecoder implements Closeable {
+
+    /* Below this many samples splitting costs more than it saves */
+    public static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+
+    public BulkDecoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * threads includes the caller; 1 converts everything inline
+     */
+    public BulkDecoder(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads " + threads);
+        mThreads = threads;
+        mExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BulkDecoder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public int getThreadCount() {
+        return mThreads;
+    }
+
+    /*
+     * Convert count raw temperature, light and humidity readings starting
+     * at offset, writing the results from outOffset. Null raw arrays skip
+     * their channel as well.
+     */
+    public void convert(final int[] rawTemp, final int[] rawLight, final int[] rawHumidity,
+            final int offset, int count, final float[] temp, final int[] lux,
+            final float[] humidity, final int outOffset) {
+        run(count, new Range() {
+            @Override
+            public void run(int from, int to) {
+                convertRange(rawTemp, rawLight, rawHumidity, offset + from, to - from,
+                        temp, lux, humidity, outOffset + from);
+            }
+        });
+    }
+
+    /*
+     * Decode count consecutive 16-byte logger records starting at offset,
+     * as read out by a LoggerDownloadEngine
+     */
+    public void decodeLogger(final byte[] data, final int offset, int count, final long[] time,
+            final float[] temp, final int[] lux, final float[] humidity, final int outOffset) {
+        if (offset < 0 || (long) offset + (long) count * LoggerRecord.SIZE > data.length) {
+            throw new ArrayIndexOutOfBoundsException("Logger data too short for " + count + " records");
+        }
+        run(count, new Range() {
+            @Override
+            public void run(int from, int to) {
+                decodeLoggerRange(data, offset + from * LoggerRecord.SIZE, to - from,
+                        time, temp, lux, humidity, outOffset + from);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (mExecutor != null) mExecutor.shutdown();
+    }
+
+    /* Kernels, also usable directly on one thread */
+
+    public static void convertRange(int[] rawTemp, int[] rawLight, int[] rawHumidity,
+            int offset, int count, float[] temp, int[] lux, float[] humidity, int outOffset) {
+        //One pass per channel keeps each loop to a single input and output
+        if (rawTemp != null && temp != null) {
+            for (int i = 0; i < count; i++) {
+                temp[outOffset + i] = WimotoConversions.toCelsius(rawTemp[offset + i]);
+            }
+        }
+        if (rawLight != null && lux != null) {
+            for (int i = 0; i < count; i++) {
+                lux[outOffset + i] = WimotoConversions.toLux(rawLight[offset + i]);
+            }
+        }
+        if (rawHumidity != null && humidity != null) {
+            for (int i = 0; i < count; i++) {
+                humidity[outOffset + i] = WimotoConversions.toRelativeHumidity(rawHumidity[offset + i]);
+            }
+        }
+    }
+
+    public static void decodeLoggerRange(byte[] data, int offset, int count, long[] time,
+            float[] temp, int[] lux, float[] humidity, int outOffset) {
+        for (int i = 0; i < count; i++) {
+            int o = offset + i * LoggerRecord.SIZE;
+            int out = outOffset + i;
+            if (time != null) {
+                time[out] = LoggerRecord.readTime(data, o);
+            }
+            //Same fields as LoggerRecord.decode
+            if (temp != null) {
+                temp[out] = WimotoConversions.toCelsius(WimotoDecoders.readUint16(data, o + 8));
+            }
+            if (lux != null) {
+                lux[out] = WimotoConversions.toLux(WimotoDecoders.readUint16(data, o + 10));
+            }
+            if (humidity != null) {
+                humidity[out] = WimotoConversions.toRelativeHumidity(
+                        WimotoDecoders.readUint16(data, o + 14));
+            }
+        }
+    }
+
+    /* Splitting */
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    private void run(int count, final Range range) {
+        if (count < PARALLEL_THRESHOLD || mExecutor == null) {
+            range.run(0, count);
+            return;
+        }
+
+        int chunk = (count + mThreads - 1) / mThreads;
+        Future<?>[] futures = new Future<?>[mThreads - 1];
+        int from = 0;
+        for (int i = 0; i < futures.length; i++) {
+            final int start = from;
+            final int end = Math.min(from + chunk, count);
+            futures[i] = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    range.run(start, end);
+                }
+            });
+            from = end;
+        }
+        range.run(from, count);
+
+        for (int i = 0; i < futures.length; i++) {
+            try {
+                futures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decoding", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.bluetoothgatt;
+
+import java.util.UUID;
+
+/**
+ * ClimateCharacteristics
+ * The Climate's current value characteristics, for reading or subscribing
+ * over a connection instead of sampling adverts. Each value is the same
+ * big-endian 16-bit raw reading the advert carries.
+ */
+public class ClimateCharacteristics {
+
+    public static final UUID TEMP_SERVICE = uuid(WimotoProfile.CLIMATE_TEMP_SERVICE);
+    public static final UUID TEMP_CURRENT = uuid(WimotoProfile.CLIMATE_TEMP_CURRENT);
+    public static final UUID LIGHT_SERVICE = uuid(WimotoProfile.CLIMATE_LIGHT_SERVICE);
+    public static final UUID LIGHT_CURRENT = uuid(WimotoProfile.CLIMATE_LIGHT_CURRENT);
+    public static final UUID HUM_SERVICE = uuid(WimotoProfile.CLIMATE_HUM_SERVICE);
+    public static final UUID HUM_CURRENT = uuid(WimotoProfile.CLIMATE_HUM_CURRENT);
+
+    /*
+     * Operations enabling notifications on all three values. They run
+     * again on every connection, since an unbonded device forgets its
+     * client configuration when the link drops.
+     */
+    public static GattOperation[] subscribe(GattOperation.Callback callback) {
+        return new GattOperation[] {
+                GattOperation.subscribe(TEMP_SERVICE, TEMP_CURRENT, callback),
+                GattOperation.subscribe(LIGHT_SERVICE, LIGHT_CURRENT, callback),
+                GattOperation.subscribe(HUM_SERVICE, HUM_CURRENT, callback)
+        };
+    }
+
+    /*
+     * The SensorReading channel a characteristic carries, or -1
+     */
+    public static int getChannel(UUID characteristic) {
+        if (TEMP_CURRENT.equals(characteristic)) return SensorReading.CHANNEL_TEMPERATURE;
+        if (LIGHT_CURRENT.equals(characteristic)) return SensorReading.CHANNEL_LIGHT;
+        if (HUM_CURRENT.equals(characteristic)) return SensorReading.CHANNEL_HUMIDITY;
+        return -1;
+    }
+
+    /*
+     * The raw reading in a characteristic value, or -1 if it's too short
+     */
+    public static int getRaw(byte[] value) {
+        if (value == null || value.length < 2) return -1;
+        return WimotoDecoders.readUint16(value, 0);
+    }
+
+    /* E003xxxx-EC48-4ED0-9F3B-5419C00A94FD */
+    private static UUID uuid(int shortForm) {
+        return new UUID(0xE0030000L << 32 | (long) shortForm << 32 | 0xEC484ED0L,
+                0x9F3B5419C00A94FDL);
+    }
+
+    private ClimateCharacteristics() {
+    }
+}
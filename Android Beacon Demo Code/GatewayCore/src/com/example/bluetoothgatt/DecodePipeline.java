@@ -0,0 +1,440 @@
+package com.example.bluetoothgatt;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DecodePipeline
+ * Moves decoding off the radio callback and the UI thread in three stages:
+ *
+ * 1. The scan callback copies each raw advert into a bounded AdvertQueue
+ *    and returns. It never blocks; a full queue drops and counts.
+ * 2. A worker thread drains the queue, smooths every RSSI sample,
+ *    deduplicates, decodes and updates its own BeaconTracker, collapsing
+ *    each drain into one AdvertBatch.
+ * 3. When the tracker changed, the worker publishes an immutable
+ *    BeaconSnapshot. Only one snapshot is outstanding at a time; the
+ *    worker doesn't build another until the UI has taken it, so a slow
+ *    frame only delays the display and never reaches the radio side.
+ *
+ * The worker also keeps the device set bounded through a DeviceCache:
+ * sensors not heard for its time to live, or the least recently heard
+ * one when it is full, are dropped from every per-device structure and
+ * from later snapshots. Their SensorHistory is the exception; the worker
+ * expires that separately, on its much longer span.
+ *
+ * Each stage counts what it handles and times itself into a shared
+ * PipelineMetrics, which the activities add the callback and UI stages to.
+ *
+ * The scan callbacks must be serialized, which holds for the Android
+ * callbacks and for a single capture reader.
+ */
+public class DecodePipeline implements AdvertSink {
+
+    public interface Listener {
+        /*
+         * Called on the worker thread when a snapshot is ready to take.
+         * Must return quickly, e.g. by posting to the UI thread.
+         */
+        void onSnapshotAvailable();
+    }
+
+    /* Adverts applied to the tracker per batch */
+    private static final int DRAIN_LIMIT = 128;
+    /* How often an idle worker wakes to expire departed devices */
+    private static final long EXPIRY_INTERVAL = 1000;
+    /* History outlives the cache by days, so it is swept far less often */
+    private static final long HISTORY_EXPIRY_INTERVAL = 60000;
+
+    private final AdvertQueue mQueue;
+    private final AdvertDeduplicator mDeduplicator;
+    private final BeaconTracker mTracker;
+    private final DeviceCache mCache;
+    private final RssiFilterEngine mFilter;
+    private ProximityIndex mProximity;
+    private final AdvertBatch mBatch;
+    private final PipelineMetrics mMetrics;
+    private final AtomicReference<BeaconSnapshot> mLatest;
+
+    private volatile Listener mListener;
+    private volatile DeviceCache.Listener mEvictionListener;
+    private volatile ScanScheduler mScheduler;
+
+    private volatile Thread mWorker;
+    private volatile boolean mRunning;
+    private volatile boolean mWaiting;
+    private volatile boolean mDirty;
+
+    //Written by the worker only
+    private volatile long mProcessed;
+    private volatile long mUndecoded;
+    private volatile long mPublished;
+    private volatile long mEvicted;
+    private volatile long mPublishedAt;
+    private long mNextExpiry;
+    private long mNextHistoryExpiry;
+
+    /*
+     * deduplicator may be null to decode every advert
+     */
+    public DecodePipeline(int queueCapacity, AdvertDeduplicator deduplicator) {
+        this(queueCapacity, deduplicator, new DeviceCache());
+    }
+
+    /*
+     * cache bounds the devices tracked; the pipeline takes it over
+     */
+    public DecodePipeline(int queueCapacity, AdvertDeduplicator deduplicator, DeviceCache cache) {
+        mQueue = new AdvertQueue(queueCapacity);
+        mDeduplicator = deduplicator;
+        mBatch = new AdvertBatch(DRAIN_LIMIT);
+        mMetrics = new PipelineMetrics();
+        mLatest = new AtomicReference<BeaconSnapshot>();
+
+        mCache = cache;
+        mCache.setListener(new DeviceCache.Listener() {
+            @Override
+            public void onDeviceEvicted(int slot, String address, int reason) {
+                evict(slot, address, reason);
+            }
+        });
+        mFilter = new RssiFilterEngine(RssiFilterEngine.MODE_KALMAN, mCache.getRegistry());
+        mProximity = new ProximityIndex(ProximityIndex.ORDER_RSSI);
+        mTracker = new BeaconTracker();
+        mTracker.setListener(new BeaconTracker.Listener() {
+            @Override
+            public void onBeaconUpdated(WimotoClimate beacon, boolean isNew) {
+                mFilter.setTxPower(beacon.getAddress(), beacon.getTxPower());
+                mDirty = true;
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /*
+     * Told on the worker thread about every device dropped from the cache.
+     * Must return quickly, e.g. by posting to the UI thread.
+     */
+    public void setEvictionListener(DeviceCache.Listener listener) {
+        mEvictionListener = listener;
+    }
+
+    /*
+     * Told about every advert the worker drains, for duty-cycle decisions
+     */
+    public void setScanScheduler(ScanScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /*
+     * Record every decoded reading, kept past eviction until the history
+     * expires it; set before start()
+     */
+    public void setHistory(SensorHistory history) {
+        mTracker.setHistory(history);
+    }
+
+    /*
+     * Persist every decoded reading; set before start() and close the
+     * log only after stop()
+     */
+    public void setReadingLog(ReadingLog log) {
+        mTracker.setReadingLog(log);
+    }
+
+    /*
+     * Upload every decoded reading; set before start() and close the
+     * uploader only after stop()
+     */
+    public void setUploader(ReadingUploader uploader) {
+        mTracker.setUploader(uploader);
+    }
+
+    /*
+     * Order snapshots by ProximityIndex.ORDER_RSSI (the default) or
+     * ORDER_DISTANCE; set before start()
+     */
+    public void setProximityOrder(int order) {
+        mProximity = new ProximityIndex(order);
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) return;
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DecodePipeline");
+        mWorker.setDaemon(true);
+        mWorker.setPriority(Thread.NORM_PRIORITY - 1);
+        mWorker.start();
+    }
+
+    /*
+     * Stops the worker and waits for it; anything still queued is discarded
+     */
+    public synchronized void stop() {
+        Thread worker = mWorker;
+        if (worker == null) return;
+        mRunning = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWorker = null;
+    }
+
+    /* Producer side, on the scan callback thread */
+
+    @Override
+    public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        if (offer(timestamp, address, deviceName, rssi, data, offset, length)) {
+            wake();
+        }
+    }
+
+    /*
+     * Queue without waking the worker, for a batch of results; call
+     * flush() once after the last one
+     */
+    public boolean offer(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        mMetrics.increment(PipelineMetrics.ADVERTS_RECEIVED);
+        if (mQueue.offer(timestamp, address, deviceName, rssi, data, offset, length)) return true;
+        mMetrics.increment(PipelineMetrics.ADVERTS_DROPPED);
+        return false;
+    }
+
+    public void flush() {
+        wake();
+    }
+
+    private void wake() {
+        if (mWaiting) {
+            LockSupport.unpark(mWorker);
+        }
+    }
+
+    /* Consumer side, on the UI thread */
+
+    /*
+     * Takes the latest snapshot, or null if nothing changed since the
+     * last call
+     */
+    public BeaconSnapshot takeSnapshot() {
+        BeaconSnapshot snapshot = mLatest.getAndSet(null);
+        if (snapshot != null) {
+            mMetrics.record(PipelineMetrics.STAGE_HANDLER, System.nanoTime() - mPublishedAt);
+        }
+        if (mDirty) {
+            //Changes were held back while this one was outstanding
+            LockSupport.unpark(mWorker);
+        }
+        return snapshot;
+    }
+
+    /* Worker */
+
+    private final AdvertSink mStage = new AdvertSink() {
+        @Override
+        public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+                byte[] data, int offset, int length) {
+            //Duplicates still carry a signal sample
+            int slot = mCache.touch(address, timestamp);
+            boolean added = slot != DeviceRegistry.NO_SLOT && mCache.wasAdded();
+            if (slot != DeviceRegistry.NO_SLOT) {
+                if (added) mFilter.reset(slot);
+                mFilter.update(slot, rssi, timestamp);
+                mProximity.update(slot, mProximity.getOrder() == ProximityIndex.ORDER_RSSI
+                        ? mFilter.getRssi(slot) : mFilter.getDistance(slot));
+            }
+            int result = mDeduplicator == null ? AdvertDeduplicator.RESULT_NEW
+                    : mDeduplicator.check(address, rssi, data, offset, length);
+
+            ScanScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                scheduler.onAdvert(added);
+            }
+            //Only once the scheduler has it; see getProcessedCount()
+            mProcessed++;
+
+            switch (result) {
+                case AdvertDeduplicator.RESULT_DUPLICATE:
+                    mMetrics.increment(PipelineMetrics.ADVERTS_DUPLICATE);
+                    return;
+                case AdvertDeduplicator.RESULT_RSSI_CHANGED:
+                    mMetrics.increment(PipelineMetrics.ADVERTS_SIGNAL_ONLY);
+                    mBatch.addSignal(timestamp, address, rssi);
+                    return;
+            }
+            if (mBatch.decode(timestamp, address, deviceName, rssi, data, offset, length)) {
+                mMetrics.increment(PipelineMetrics.ADVERTS_DECODED);
+            } else {
+                mMetrics.increment(PipelineMetrics.ADVERTS_UNDECODED);
+                mUndecoded++;
+            }
+        }
+    };
+
+    private void loop() {
+        while (mRunning) {
+            long start = System.nanoTime();
+            int drained = mQueue.drain(mStage, DRAIN_LIMIT);
+            if (drained > 0) {
+                mTracker.update(mBatch);
+                mBatch.clear();
+                mMetrics.record(PipelineMetrics.STAGE_DECODE, System.nanoTime() - start);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= mNextExpiry) {
+                mCache.expire(now);
+                mNextExpiry = now + EXPIRY_INTERVAL;
+            }
+            SensorHistory history = mTracker.getHistory();
+            if (history != null && now >= mNextHistoryExpiry) {
+                history.expire(now);
+                mNextHistoryExpiry = now + HISTORY_EXPIRY_INTERVAL;
+            }
+
+            if (mDirty && mLatest.get() == null) {
+                publish();
+            }
+
+            if (drained == 0) {
+                //Flag first, so a producer arriving after the checks unparks us.
+                //Both this and the queue's tail are volatile, so either we see
+                //its advert or it sees the flag.
+                mWaiting = true;
+                if (mRunning && mQueue.isEmpty() && !(mDirty && mLatest.get() == null)) {
+                    if (mCache.size() == 0) {
+                        LockSupport.park(this);
+                    } else {
+                        //Wake anyway to expire devices that fell silent
+                        LockSupport.parkNanos(this, EXPIRY_INTERVAL * 1000000L);
+                    }
+                }
+                mWaiting = false;
+            }
+        }
+    }
+
+    /*
+     * Called by the cache before the slot is freed
+     */
+    private void evict(int slot, String address, int reason) {
+        //Anything still batched for the device would bring it back
+        if (!mBatch.isEmpty()) {
+            mTracker.update(mBatch);
+            mBatch.clear();
+        }
+        mTracker.remove(address);
+        if (mDeduplicator != null) mDeduplicator.forget(address);
+        mFilter.reset(slot);
+        mProximity.remove(slot);
+        mEvicted++;
+        mMetrics.increment(PipelineMetrics.DEVICES_EVICTED);
+        mDirty = true;
+
+        DeviceCache.Listener listener = mEvictionListener;
+        if (listener != null) {
+            listener.onDeviceEvicted(slot, address, reason);
+        }
+    }
+
+    private void publish() {
+        mDirty = false;
+        mPublishedAt = System.nanoTime();
+        mLatest.set(new BeaconSnapshot(mPublished + 1, mTracker.getBeacons(), mFilter,
+                mProximity, mQueue.getDroppedCount()));
+        mPublished++;
+        mMetrics.increment(PipelineMetrics.SNAPSHOTS_PUBLISHED);
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSnapshotAvailable();
+        }
+    }
+
+    /* Metrics */
+
+    /*
+     * Safe to read and record into from any thread
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public AdvertDeduplicator getDeduplicator() {
+        return mDeduplicator;
+    }
+
+    /*
+     * Owned by the worker; tune it before start()
+     */
+    public RssiFilterEngine getRssiFilter() {
+        return mFilter;
+    }
+
+    /*
+     * Owned by the worker; read it there
+     */
+    public DeviceCache getDeviceCache() {
+        return mCache;
+    }
+
+    /*
+     * Owned by the worker; read it there, or use the snapshot ordering
+     */
+    public ProximityIndex getProximityIndex() {
+        return mProximity;
+    }
+
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueue.getCapacity();
+    }
+
+    public long getAcceptedCount() {
+        return mQueue.getOfferedCount();
+    }
+
+    public long getDroppedCount() {
+        return mQueue.getDroppedCount();
+    }
+
+    /*
+     * Adverts the worker has taken off the queue. Once this reaches an
+     * earlier getAcceptedCount(), the scan scheduler has been told about
+     * every advert accepted up to then.
+     */
+    public long getProcessedCount() {
+        return mProcessed;
+    }
+
+    public long getUndecodedCount() {
+        return mUndecoded;
+    }
+
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    /*
+     * Devices dropped for silence or to make room
+     */
+    public long getEvictedCount() {
+        return mEvicted;
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.bluetoothgatt;
+
+/**
+ * DecoderRegistry
+ * Maps 16-bit service UUIDs to the decoder for the product family that
+ * advertises them, so every profile is decoded from a single pass over the
+ * AD structures and a table lookup rather than a chain of checks.
+ *
+ * The UUID is taken from a service data structure when one is present, with
+ * the payload following it. Otherwise the first registered UUID from the
+ * 16-bit service list selects the decoder and the payload is the Wimoto
+ * manufacturer data, which is how the units broadcast in Sensor Mode.
+ * Adverts whose UUID list did not fit are matched on their model name.
+ *
+ * Registration is not synchronized; once populated the registry can be
+ * shared between threads, each bringing its own SensorReading.
+ */
+public class DecoderRegistry {
+
+    private static final int EMPTY = -1;
+
+    private static DecoderRegistry sDefault;
+
+    /*
+     * Registry populated with every Wimoto product family
+     */
+    public static synchronized DecoderRegistry getDefault() {
+        if (sDefault == null) {
+            DecoderRegistry registry = new DecoderRegistry();
+            registry.register(WimotoProfile.CLIMATE_TEMP_SERVICE, WimotoProfile.CLIMATE, WimotoDecoders.CLIMATE);
+            registry.register(WimotoProfile.CLIMATE_LIGHT_SERVICE, WimotoProfile.CLIMATE, WimotoDecoders.CLIMATE);
+            registry.register(WimotoProfile.CLIMATE_HUM_SERVICE, WimotoProfile.CLIMATE, WimotoDecoders.CLIMATE);
+            registry.register(WimotoProfile.GROW_TEMP_SERVICE, WimotoProfile.GROW, WimotoDecoders.GROW);
+            registry.register(WimotoProfile.GROW_LIGHT_SERVICE, WimotoProfile.GROW, WimotoDecoders.GROW);
+            registry.register(WimotoProfile.GROW_MOISTURE_SERVICE, WimotoProfile.GROW, WimotoDecoders.GROW);
+            registry.register(WimotoProfile.SENTRY_ACCEL_SERVICE, WimotoProfile.SENTRY, WimotoDecoders.SENTRY);
+            registry.register(WimotoProfile.SENTRY_MOTION_SERVICE, WimotoProfile.SENTRY, WimotoDecoders.SENTRY);
+            registry.register(WimotoProfile.THERMO_THERMOPILE_SERVICE, WimotoProfile.THERMO, WimotoDecoders.THERMO);
+            registry.register(WimotoProfile.THERMO_PROBE_SERVICE, WimotoProfile.THERMO, WimotoDecoders.THERMO);
+            registry.register(WimotoProfile.WATER_LEAK_SERVICE, WimotoProfile.WATER, WimotoDecoders.WATER);
+            registry.registerName("Wimoto_Climate", WimotoProfile.CLIMATE_TEMP_SERVICE);
+            registry.registerName("Wimoto_Grow", WimotoProfile.GROW_TEMP_SERVICE);
+            registry.registerName("Wimoto_Sentry", WimotoProfile.SENTRY_ACCEL_SERVICE);
+            registry.registerName("Wimoto_Thermo", WimotoProfile.THERMO_THERMOPILE_SERVICE);
+            registry.registerName("Wimoto_Leak", WimotoProfile.WATER_LEAK_SERVICE);
+            sDefault = registry;
+        }
+        return sDefault;
+    }
+
+    //Open addressing table, linear probing, power of two capacity
+    private int[] mKeys;
+    private int[] mProfiles;
+    private AdvertDecoder[] mDecoders;
+    private int mSize;
+
+    //Model name fallback, only consulted when no UUID matched
+    private byte[][] mNames = new byte[0][];
+    private int[] mNameUuids = new int[0];
+
+    public DecoderRegistry() {
+        allocate(32);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mProfiles = new int[capacity];
+        mDecoders = new AdvertDecoder[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mKeys[i] = EMPTY;
+        }
+    }
+
+    public void register(int uuid, int profile, AdvertDecoder decoder) {
+        if (uuid < 0 || uuid > 0xFFFF) {
+            throw new IllegalArgumentException("Not a 16-bit UUID: " + uuid);
+        }
+        //Keep the load factor at or below one half
+        if ((mSize + 1) * 2 > mKeys.length) {
+            int[] keys = mKeys;
+            int[] profiles = mProfiles;
+            AdvertDecoder[] decoders = mDecoders;
+            allocate(keys.length * 2);
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) put(keys[i], profiles[i], decoders[i]);
+            }
+        }
+        put(uuid, profile, decoder);
+    }
+
+    /*
+     * Route adverts carrying this device name to the decoder registered
+     * for uuid
+     */
+    public void registerName(String name, int uuid) {
+        int count = mNames.length;
+        byte[][] names = new byte[count + 1][];
+        int[] uuids = new int[count + 1];
+        System.arraycopy(mNames, 0, names, 0, count);
+        System.arraycopy(mNameUuids, 0, uuids, 0, count);
+        names[count] = name.getBytes();
+        uuids[count] = uuid;
+        mNames = names;
+        mNameUuids = uuids;
+    }
+
+    private void put(int uuid, int profile, AdvertDecoder decoder) {
+        int mask = mKeys.length - 1;
+        int slot = hash(uuid) & mask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != uuid) {
+            slot = (slot + 1) & mask;
+        }
+        if (mKeys[slot] == EMPTY) mSize++;
+        mKeys[slot] = uuid;
+        mProfiles[slot] = profile;
+        mDecoders[slot] = decoder;
+    }
+
+    /*
+     * Table slot for the UUID, or -1 if no decoder is registered
+     */
+    private int indexOf(int uuid) {
+        if (uuid < 0) return -1;
+        int mask = mKeys.length - 1;
+        int slot = hash(uuid) & mask;
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == uuid) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(int uuid) {
+        //The low bits of the Wimoto UUIDs are clustered, so spread them
+        int h = uuid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public boolean isRegistered(int uuid) {
+        return indexOf(uuid) >= 0;
+    }
+
+    public int getProfile(int uuid) {
+        int slot = indexOf(uuid);
+        return slot < 0 ? WimotoProfile.UNKNOWN : mProfiles[slot];
+    }
+
+    /*
+     * Decode a full scan record into out. Returns false if no registered
+     * profile was found or its payload was short.
+     */
+    public boolean decode(byte[] scanRecord, SensorReading out) {
+        return decode(scanRecord, 0, scanRecord.length, out);
+    }
+
+    public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+        out.clear();
+        AdCursor cursor = out.mCursor.reset(data, offset, length);
+
+        int serviceSlot = -1;
+        int serviceUuid = -1;
+        int serviceOffset = 0;
+        int serviceLength = 0;
+        int listSlot = -1;
+        int listUuid = -1;
+        int vendorOffset = -1;
+        int vendorLength = 0;
+        int nameSlot = -1;
+        int nameUuid = -1;
+
+        //Single pass over the AD structures
+        while (cursor.next()) {
+            switch (cursor.getType()) {
+                case AdRecord.TYPE_SERVICEDATA:
+                    if (serviceSlot < 0) {
+                        int uuid = cursor.getServiceDataUuid();
+                        int slot = indexOf(uuid);
+                        if (slot >= 0) {
+                            serviceSlot = slot;
+                            serviceUuid = uuid;
+                            serviceOffset = cursor.getServiceDataOffset();
+                            serviceLength = cursor.getServiceDataLength();
+                        }
+                    }
+                    break;
+                case AdRecord.TYPE_UUID16:
+                case AdRecord.TYPE_UUID16_INC:
+                    for (int i = 0, count = cursor.getUuid16Count(); i < count && listSlot < 0; i++) {
+                        int uuid = cursor.getUuid16(i);
+                        listSlot = indexOf(uuid);
+                        if (listSlot >= 0) listUuid = uuid;
+                    }
+                    break;
+                case AdRecord.TYPE_MANUFACTURER:
+                    if (cursor.getManufacturerId() == WimotoProfile.COMPANY_ID) {
+                        vendorOffset = cursor.getManufacturerDataOffset();
+                        vendorLength = cursor.getManufacturerDataLength();
+                    }
+                    break;
+                case AdRecord.TYPE_TRANSMITPOWER:
+                    out.setTxPower(cursor.getTxPower());
+                    break;
+                case AdRecord.TYPE_NAME:
+                case AdRecord.TYPE_NAME_SHORT:
+                    for (int i = 0; i < mNames.length && nameSlot < 0; i++) {
+                        if (cursor.nameEquals(mNames[i])) {
+                            nameUuid = mNameUuids[i];
+                            nameSlot = indexOf(nameUuid);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        if (serviceSlot >= 0) {
+            out.setSource(mProfiles[serviceSlot], serviceUuid);
+            return mDecoders[serviceSlot].decode(data, serviceOffset, serviceLength, out);
+        }
+        if (listSlot >= 0 && vendorOffset >= 0) {
+            out.setSource(mProfiles[listSlot], listUuid);
+            return mDecoders[listSlot].decode(data, vendorOffset, vendorLength, out);
+        }
+        if (nameSlot >= 0 && vendorOffset >= 0) {
+            out.setSource(mProfiles[nameSlot], nameUuid);
+            return mDecoders[nameSlot].decode(data, vendorOffset, vendorLength, out);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.bluetoothgatt;
+
+import java.util.Arrays;
+
+/**
+ * DeviceCache
+ * Bounds the set of devices being tracked. Each advert touches its device,
+ * recording when it was last seen; devices silent for the time to live
+ * are evicted, and past the size limit the least recently seen device
+ * makes way for a new one. Every eviction is reported so trackers, views
+ * and stores can drop their own state for the slot.
+ *
+ * Devices are DeviceRegistry slots. Recency is a doubly linked list over
+ * slot arrays, so a touch is O(1). Expiry runs on a timer wheel of
+ * WHEEL_SIZE buckets: a device sits in the bucket of the deadline it had
+ * when scheduled and is only checked when the wheel reaches it, being
+ * rescheduled then if it was seen again meanwhile. Touches never move a
+ * device between buckets, and each expire() costs O(1) per bucket passed
+ * plus the devices found in them.
+ *
+ * The cache is not synchronized.
+ */
+public class DeviceCache {
+
+    public interface Listener {
+        /*
+         * Called before the slot is freed, so the registry still maps it
+         * to the device's address
+         */
+        void onDeviceEvicted(int slot, String address, int reason);
+    }
+
+    /* Not heard within the time to live */
+    public static final int REASON_EXPIRED = 0;
+    /* Least recently seen when the cache was full */
+    public static final int REASON_CAPACITY = 1;
+    /* Removed by the owner */
+    public static final int REASON_REMOVED = 2;
+
+    public static final int DEFAULT_MAX_DEVICES = 1024;
+    public static final long DEFAULT_TIME_TO_LIVE = 120000;
+
+    private static final int WHEEL_SIZE = 64;
+    private static final int NONE = -1;
+
+    private final DeviceRegistry mRegistry;
+    private final int mMaxDevices;
+    private final long mTimeToLive;
+    private final long mTickMillis;
+    private Listener mListener;
+
+    //Recency list, most recent at the head
+    private int mHead = NONE;
+    private int mTail = NONE;
+
+    //Timer wheel buckets, each a singly linked list through mWheelNext
+    private final int[] mWheel;
+    //Next tick the wheel hasn't processed
+    private long mCursor = -1;
+
+    //Per-slot state
+    private long[] mLastSeen;
+    private int[] mNewer;
+    private int[] mOlder;
+    private int[] mWheelNext;
+
+    private long mExpired;
+    private long mDisplaced;
+    //Whether the last touch() handed out a slot
+    private boolean mAdded;
+
+    public DeviceCache() {
+        this(DEFAULT_MAX_DEVICES, DEFAULT_TIME_TO_LIVE);
+    }
+
+    public DeviceCache(int maxDevices, long timeToLive) {
+        if (maxDevices <= 0) throw new IllegalArgumentException("maxDevices " + maxDevices);
+        if (timeToLive <= 0) throw new IllegalArgumentException("timeToLive " + timeToLive);
+        mRegistry = new DeviceRegistry(Math.min(maxDevices, 64));
+        mMaxDevices = maxDevices;
+        mTimeToLive = timeToLive;
+        //Half the wheel spans one time to live, so most devices land on it once
+        mTickMillis = Math.max(1, timeToLive / (WHEEL_SIZE / 2));
+        mWheel = new int[WHEEL_SIZE];
+        Arrays.fill(mWheel, NONE);
+
+        int capacity = Math.min(maxDevices, 64);
+        mLastSeen = new long[capacity];
+        mNewer = new int[capacity];
+        mOlder = new int[capacity];
+        mWheelNext = new int[capacity];
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /*
+     * Slots are shared with any per-device state indexed by this registry
+     */
+    public DeviceRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /*
+     * Record an advert from the device and return its slot, or
+     * DeviceRegistry.NO_SLOT if the address isn't a MAC. A new device may
+     * displace the least recently seen one, and its slot may be the one
+     * handed out; check wasAdded() before trusting other state for it.
+     */
+    public int touch(String address, long now) {
+        int slot = mRegistry.getSlot(address);
+        mAdded = false;
+        if (slot != DeviceRegistry.NO_SLOT) {
+            if (now > mLastSeen[slot]) mLastSeen[slot] = now;
+            if (mHead != slot) {
+                unlinkRecent(slot);
+                linkRecent(slot);
+            }
+            return slot;
+        }
+
+        //Nothing to make room for if the address can't be registered
+        if (MacAddress.pack(address) == MacAddress.INVALID) return DeviceRegistry.NO_SLOT;
+        if (mRegistry.size() >= mMaxDevices) {
+            mDisplaced++;
+            evict(mTail, REASON_CAPACITY);
+        }
+        slot = mRegistry.register(address);
+        if (slot == DeviceRegistry.NO_SLOT) return slot;
+        if (slot >= mLastSeen.length) grow(slot + 1);
+        mAdded = true;
+        mLastSeen[slot] = now;
+        linkRecent(slot);
+        if (mCursor < 0) mCursor = now / mTickMillis;
+        schedule(slot);
+        return slot;
+    }
+
+    /*
+     * Evict every device not seen within the time to live; returns how
+     * many went
+     */
+    public int expire(long now) {
+        if (mCursor < 0) return 0;
+        long nowTick = now / mTickMillis;
+        int evicted = 0;
+        //A full turn visits every bucket, however long it's been
+        long last = Math.min(nowTick, mCursor + WHEEL_SIZE - 1);
+        for (long tick = mCursor; tick <= last; tick++) {
+            int bucket = (int) (tick % WHEEL_SIZE);
+            int slot = mWheel[bucket];
+            mWheel[bucket] = NONE;
+            while (slot != NONE) {
+                int next = mWheelNext[slot];
+                if (mLastSeen[slot] + mTimeToLive <= now) {
+                    mExpired++;
+                    //Already off the wheel, so evict() needn't unlink it
+                    mWheelNext[slot] = NONE;
+                    evict(slot, REASON_EXPIRED, false);
+                    evicted++;
+                } else {
+                    schedule(slot);
+                }
+                slot = next;
+            }
+        }
+        //Stay on the current tick; later touches can still land in it
+        mCursor = Math.max(mCursor, nowTick);
+        return evicted;
+    }
+
+    /*
+     * Drop a device now, reporting it as REASON_REMOVED
+     */
+    public boolean remove(String address) {
+        int slot = mRegistry.getSlot(address);
+        if (slot == DeviceRegistry.NO_SLOT) return false;
+        evict(slot, REASON_REMOVED);
+        return true;
+    }
+
+    /*
+     * Whether the last touch() registered its device, so state kept
+     * elsewhere for that slot is stale or unset
+     */
+    public boolean wasAdded() {
+        return mAdded;
+    }
+
+    public long getLastSeen(int slot) {
+        return mLastSeen[slot];
+    }
+
+    public int size() {
+        return mRegistry.size();
+    }
+
+    public int getMaxDevices() {
+        return mMaxDevices;
+    }
+
+    public long getTimeToLive() {
+        return mTimeToLive;
+    }
+
+    /*
+     * Devices that timed out
+     */
+    public long getExpiredCount() {
+        return mExpired;
+    }
+
+    /*
+     * Devices pushed out by newer ones while the cache was full
+     */
+    public long getDisplacedCount() {
+        return mDisplaced;
+    }
+
+    /* Internals */
+
+    private void evict(int slot, int reason) {
+        evict(slot, reason, true);
+    }
+
+    private void evict(int slot, int reason, boolean onWheel) {
+        if (mListener != null) {
+            mListener.onDeviceEvicted(slot, mRegistry.getAddress(slot), reason);
+        }
+        unlinkRecent(slot);
+        if (onWheel) unschedule(slot);
+        mRegistry.remove(mRegistry.getMac(slot));
+    }
+
+    private void schedule(int slot) {
+        long deadlineTick = (mLastSeen[slot] + mTimeToLive) / mTickMillis;
+        //Never behind the cursor, or it would wait a whole turn
+        int bucket = (int) (Math.max(deadlineTick, mCursor) % WHEEL_SIZE);
+        mWheelNext[slot] = mWheel[bucket];
+        mWheel[bucket] = slot;
+    }
+
+    /*
+     * Walks the device's bucket; only used for evictions off the wheel's
+     * schedule, which are rare
+     */
+    private void unschedule(int slot) {
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            int previous = NONE;
+            for (int s = mWheel[bucket]; s != NONE; s = mWheelNext[s]) {
+                if (s != slot) {
+                    previous = s;
+                    continue;
+                }
+                if (previous == NONE) {
+                    mWheel[bucket] = mWheelNext[s];
+                } else {
+                    mWheelNext[previous] = mWheelNext[s];
+                }
+                return;
+            }
+        }
+    }
+
+    private void linkRecent(int slot) {
+        mNewer[slot] = NONE;
+        mOlder[slot] = mHead;
+        if (mHead != NONE) mNewer[mHead] = slot;
+        mHead = slot;
+        if (mTail == NONE) mTail = slot;
+    }
+
+    private void unlinkRecent(int slot) {
+        int newer = mNewer[slot];
+        int older = mOlder[slot];
+        if (newer != NONE) {
+            mOlder[newer] = older;
+        } else {
+            mHead = older;
+        }
+        if (older != NONE) {
+            mNewer[older] = newer;
+        } else {
+            mTail = newer;
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, mLastSeen.length * 2);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+        mNewer = Arrays.copyOf(mNewer, capacity);
+        mOlder = Arrays.copyOf(mOlder, capacity);
+        mWheelNext = Arrays.copyOf(mWheelNext, capacity);
+    }
+}
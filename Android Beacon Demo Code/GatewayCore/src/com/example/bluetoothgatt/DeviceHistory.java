@@ -0,0 +1,80 @@
+package com.example.bluetoothgatt;
+
+/**
+ * DeviceHistory
+ * Readings from one device at every SensorHistory tier. Recording happens
+ * on the tracker's thread while readers may be elsewhere, so access goes
+ * through the per-device lock; a reader should copy what it needs rather
+ * than walk the tiers entry by entry.
+ */
+public class DeviceHistory {
+
+    private final String mAddress;
+    private final HistoryTier[] mTiers;
+    private final float[] mSample;
+    private long mLastTime;
+
+    DeviceHistory(String address, int rawCapacity, int minuteCapacity, int hourCapacity) {
+        mAddress = address;
+        mTiers = new HistoryTier[SensorHistory.TIER_COUNT];
+        mTiers[SensorHistory.TIER_RAW] =
+                new HistoryTier(rawCapacity, SensorHistory.SERIES_COUNT, 0);
+        mTiers[SensorHistory.TIER_MINUTE] =
+                new HistoryTier(minuteCapacity, SensorHistory.SERIES_COUNT, 60 * 1000L);
+        mTiers[SensorHistory.TIER_HOUR] =
+                new HistoryTier(hourCapacity, SensorHistory.SERIES_COUNT, 60 * 60 * 1000L);
+        mSample = new float[SensorHistory.SERIES_COUNT];
+    }
+
+    synchronized void record(long time, float temperature, float light, float humidity, int rssi) {
+        mSample[SensorHistory.SERIES_TEMPERATURE] = temperature;
+        mSample[SensorHistory.SERIES_LIGHT] = light;
+        mSample[SensorHistory.SERIES_HUMIDITY] = humidity;
+        mSample[SensorHistory.SERIES_RSSI] = rssi;
+        for (int t = 0; t < mTiers.length; t++) {
+            mTiers[t].add(time, mSample);
+        }
+        mLastTime = time;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public synchronized long getLastTime() {
+        return mLastTime;
+    }
+
+    public synchronized int size(int tier) {
+        return mTiers[tier].size();
+    }
+
+    /*
+     * See HistoryTier.copy
+     */
+    public synchronized int copy(int tier, int series, long from, long[] times, float[] values) {
+        return mTiers[tier].copy(series, from, times, values);
+    }
+
+    /*
+     * Most recent mean of a series at the given tier, NaN if empty
+     */
+    public synchronized float getLatest(int tier, int series) {
+        HistoryTier history = mTiers[tier];
+        int size = history.size();
+        return size == 0 ? Float.NaN : history.getMean(series, size - 1);
+    }
+
+    /*
+     * Direct access for a caller already holding this object's lock
+     */
+    public HistoryTier getTier(int tier) {
+        return mTiers[tier];
+    }
+
+    synchronized void clear() {
+        for (int t = 0; t < mTiers.length; t++) {
+            mTiers[t].clear();
+        }
+    }
+}
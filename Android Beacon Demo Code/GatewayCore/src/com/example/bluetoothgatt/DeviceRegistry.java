@@ -0,0 +1,225 @@
+package com.example.bluetoothgatt;
+
+import java.util.Arrays;
+
+/**
+ * DeviceRegistry
+ * Assigns each device a dense integer slot, keyed by its MAC address
+ * packed into a long (see MacAddress), so per-device state can live in
+ * plain arrays indexed by slot.
+ *
+ * The map is open addressing with linear probing over primitive arrays:
+ * a lookup hashes a long and compares longs, with no String hashing or
+ * boxing. Slots stay fixed while a device is registered; a removed
+ * device's slot is handed out again to a later one, so owners of slot
+ * indexed state must reset it on reuse.
+ *
+ * The registry is not synchronized.
+ */
+public class DeviceRegistry {
+
+    public static final int NO_SLOT = -1;
+
+    /* Table entry with no device */
+    private static final int EMPTY = -1;
+
+    //Hash table: packed address and slot, EMPTY where unused
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+
+    //Per-slot state
+    private long[] mMacs;
+    private String[] mAddresses;
+    private boolean[] mUsed;
+
+    private int mSize;
+    private int mSlotCount;
+    //Freed slots, reused last in first out
+    private int[] mFree;
+    private int mFreeCount;
+
+    public DeviceRegistry() {
+        this(64);
+    }
+
+    public DeviceRegistry(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        int table = Integer.highestOneBit(capacity * 2 - 1) * 2;
+        mKeys = new long[table];
+        mValues = new int[table];
+        Arrays.fill(mValues, EMPTY);
+        mMask = table - 1;
+
+        mMacs = new long[capacity];
+        mAddresses = new String[capacity];
+        mUsed = new boolean[capacity];
+        mFree = new int[capacity];
+    }
+
+    /*
+     * The device's slot, registering it if it's new
+     */
+    public int register(long mac) {
+        int index = find(mac);
+        if (mValues[index] != EMPTY) return mValues[index];
+
+        int slot = mFreeCount > 0 ? mFree[--mFreeCount] : newSlot();
+        mKeys[index] = mac;
+        mValues[index] = slot;
+        mMacs[slot] = mac;
+        mAddresses[slot] = null;
+        mUsed[slot] = true;
+        mSize++;
+        //Keep the table at most half full
+        if (mSize * 2 > mKeys.length) rehash(mKeys.length * 2);
+        return slot;
+    }
+
+    /*
+     * Register by "AA:BB:CC:DD:EE:FF" address, keeping the string for
+     * getAddress(). Returns NO_SLOT if it doesn't parse.
+     */
+    public int register(String address) {
+        long mac = MacAddress.pack(address);
+        if (mac == MacAddress.INVALID) return NO_SLOT;
+        int slot = register(mac);
+        if (mAddresses[slot] == null) mAddresses[slot] = address;
+        return slot;
+    }
+
+    public int getSlot(long mac) {
+        return mValues[find(mac)];
+    }
+
+    public int getSlot(String address) {
+        long mac = MacAddress.pack(address);
+        return mac == MacAddress.INVALID ? NO_SLOT : getSlot(mac);
+    }
+
+    /*
+     * Unregister a device, freeing its slot for reuse. Returns the slot it
+     * had, or NO_SLOT.
+     */
+    public int remove(long mac) {
+        int index = find(mac);
+        int slot = mValues[index];
+        if (slot == EMPTY) return NO_SLOT;
+
+        //Shift later entries of the probe run back over the hole
+        int hole = index;
+        int next = (hole + 1) & mMask;
+        while (mValues[next] != EMPTY) {
+            int home = hash(mKeys[next]) & mMask;
+            //Move it unless its home lies cyclically after the hole
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mValues[hole] = EMPTY;
+
+        mUsed[slot] = false;
+        mAddresses[slot] = null;
+        mFree[mFreeCount++] = slot;
+        mSize--;
+        return slot;
+    }
+
+    public boolean isRegistered(int slot) {
+        return slot >= 0 && slot < mSlotCount && mUsed[slot];
+    }
+
+    public long getMac(int slot) {
+        return mMacs[slot];
+    }
+
+    /*
+     * The address the slot was registered with, formatted from the packed
+     * form if it was registered by long
+     */
+    public String getAddress(int slot) {
+        String address = mAddresses[slot];
+        if (address == null) {
+            address = MacAddress.format(mMacs[slot]);
+            mAddresses[slot] = address;
+        }
+        return address;
+    }
+
+    /*
+     * Registered devices
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /*
+     * One past the highest slot handed out; size per-slot arrays to this
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, EMPTY);
+        Arrays.fill(mAddresses, 0, mSlotCount, null);
+        Arrays.fill(mUsed, 0, mSlotCount, false);
+        mSize = 0;
+        mSlotCount = 0;
+        mFreeCount = 0;
+    }
+
+    /* Table */
+
+    /*
+     * Index of the device's entry, or of the empty entry where it would go
+     */
+    private int find(long mac) {
+        int index = hash(mac) & mMask;
+        while (mValues[index] != EMPTY && mKeys[index] != mac) {
+            index = (index + 1) & mMask;
+        }
+        return index;
+    }
+
+    /*
+     * MurmurHash3 finalizer; vendor prefixes make the raw bits clump
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int newSlot() {
+        if (mSlotCount == mMacs.length) {
+            int capacity = mSlotCount * 2;
+            mMacs = Arrays.copyOf(mMacs, capacity);
+            mAddresses = Arrays.copyOf(mAddresses, capacity);
+            mUsed = Arrays.copyOf(mUsed, capacity);
+            mFree = Arrays.copyOf(mFree, capacity);
+        }
+        return mSlotCount++;
+    }
+
+    private void rehash(int tableSize) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        mKeys = new long[tableSize];
+        mValues = new int[tableSize];
+        Arrays.fill(mValues, EMPTY);
+        mMask = tableSize - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == EMPTY) continue;
+            int index = find(keys[i]);
+            mKeys[index] = keys[i];
+            mValues[index] = values[i];
+        }
+    }
+}
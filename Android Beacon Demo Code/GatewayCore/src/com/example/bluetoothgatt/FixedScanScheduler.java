@@ -0,0 +1,34 @@
+package com.example.bluetoothgatt;
+
+/**
+ * FixedScanScheduler
+ * The original behaviour: the same window and pause every cycle.
+ */
+public class FixedScanScheduler implements ScanScheduler {
+
+    private final long mWindow;
+    private final long mInterval;
+
+    public FixedScanScheduler(long window, long interval) {
+        mWindow = window;
+        mInterval = interval;
+    }
+
+    @Override
+    public long onWindowStart(long now) {
+        return mWindow;
+    }
+
+    @Override
+    public void onAdvert(boolean newDevice) {
+    }
+
+    @Override
+    public long onWindowEnd(long now) {
+        return mInterval;
+    }
+
+    @Override
+    public void setPowerState(int powerState) {
+    }
+}
@@ -0,0 +1,407 @@
+package com.example.bluetoothgatt;
+
+/**
+ * FleetGenerator
+ * A synthetic fleet of Wimoto units, for load testing the ingest path
+ * without a radio. Each advert is a 62-byte scan record in the layout the
+ * units broadcast: flags, the 16-bit service UUID, the shortened name and
+ * the manufacturer data carrying the readings, so it decodes exactly as a
+ * live one would.
+ *
+ * Devices advertise in turn at a fixed aggregate rate on a simulated
+ * clock, each reading wandering from its starting value by a random walk.
+ * A fraction of adverts can be corrupted the ways a noisy site corrupts
+ * them: cut short, with a broken AD length, from another vendor or for an
+ * unknown service.
+ *
+ * Output is seeded, so a run is repeatable. Adverts are built in one
+ * reused buffer and addresses are formatted once per device, so
+ * generating allocates nothing. The generator is not synchronized.
+ */
+public class FleetGenerator {
+
+    public static final int RECORD_LENGTH = 62;
+    public static final int MAX_DEVICES = 1 << 20;
+
+    public static final int MALFORMED_NONE = 0;
+    /* Scan record ends inside the payload */
+    public static final int MALFORMED_TRUNCATED = 1;
+    /* Manufacturer AD length runs past the record */
+    public static final int MALFORMED_LENGTH = 2;
+    /* Another company's manufacturer data */
+    public static final int MALFORMED_COMPANY = 3;
+    /* A service UUID no decoder knows */
+    public static final int MALFORMED_SERVICE = 4;
+    private static final int MALFORMED_KINDS = 4;
+
+    private static final int[] ALL_PROFILES = {
+            WimotoProfile.CLIMATE, WimotoProfile.GROW, WimotoProfile.SENTRY,
+            WimotoProfile.THERMO, WimotoProfile.WATER
+    };
+
+    /* Flags (3) + UUID list (4) + shortened name (2 + 10) + manufacturer header (4) */
+    private static final int UUID_OFFSET = 5;
+    public static final int NAME_LENGTH = 10;
+    private static final int MANUFACTURER_OFFSET = 19;
+    public static final int PAYLOAD_OFFSET = 23;
+
+    /* Raw readings for 15-30C and 30-70%RH */
+    private static final int TEMP_LOW = 23069;
+    private static final int TEMP_HIGH = 28660;
+    private static final int HUMIDITY_LOW = 18874;
+    private static final int HUMIDITY_HIGH = 39846;
+
+    private final int mDeviceCount;
+    private final byte[] mProfile;
+    private final String[] mAddress;
+    private final byte[] mBaseRssi;
+    //Three channels per device
+    private final int[] mValue;
+
+    private final byte[] mRecord;
+    private long mRandom;
+
+    private long mStartTime = 1420070400000L;
+    private double mRate;
+    private float mDrift = 1f;
+    private double mMalformedRate;
+
+    private long mSequence;
+    private long mMalformed;
+
+    public FleetGenerator(int devices, long seed) {
+        this(devices, ALL_PROFILES, seed);
+    }
+
+    /*
+     * Devices take the given profiles in turn
+     */
+    public FleetGenerator(int devices, int[] profiles, long seed) {
+        if (devices <= 0 || devices > MAX_DEVICES) {
+            throw new IllegalArgumentException("devices " + devices);
+        }
+        mDeviceCount = devices;
+        mProfile = new byte[devices];
+        mAddress = new String[devices];
+        mBaseRssi = new byte[devices];
+        mValue = new int[devices * 3];
+        mRecord = new byte[RECORD_LENGTH];
+        mRandom = seed ^ 0x9E3779B97F4A7C15L;
+        if (mRandom == 0) mRandom = 1;
+        //One advert per device per second
+        mRate = devices;
+
+        for (int i = 0; i < devices; i++) {
+            int profile = profiles[i % profiles.length];
+            mProfile[i] = (byte) profile;
+            //Locally administered prefix, device index in the low bytes
+            long mac = 0xC2A000000000L | ((nextLong() & 0xFF) << 24) | i;
+            mAddress[i] = MacAddress.format(mac);
+            mBaseRssi[i] = (byte) -(45 + nextInt(50));
+            initialValues(i, profile);
+        }
+    }
+
+    /*
+     * Simulated time of the first advert, in milliseconds since the epoch
+     */
+    public FleetGenerator setStartTime(long timestamp) {
+        mStartTime = timestamp;
+        return this;
+    }
+
+    /*
+     * Adverts per second across the whole fleet
+     */
+    public FleetGenerator setRate(double advertsPerSecond) {
+        if (advertsPerSecond <= 0) throw new IllegalArgumentException("rate " + advertsPerSecond);
+        mRate = advertsPerSecond;
+        return this;
+    }
+
+    /*
+     * Scale of the per-advert random walk; 0 holds every reading still
+     */
+    public FleetGenerator setDrift(float drift) {
+        mDrift = drift;
+        return this;
+    }
+
+    /*
+     * Fraction of adverts, from 0 to 1, to corrupt
+     */
+    public FleetGenerator setMalformedRate(double rate) {
+        mMalformedRate = rate;
+        return this;
+    }
+
+    /*
+     * Deliver the next advert to the sink and return the kind of
+     * corruption applied, MALFORMED_NONE for a good one
+     */
+    public int next(AdvertSink sink) {
+        int device = (int) (mSequence % mDeviceCount);
+        long timestamp = mStartTime + (long) (mSequence * 1000 / mRate);
+        mSequence++;
+
+        int profile = mProfile[device];
+        drift(device, profile);
+        int length = build(device, profile);
+
+        int malformed = MALFORMED_NONE;
+        if (mMalformedRate > 0 && nextDouble() < mMalformedRate) {
+            malformed = 1 + nextInt(MALFORMED_KINDS);
+            length = corrupt(malformed, length);
+            mMalformed++;
+        }
+
+        int rssi = mBaseRssi[device] + nextInt(9) - 4;
+        sink.onAdvert(timestamp, mAddress[device], null, rssi, mRecord, 0, length);
+        return malformed;
+    }
+
+    /*
+     * Deliver count adverts
+     */
+    public void generate(AdvertSink sink, long count) {
+        for (long i = 0; i < count; i++) {
+            next(sink);
+        }
+    }
+
+    public int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    public String getAddress(int device) {
+        return mAddress[device];
+    }
+
+    public int getProfile(int device) {
+        return mProfile[device];
+    }
+
+    /*
+     * Simulated time of the next advert
+     */
+    public long getTime() {
+        return mStartTime + (long) (mSequence * 1000 / mRate);
+    }
+
+    public long getGeneratedCount() {
+        return mSequence;
+    }
+
+    public long getMalformedCount() {
+        return mMalformed;
+    }
+
+    /* Readings */
+
+    private void initialValues(int device, int profile) {
+        int base = device * 3;
+        switch (profile) {
+            case WimotoProfile.CLIMATE:
+                mValue[base] = TEMP_LOW + nextInt(TEMP_HIGH - TEMP_LOW);
+                mValue[base + 1] = nextInt(2000);
+                mValue[base + 2] = HUMIDITY_LOW + nextInt(HUMIDITY_HIGH - HUMIDITY_LOW);
+                break;
+            case WimotoProfile.GROW:
+                mValue[base] = TEMP_LOW + nextInt(TEMP_HIGH - TEMP_LOW);
+                mValue[base + 1] = nextInt(2000);
+                mValue[base + 2] = nextInt(1024);
+                break;
+            case WimotoProfile.SENTRY:
+                //Resting flat: x and y near 0g, z near 1g; the battery level
+                mValue[base] = nextInt(3);
+                mValue[base + 1] = nextInt(3);
+                mValue[base + 2] = 200 + nextInt(56);
+                break;
+            case WimotoProfile.THERMO:
+                mValue[base] = TEMP_LOW + nextInt(TEMP_HIGH - TEMP_LOW);
+                mValue[base + 1] = TEMP_LOW + nextInt(TEMP_HIGH - TEMP_LOW);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void drift(int device, int profile) {
+        if (mDrift == 0) return;
+        int base = device * 3;
+        switch (profile) {
+            case WimotoProfile.CLIMATE:
+                //About 0.05C, 5 lux and 0.1%RH a step
+                mValue[base] = walk(mValue[base], 20, 0, 0xFFFF);
+                mValue[base + 1] = walk(mValue[base + 1], 5, 0, 0xFFFF);
+                mValue[base + 2] = walk(mValue[base + 2], 50, 0, 0xFFFF);
+                break;
+            case WimotoProfile.GROW:
+                mValue[base] = walk(mValue[base], 20, 0, 0xFFFF);
+                mValue[base + 1] = walk(mValue[base + 1], 5, 0, 0xFFFF);
+                mValue[base + 2] = walk(mValue[base + 2], 2, 0, 1023);
+                break;
+            case WimotoProfile.SENTRY:
+                //Mostly still, with the odd knock
+                if (nextInt(64) == 0) {
+                    mValue[base] = nextInt(64);
+                    mValue[base + 1] = nextInt(64);
+                } else {
+                    mValue[base] = walk(mValue[base], 1, 0, 2);
+                    mValue[base + 1] = walk(mValue[base + 1], 1, 0, 2);
+                }
+                break;
+            case WimotoProfile.THERMO:
+                mValue[base] = walk(mValue[base], 20, 0, 0xFFFF);
+                mValue[base + 1] = walk(mValue[base + 1], 20, 0, 0xFFFF);
+                break;
+            case WimotoProfile.WATER:
+                //Leaks are rare and stick for a while
+                if (nextInt(10000) == 0) mValue[base] ^= 1;
+                break;
+        }
+    }
+
+    private int walk(int value, int step, int min, int max) {
+        int scaled = Math.round(step * mDrift);
+        if (scaled == 0) return value;
+        //Triangular noise around zero
+        int next = value + nextInt(scaled + 1) - nextInt(scaled + 1);
+        return next < min ? min : next > max ? max : next;
+    }
+
+    /* Scan records */
+
+    private int build(int device, int profile) {
+        byte[] record = mRecord;
+        int base = device * 3;
+        int uuid;
+        String name;
+        int payload;
+        switch (profile) {
+            case WimotoProfile.CLIMATE:
+                uuid = WimotoProfile.CLIMATE_TEMP_SERVICE;
+                name = "Wimoto_Cli";
+                putUint16(record, PAYLOAD_OFFSET, mValue[base]);
+                putUint16(record, PAYLOAD_OFFSET + 2, mValue[base + 1]);
+                putUint16(record, PAYLOAD_OFFSET + 4, mValue[base + 2]);
+                payload = 6;
+                break;
+            case WimotoProfile.GROW:
+                uuid = WimotoProfile.GROW_TEMP_SERVICE;
+                name = "Wimoto_Gro";
+                putUint16(record, PAYLOAD_OFFSET, mValue[base]);
+                putUint16(record, PAYLOAD_OFFSET + 2, mValue[base + 1]);
+                putUint16(record, PAYLOAD_OFFSET + 4, mValue[base + 2]);
+                payload = 6;
+                break;
+            case WimotoProfile.SENTRY:
+                uuid = WimotoProfile.SENTRY_ACCEL_SERVICE;
+                name = "Wimoto_Sen";
+                record[PAYLOAD_OFFSET] = (byte) mValue[base];
+                record[PAYLOAD_OFFSET + 1] = (byte) mValue[base + 1];
+                //Resting z axis reads 1g
+                record[PAYLOAD_OFFSET + 2] = 21;
+                record[PAYLOAD_OFFSET + 3] = (byte) (mValue[base] > 2 || mValue[base + 1] > 2 ? 1 : 0);
+                record[PAYLOAD_OFFSET + 4] = (byte) mValue[base + 2];
+                payload = 5;
+                break;
+            case WimotoProfile.THERMO:
+                uuid = WimotoProfile.THERMO_THERMOPILE_SERVICE;
+                name = "Wimoto_The";
+                putUint16(record, PAYLOAD_OFFSET, mValue[base]);
+                putUint16(record, PAYLOAD_OFFSET + 2, mValue[base + 1]);
+                payload = 4;
+                break;
+            default:
+                uuid = WimotoProfile.WATER_LEAK_SERVICE;
+                name = "Wimoto_Wat";
+                record[PAYLOAD_OFFSET] = (byte) mValue[base];
+                payload = 1;
+                break;
+        }
+        return writeRecord(record, uuid, name, payload);
+    }
+
+    /*
+     * Lay out a scan record around the payload bytes already at
+     * PAYLOAD_OFFSET: flags, the service UUID, a shortened name of
+     * NAME_LENGTH characters and the manufacturer header, then zeros to
+     * RECORD_LENGTH. Returns the record length.
+     */
+    public static int writeRecord(byte[] record, int uuid, String name, int payload) {
+        if (name.length() != NAME_LENGTH || payload > RECORD_LENGTH - PAYLOAD_OFFSET) {
+            throw new IllegalArgumentException(name + ", " + payload + " bytes");
+        }
+        int index = 0;
+        record[index++] = 2;
+        record[index++] = AdRecord.TYPE_FLAGS;
+        record[index++] = 0x06;
+
+        record[index++] = 3;
+        record[index++] = AdRecord.TYPE_UUID16;
+        record[index++] = (byte) uuid;
+        record[index++] = (byte) (uuid >> 8);
+
+        record[index++] = NAME_LENGTH + 1;
+        record[index++] = AdRecord.TYPE_NAME_SHORT;
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            record[index++] = (byte) name.charAt(i);
+        }
+
+        record[index++] = (byte) (payload + 3);
+        record[index++] = (byte) AdRecord.TYPE_MANUFACTURER;
+        record[index++] = (byte) WimotoProfile.COMPANY_ID;
+        record[index] = (byte) (WimotoProfile.COMPANY_ID >> 8);
+
+        //Controllers pad the record out with zeros
+        for (int i = PAYLOAD_OFFSET + payload; i < RECORD_LENGTH; i++) {
+            record[i] = 0;
+        }
+        return RECORD_LENGTH;
+    }
+
+    private int corrupt(int kind, int length) {
+        switch (kind) {
+            case MALFORMED_TRUNCATED:
+                //From inside the manufacturer header to one byte short of the payload
+                int payload = mRecord[MANUFACTURER_OFFSET] - 3;
+                return PAYLOAD_OFFSET - 2 + nextInt(payload + 2);
+            case MALFORMED_LENGTH:
+                mRecord[MANUFACTURER_OFFSET] = (byte) (RECORD_LENGTH + nextInt(64));
+                return length;
+            case MALFORMED_COMPANY:
+                mRecord[MANUFACTURER_OFFSET + 2] ^= (byte) (1 + nextInt(255));
+                return length;
+            default:
+                //Each family's UUIDs share a high byte, so flipping bits in the
+                //low one could land on a sibling service that still decodes
+                mRecord[UUID_OFFSET + 1] ^= (byte) (1 + nextInt(255));
+                return length;
+        }
+    }
+
+    private static void putUint16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /* xorshift64*, cheaper than Random and with no shared state */
+
+    private long nextLong() {
+        long x = mRandom;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        mRandom = x;
+        return x * 0x2545F4914F6CDD1DL;
+    }
+
+    private int nextInt(int bound) {
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    private double nextDouble() {
+        return (nextLong() >>> 11) * (1.0 / (1L << 53));
+    }
+}
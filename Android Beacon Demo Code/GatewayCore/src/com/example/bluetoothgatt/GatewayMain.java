@@ -0,0 +1,94 @@
+package com.example.bluetoothgatt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * GatewayMain
+ * Headless entry point: decodes one or more btsnoop HCI captures or
+ * ScanRecorder recordings (.wscan), one file per core, and prints the
+ * latest state of every unit heard.
+ *
+ * Recordings replay as fast as they decode unless --speed=N is given,
+ * where 1 is the pace they were recorded at.
+ *
+ * Usage: java -jar GatewayCore.jar [--speed=N] capture.btsnoop|scan.wscan [...]
+ */
+public class GatewayMain {
+
+    public static void main(String[] args) throws Exception {
+        double speed = ScanReplayer.SPEED_MAX;
+        List<String> paths = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--speed=")) {
+                speed = Double.parseDouble(arg.substring("--speed=".length()));
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: GatewayMain [--speed=N] <capture.btsnoop|scan.wscan> [...]");
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(paths.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<BeaconTracker>> results = new ArrayList<Future<BeaconTracker>>();
+
+        long start = System.nanoTime();
+        final double replaySpeed = speed;
+        for (final String path : paths) {
+            results.add(executor.submit(new Callable<BeaconTracker>() {
+                @Override
+                public BeaconTracker call() throws Exception {
+                    BeaconTracker tracker = new BeaconTracker();
+                    tracker.setDeduplicator(new AdvertDeduplicator());
+                    if (path.endsWith(".wscan")) {
+                        ScanReplayer replayer = new ScanReplayer(new File(path));
+                        try {
+                            replayer.setSpeed(replaySpeed).replay(tracker);
+                        } finally {
+                            replayer.close();
+                        }
+                        return tracker;
+                    }
+                    BtSnoopReader reader = new BtSnoopReader(new FileInputStream(path));
+                    try {
+                        reader.readAll(tracker);
+                    } finally {
+                        reader.close();
+                    }
+                    return tracker;
+                }
+            }));
+        }
+
+        //Later captures win for devices heard in more than one
+        BeaconTracker merged = new BeaconTracker();
+        long adverts = 0;
+        long suppressed = 0;
+        for (Future<BeaconTracker> result : results) {
+            BeaconTracker tracker = result.get();
+            adverts += tracker.getAdvertCount();
+            suppressed += tracker.getDeduplicator().getSuppressedCount();
+            for (WimotoClimate beacon : tracker.getBeacons()) {
+                merged.update(beacon);
+            }
+        }
+        executor.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        for (WimotoClimate beacon : merged.getBeacons()) {
+            System.out.println(String.format("%s %-8s %s", beacon.getAddress(),
+                    WimotoProfile.getName(beacon.getProfile()), beacon));
+        }
+        System.out.println(String.format("%d adverts (%d repeats suppressed), %d units in %.1f ms (%.0f adverts/s)",
+                adverts, suppressed, merged.size(), elapsed / 1e6, adverts / (elapsed / 1e9)));
+    }
+}
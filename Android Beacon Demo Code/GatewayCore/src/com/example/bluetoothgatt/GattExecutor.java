@@ -0,0 +1,24 @@
+package com.example.bluetoothgatt;
+
+/**
+ * GattExecutor
+ * The platform side of a GattScheduler. The scheduler only ever has one
+ * operation outstanding per device; the executor reports every outcome
+ * back through the scheduler's onConnected, onDisconnected and onComplete.
+ */
+public interface GattExecutor {
+
+    /*
+     * Open a connection and discover services; returns false if the
+     * attempt couldn't be started
+     */
+    boolean connect(String address);
+
+    void disconnect(String address);
+
+    /*
+     * Send one operation on a connected device; returns false if it
+     * couldn't be sent
+     */
+    boolean execute(String address, GattOperation operation);
+}
@@ -0,0 +1,133 @@
+package com.example.bluetoothgatt;
+
+import java.util.UUID;
+
+/**
+ * GattOperation
+ * One request for a GattScheduler to run on a device connection: a
+ * characteristic read or write, a descriptor write, or enabling
+ * notifications on a characteristic.
+ */
+public class GattOperation {
+
+    public static final int TYPE_READ = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    /* Enable notifications locally, then write the client configuration */
+    public static final int TYPE_SUBSCRIBE = 3;
+
+    /* Client Characteristic Configuration descriptor */
+    public static final UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_RETRIES = 1;
+
+    public interface Callback {
+        /*
+         * status is one of the GattScheduler STATUS_ values; value is the
+         * characteristic value read, or null
+         */
+        void onComplete(String address, GattOperation operation, int status, byte[] value);
+    }
+
+    private final int mType;
+    private final UUID mService;
+    private final UUID mCharacteristic;
+    private final UUID mDescriptor;
+    private final byte[] mValue;
+    private final Callback mCallback;
+
+    private long mTimeout = DEFAULT_TIMEOUT;
+    private int mRetries = DEFAULT_RETRIES;
+
+    //Scheduler bookkeeping
+    int mAttempts;
+    long mQueuedAt;
+    long mStartedAt;
+    long mDeadline;
+
+    private GattOperation(int type, UUID service, UUID characteristic, UUID descriptor,
+            byte[] value, Callback callback) {
+        mType = type;
+        mService = service;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mCallback = callback;
+    }
+
+    public static GattOperation read(UUID service, UUID characteristic, Callback callback) {
+        return new GattOperation(TYPE_READ, service, characteristic, null, null, callback);
+    }
+
+    public static GattOperation write(UUID service, UUID characteristic, byte[] value,
+            Callback callback) {
+        return new GattOperation(TYPE_WRITE, service, characteristic, null, value, callback);
+    }
+
+    public static GattOperation writeDescriptor(UUID service, UUID characteristic,
+            UUID descriptor, byte[] value, Callback callback) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, service, characteristic, descriptor,
+                value, callback);
+    }
+
+    public static GattOperation subscribe(UUID service, UUID characteristic, Callback callback) {
+        return new GattOperation(TYPE_SUBSCRIBE, service, characteristic, CLIENT_CONFIG,
+                new byte[] {0x01, 0x00}, callback);
+    }
+
+    /*
+     * Time allowed once the operation has been sent
+     */
+    public GattOperation setTimeout(long millis) {
+        mTimeout = millis;
+        return this;
+    }
+
+    /*
+     * Further attempts after a failure, timeout or lost connection
+     */
+    public GattOperation setRetries(int retries) {
+        mRetries = retries;
+        return this;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public UUID getService() {
+        return mService;
+    }
+
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public UUID getDescriptor() {
+        return mDescriptor;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public Callback getCallback() {
+        return mCallback;
+    }
+
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    public int getRetries() {
+        return mRetries;
+    }
+
+    /*
+     * Times this operation has been sent, including retries
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,522 @@
+package com.example.bluetoothgatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * GattScheduler
+ * Runs GATT operations across many devices over a bounded pool of
+ * connections. The Android stack allows one outstanding operation per
+ * connection, so each device has its own queue and only its head is ever
+ * in flight; different devices run side by side. Devices with work wait
+ * for a free connection slot in arrival order, and a connection with
+ * nothing left to do is released as soon as another device is waiting.
+ *
+ * An operation that fails, times out or loses its connection is retried
+ * up to its retry count. A timeout also drops the connection, since the
+ * stack won't accept another request until the stuck one resolves.
+ *
+ * Operations registered with subscribe() run at the start of every
+ * connection to their device, and that connection is held open and
+ * re-established whenever it drops, taking a slot of the pool until
+ * unsubscribe().
+ *
+ * The scheduler is not synchronized and keeps no clock of its own: every
+ * call takes the current time in milliseconds, and tick() must be called
+ * again by the time it returns.
+ */
+public class GattScheduler {
+
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_FAILED = 1;
+    public static final int STATUS_TIMEOUT = 2;
+    public static final int STATUS_DISCONNECTED = 3;
+    public static final int STATUS_CANCELLED = 4;
+
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+    /* Kept open this long after the last operation, if nobody is waiting */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+    /* Pause before reconnecting a subscribed device that dropped */
+    public static final long DEFAULT_RECONNECT_DELAY = 2000;
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_READY = 2;
+    private static final int STATE_DISCONNECTING = 3;
+
+    private static class Connection {
+        final String address;
+        final ArrayDeque<GattOperation> queue = new ArrayDeque<GattOperation>();
+        int state = STATE_WAITING;
+        GattOperation inFlight;
+        //Connect, disconnect or idle deadline; operations carry their own
+        long deadline;
+        //Run on every connection while subscribed; null when not
+        ArrayList<GattOperation> subscriptions;
+        //Earliest time a waiting subscribed device may reconnect
+        long reconnectAt;
+
+        Connection(String address) {
+            this.address = address;
+        }
+    }
+
+    private final GattExecutor mExecutor;
+    private final int mMaxConnections;
+    private long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long mReconnectDelay = DEFAULT_RECONNECT_DELAY;
+
+    private final HashMap<String, Connection> mConnections;
+    private final ArrayDeque<Connection> mWaiting;
+    private int mActive;
+    private int mQueued;
+
+    //Metrics
+    private long mCompleted;
+    private long mFailed;
+    private long mTimeouts;
+    private long mRetries;
+    private long mConnects;
+    private long mLatencyTotal;
+    private long mLatencyMax;
+    private long mWaitTotal;
+
+    public GattScheduler(GattExecutor executor, int maxConnections) {
+        if (maxConnections <= 0) throw new IllegalArgumentException("maxConnections " + maxConnections);
+        mExecutor = executor;
+        mMaxConnections = maxConnections;
+        mConnections = new HashMap<String, Connection>();
+        mWaiting = new ArrayDeque<Connection>();
+    }
+
+    public void setConnectTimeout(long millis) {
+        mConnectTimeout = millis;
+    }
+
+    public void setIdleTimeout(long millis) {
+        mIdleTimeout = millis;
+    }
+
+    public void setReconnectDelay(long millis) {
+        mReconnectDelay = millis;
+    }
+
+    public void enqueue(String address, GattOperation operation, long now) {
+        Connection connection = getConnection(address);
+        operation.mQueuedAt = now;
+        operation.mAttempts = 0;
+        connection.queue.add(operation);
+        mQueued++;
+        pump(now);
+    }
+
+    /*
+     * Keep a connection to the device and run the operation now and at
+     * the start of every later connection
+     */
+    public void subscribe(String address, GattOperation operation, long now) {
+        Connection connection = getConnection(address);
+        if (connection.subscriptions == null) {
+            connection.subscriptions = new ArrayList<GattOperation>();
+        }
+        connection.subscriptions.add(operation);
+        if (connection.state == STATE_READY) {
+            operation.mQueuedAt = now;
+            operation.mAttempts = 0;
+            connection.queue.add(operation);
+            mQueued++;
+        }
+        pump(now);
+    }
+
+    /*
+     * Stop holding the device's connection; it's released once idle. The
+     * device keeps notifying until then.
+     */
+    public void unsubscribe(String address, long now) {
+        Connection connection = mConnections.get(address);
+        if (connection == null || connection.subscriptions == null) return;
+        connection.subscriptions = null;
+        if (connection.state == STATE_WAITING && connection.queue.isEmpty()) {
+            mWaiting.remove(connection);
+            mConnections.remove(address);
+        }
+        connection.deadline = now + mIdleTimeout;
+        pump(now);
+    }
+
+    public boolean isSubscribed(String address) {
+        Connection connection = mConnections.get(address);
+        return connection != null && connection.subscriptions != null;
+    }
+
+    private Connection getConnection(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new Connection(address);
+            mConnections.put(address, connection);
+            mWaiting.add(connection);
+        }
+        return connection;
+    }
+
+    /*
+     * Drop everything queued for a device and close its connection
+     */
+    public void cancel(String address, long now) {
+        Connection connection = mConnections.get(address);
+        if (connection == null) return;
+        connection.subscriptions = null;
+        if (connection.inFlight != null) {
+            GattOperation operation = connection.inFlight;
+            connection.inFlight = null;
+            finish(connection, operation, STATUS_CANCELLED, null, now);
+        }
+        failAll(connection, STATUS_CANCELLED);
+        if (connection.state == STATE_WAITING) {
+            mWaiting.remove(connection);
+            mConnections.remove(address);
+        } else if (connection.state != STATE_DISCONNECTING) {
+            release(connection, now);
+        }
+        pump(now);
+    }
+
+    public void cancelAll(long now) {
+        ArrayList<String> addresses = new ArrayList<String>(mConnections.keySet());
+        for (int i = 0; i < addresses.size(); i++) {
+            cancel(addresses.get(i), now);
+        }
+    }
+
+    /* Executor events */
+
+    public void onConnected(String address, long now) {
+        Connection connection = mConnections.get(address);
+        if (connection == null || connection.state != STATE_CONNECTING) return;
+        connection.state = STATE_READY;
+        connection.deadline = now + mIdleTimeout;
+        if (connection.subscriptions != null) {
+            //Ahead of other work, in the order they were subscribed
+            for (int i = connection.subscriptions.size() - 1; i >= 0; i--) {
+                GattOperation operation = connection.subscriptions.get(i);
+                if (connection.queue.contains(operation)) continue;
+                operation.mQueuedAt = now;
+                operation.mAttempts = 0;
+                connection.queue.addFirst(operation);
+                mQueued++;
+            }
+        }
+        pump(now);
+    }
+
+    public void onDisconnected(String address, long now) {
+        Connection connection = mConnections.get(address);
+        if (connection == null || connection.state == STATE_WAITING) return;
+        mActive--;
+
+        GattOperation operation = connection.inFlight;
+        connection.inFlight = null;
+        if (operation != null) {
+            retryOrFail(connection, operation, STATUS_DISCONNECTED, now);
+        } else if (connection.state == STATE_CONNECTING && !connection.queue.isEmpty()) {
+            //Failed to connect; charge it to the operation that asked
+            GattOperation head = connection.queue.poll();
+            mQueued--;
+            head.mAttempts++;
+            retryOrFail(connection, head, STATUS_DISCONNECTED, now);
+        }
+
+        if (connection.subscriptions != null) {
+            //Their operations are queued again once reconnected
+            connection.queue.removeAll(connection.subscriptions);
+            mQueued = recount();
+            connection.state = STATE_WAITING;
+            connection.reconnectAt = now + mReconnectDelay;
+            mWaiting.add(connection);
+        } else if (connection.queue.isEmpty()) {
+            mConnections.remove(address);
+        } else {
+            connection.state = STATE_WAITING;
+            mWaiting.add(connection);
+        }
+        pump(now);
+    }
+
+    public void onComplete(String address, int status, byte[] value, long now) {
+        Connection connection = mConnections.get(address);
+        if (connection == null || connection.inFlight == null) return;
+        GattOperation operation = connection.inFlight;
+        connection.inFlight = null;
+        connection.deadline = now + mIdleTimeout;
+
+        if (status == STATUS_SUCCESS) {
+            finish(connection, operation, STATUS_SUCCESS, value, now);
+        } else {
+            retryOrFail(connection, operation, status, now);
+        }
+        pump(now);
+    }
+
+    /*
+     * Applies timeouts and returns the time by which tick should next be
+     * called, or -1 if nothing is pending
+     */
+    public long tick(long now) {
+        //onDisconnected may remove entries as we go
+        ArrayList<Connection> connections = new ArrayList<Connection>(mConnections.values());
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get(i);
+            switch (connection.state) {
+                case STATE_CONNECTING:
+                case STATE_DISCONNECTING:
+                    if (now >= connection.deadline) {
+                        //The stack never answered; treat it as gone
+                        mExecutor.disconnect(connection.address);
+                        onDisconnected(connection.address, now);
+                    }
+                    break;
+                case STATE_READY:
+                    GattOperation operation = connection.inFlight;
+                    if (operation != null && now >= operation.mDeadline) {
+                        mTimeouts++;
+                        //Any retry goes out once the connection is back
+                        connection.inFlight = null;
+                        retryOrFail(connection, operation, STATUS_TIMEOUT, now);
+                        release(connection, now);
+                    } else if (operation == null && connection.queue.isEmpty()
+                            && connection.subscriptions == null && now >= connection.deadline) {
+                        release(connection, now);
+                    }
+                    break;
+            }
+        }
+        pump(now);
+        return nextDeadline(now);
+    }
+
+    /* Scheduling */
+
+    private void pump(long now) {
+        //Callbacks and a synchronous executor can enqueue or disconnect as
+        //we go, so walk a copy and skip connections dropped meanwhile
+        ArrayList<Connection> connections = new ArrayList<Connection>(mConnections.values());
+
+        //Start the next operation on every idle connection
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get(i);
+            if (mConnections.get(connection.address) != connection) continue;
+            if (connection.state == STATE_READY && connection.inFlight == null
+                    && !connection.queue.isEmpty()) {
+                start(connection, now);
+            }
+        }
+
+        //Free idle connections for devices still waiting
+        if (!mWaiting.isEmpty() && mActive >= mMaxConnections) {
+            for (int i = 0; i < connections.size(); i++) {
+                Connection connection = connections.get(i);
+                if (mActive - countDisconnecting() < mMaxConnections) break;
+                if (mConnections.get(connection.address) != connection) continue;
+                if (connection.state == STATE_READY && connection.inFlight == null
+                        && connection.queue.isEmpty() && connection.subscriptions == null) {
+                    release(connection, now);
+                }
+            }
+        }
+
+        //Subscribed devices that dropped are held back until their delay
+        int waiting = mWaiting.size();
+        while (mActive < mMaxConnections && waiting-- > 0) {
+            Connection connection = mWaiting.poll();
+            if (connection.reconnectAt > now) {
+                mWaiting.add(connection);
+                continue;
+            }
+            connection.reconnectAt = 0;
+            connection.state = STATE_CONNECTING;
+            connection.deadline = now + mConnectTimeout;
+            mActive++;
+            mConnects++;
+            if (!mExecutor.connect(connection.address)) {
+                onDisconnected(connection.address, now);
+                return;
+            }
+        }
+    }
+
+    private int recount() {
+        int count = 0;
+        for (Connection connection : mConnections.values()) {
+            count += connection.queue.size();
+        }
+        return count;
+    }
+
+    private int countDisconnecting() {
+        int count = 0;
+        for (Connection connection : mConnections.values()) {
+            if (connection.state == STATE_DISCONNECTING) count++;
+        }
+        return count;
+    }
+
+    private void start(Connection connection, long now) {
+        while (!connection.queue.isEmpty()) {
+            GattOperation operation = connection.queue.poll();
+            mQueued--;
+            operation.mAttempts++;
+            operation.mStartedAt = now;
+            operation.mDeadline = now + operation.getTimeout();
+            connection.inFlight = operation;
+            if (mExecutor.execute(connection.address, operation)) return;
+
+            connection.inFlight = null;
+            if (!charge(connection, operation, STATUS_FAILED, now)) continue;
+            //Retry later rather than spinning on a request the stack refuses
+            connection.queue.addFirst(operation);
+            mQueued++;
+            return;
+        }
+    }
+
+    private void retryOrFail(Connection connection, GattOperation operation, int status, long now) {
+        if (charge(connection, operation, status, now)) {
+            connection.queue.addFirst(operation);
+            mQueued++;
+        }
+    }
+
+    /*
+     * Returns true if the operation has attempts left; otherwise completes
+     * it with the given status
+     */
+    private boolean charge(Connection connection, GattOperation operation, int status, long now) {
+        if (operation.mAttempts <= operation.getRetries()) {
+            mRetries++;
+            return true;
+        }
+        finish(connection, operation, status, null, now);
+        return false;
+    }
+
+    private void finish(Connection connection, GattOperation operation, int status,
+            byte[] value, long now) {
+        if (status == STATUS_SUCCESS) {
+            mCompleted++;
+            long latency = now - operation.mStartedAt;
+            mLatencyTotal += latency;
+            if (latency > mLatencyMax) mLatencyMax = latency;
+            mWaitTotal += operation.mStartedAt - operation.mQueuedAt;
+        } else {
+            mFailed++;
+        }
+        GattOperation.Callback callback = operation.getCallback();
+        if (callback != null) {
+            callback.onComplete(connection.address, operation, status, value);
+        }
+    }
+
+    private void failAll(Connection connection, int status) {
+        GattOperation operation;
+        while ((operation = connection.queue.poll()) != null) {
+            mQueued--;
+            finish(connection, operation, status, null, 0);
+        }
+    }
+
+    private void release(Connection connection, long now) {
+        connection.state = STATE_DISCONNECTING;
+        connection.deadline = now + mConnectTimeout;
+        mExecutor.disconnect(connection.address);
+    }
+
+    private long nextDeadline(long now) {
+        long next = -1;
+        for (Connection connection : mConnections.values()) {
+            long deadline;
+            if (connection.state == STATE_WAITING) {
+                //Otherwise it goes as soon as a slot frees up
+                if (connection.reconnectAt <= now) continue;
+                deadline = connection.reconnectAt;
+            } else if (connection.state == STATE_READY) {
+                if (connection.inFlight != null) {
+                    deadline = connection.inFlight.mDeadline;
+                } else if (connection.queue.isEmpty() && connection.subscriptions == null) {
+                    deadline = connection.deadline;
+                } else {
+                    continue;
+                }
+            } else {
+                deadline = connection.deadline;
+            }
+            if (next < 0 || deadline < next) next = deadline;
+        }
+        return next;
+    }
+
+    /* Metrics */
+
+    /*
+     * Operations waiting to be sent, across all devices
+     */
+    public int getQueueDepth() {
+        return mQueued;
+    }
+
+    public int getQueueDepth(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? 0 : connection.queue.size();
+    }
+
+    /*
+     * Connections open or being opened
+     */
+    public int getActiveConnectionCount() {
+        return mActive;
+    }
+
+    public int getWaitingDeviceCount() {
+        return mWaiting.size();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    public long getConnectCount() {
+        return mConnects;
+    }
+
+    /*
+     * Mean time from sending an operation to its successful completion
+     */
+    public long getMeanLatency() {
+        return mCompleted == 0 ? 0 : mLatencyTotal / mCompleted;
+    }
+
+    public long getMaxLatency() {
+        return mLatencyMax;
+    }
+
+    /*
+     * Mean time a successful operation spent queued before it was sent
+     */
+    public long getMeanQueueWait() {
+        return mCompleted == 0 ? 0 : mWaitTotal / mCompleted;
+    }
+}
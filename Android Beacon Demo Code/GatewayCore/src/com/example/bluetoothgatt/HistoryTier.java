@@ -0,0 +1,214 @@
+package com.example.bluetoothgatt;
+
+/**
+ * HistoryTier
+ * One resolution of a device history: a fixed ring of timestamps and
+ * float values for each series, stored in flat primitive arrays so
+ * recording never allocates.
+ *
+ * The raw tier keeps every sample. A downsampled tier accumulates samples
+ * into an open bucket of bucketMillis and keeps the mean, min, max and
+ * sample count of each closed bucket; the open bucket is readable as the
+ * newest entry. Oldest entries are overwritten once the ring is full.
+ */
+public class HistoryTier {
+
+    private final long mBucketMillis;
+    private final int mCapacity;
+    private final int mSeriesCount;
+
+    private final long[] mTimes;
+    //Indexed [series * capacity + slot]
+    private final float[] mMean;
+    private final float[] mMin;
+    private final float[] mMax;
+    private final int[] mCounts;
+
+    private int mStart;
+    private int mSize;
+
+    //Bucket still collecting samples, downsampled tiers only
+    private long mOpenTime;
+    private int mOpenCount;
+    private final double[] mOpenSum;
+    private final float[] mOpenMin;
+    private final float[] mOpenMax;
+
+    /*
+     * bucketMillis 0 keeps every sample
+     */
+    HistoryTier(int capacity, int seriesCount, long bucketMillis) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity " + capacity);
+        mBucketMillis = bucketMillis;
+        mCapacity = capacity;
+        mSeriesCount = seriesCount;
+
+        mTimes = new long[capacity];
+        mMean = new float[capacity * seriesCount];
+        if (bucketMillis > 0) {
+            mMin = new float[capacity * seriesCount];
+            mMax = new float[capacity * seriesCount];
+            mCounts = new int[capacity];
+            mOpenSum = new double[seriesCount];
+            mOpenMin = new float[seriesCount];
+            mOpenMax = new float[seriesCount];
+        } else {
+            mMin = null;
+            mMax = null;
+            mCounts = null;
+            mOpenSum = null;
+            mOpenMin = null;
+            mOpenMax = null;
+        }
+    }
+
+    void add(long time, float[] values) {
+        if (mBucketMillis == 0) {
+            int slot = append(time);
+            for (int s = 0; s < mSeriesCount; s++) {
+                mMean[s * mCapacity + slot] = values[s];
+            }
+            return;
+        }
+
+        long bucket = time - time % mBucketMillis;
+        //A late sample for an earlier bucket is folded into the open one
+        if (mOpenCount > 0 && bucket > mOpenTime) {
+            close();
+        }
+        if (mOpenCount == 0) {
+            mOpenTime = bucket;
+            for (int s = 0; s < mSeriesCount; s++) {
+                mOpenSum[s] = 0;
+                mOpenMin[s] = Float.POSITIVE_INFINITY;
+                mOpenMax[s] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        for (int s = 0; s < mSeriesCount; s++) {
+            float v = values[s];
+            mOpenSum[s] += v;
+            if (v < mOpenMin[s]) mOpenMin[s] = v;
+            if (v > mOpenMax[s]) mOpenMax[s] = v;
+        }
+        mOpenCount++;
+    }
+
+    private void close() {
+        int slot = append(mOpenTime);
+        for (int s = 0; s < mSeriesCount; s++) {
+            int i = s * mCapacity + slot;
+            mMean[i] = (float) (mOpenSum[s] / mOpenCount);
+            mMin[i] = mOpenMin[s];
+            mMax[i] = mOpenMax[s];
+        }
+        mCounts[slot] = mOpenCount;
+        mOpenCount = 0;
+    }
+
+    private int append(long time) {
+        int slot;
+        if (mSize < mCapacity) {
+            slot = mStart + mSize;
+            if (slot >= mCapacity) slot -= mCapacity;
+            mSize++;
+        } else {
+            slot = mStart;
+            mStart = slot + 1 == mCapacity ? 0 : slot + 1;
+        }
+        mTimes[slot] = time;
+        return slot;
+    }
+
+    /* Entry i == mSize is the open bucket */
+    private boolean isOpen(int i) {
+        return i == mSize && mOpenCount > 0;
+    }
+
+    private int slot(int i) {
+        if (i < 0 || i > mSize || (i == mSize && mOpenCount == 0)) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size());
+        }
+        int slot = mStart + i;
+        return slot >= mCapacity ? slot - mCapacity : slot;
+    }
+
+    /*
+     * Entries oldest first, including the open bucket
+     */
+    public int size() {
+        return mOpenCount > 0 ? mSize + 1 : mSize;
+    }
+
+    public long getBucketMillis() {
+        return mBucketMillis;
+    }
+
+    /*
+     * Sample time, or the start of the bucket
+     */
+    public long getTime(int i) {
+        if (isOpen(i)) return mOpenTime;
+        return mTimes[slot(i)];
+    }
+
+    public float getMean(int series, int i) {
+        if (isOpen(i)) return (float) (mOpenSum[series] / mOpenCount);
+        return mMean[series * mCapacity + slot(i)];
+    }
+
+    public float getMin(int series, int i) {
+        if (isOpen(i)) return mOpenMin[series];
+        int slot = slot(i);
+        return mMin == null ? mMean[series * mCapacity + slot] : mMin[series * mCapacity + slot];
+    }
+
+    public float getMax(int series, int i) {
+        if (isOpen(i)) return mOpenMax[series];
+        int slot = slot(i);
+        return mMax == null ? mMean[series * mCapacity + slot] : mMax[series * mCapacity + slot];
+    }
+
+    /*
+     * Samples behind the entry, always 1 on the raw tier
+     */
+    public int getCount(int i) {
+        if (isOpen(i)) return mOpenCount;
+        int slot = slot(i);
+        return mCounts == null ? 1 : mCounts[slot];
+    }
+
+    /*
+     * Copies the means of one series from the given time on, oldest
+     * first, and returns how many entries were copied
+     */
+    public int copy(int series, long from, long[] times, float[] values) {
+        int size = size();
+        //Times only go backwards for late samples, which a scan from the end tolerates
+        int first = size;
+        while (first > 0 && getTime(first - 1) >= from) {
+            first--;
+        }
+        int count = Math.min(size - first, Math.min(times.length, values.length));
+        for (int k = 0; k < count; k++) {
+            times[k] = getTime(first + k);
+            values[k] = getMean(series, first + k);
+        }
+        return count;
+    }
+
+    void clear() {
+        mStart = 0;
+        mSize = 0;
+        mOpenCount = 0;
+    }
+
+    /*
+     * Array storage held by a tier of this shape
+     */
+    static long getFootprintBytes(int capacity, int seriesCount, boolean downsampled) {
+        //Time and mean, plus min, max and count when downsampled
+        long perEntry = 8 + 4 * seriesCount;
+        if (downsampled) perEntry += 4 + 8 * seriesCount;
+        return perEntry * capacity;
+    }
+}
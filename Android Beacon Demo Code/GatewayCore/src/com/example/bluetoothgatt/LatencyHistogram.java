@@ -0,0 +1,163 @@
+package com.example.bluetoothgatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ * Records durations in nanoseconds into log-linear buckets, in the manner
+ * of HdrHistogram: each power of two is split into SUB_BUCKETS equal
+ * buckets, so any value is held to within about 3% from a nanosecond up
+ * to MAX_VALUE, in a fixed 9KB.
+ *
+ * record() may be called from any number of threads at once; it takes no
+ * lock and allocates nothing. Snapshots are taken without stopping
+ * writers, so one may be a few samples behind on some buckets.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* About 18 minutes; longer samples are clamped */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount;
+    private final AtomicLong mTotal;
+    private final AtomicLong mMax;
+
+    public LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        mCount = new AtomicLong();
+        mTotal = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        if (nanos > MAX_VALUE) nanos = MAX_VALUE;
+        mCounts.incrementAndGet(indexOf(nanos));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(nanos);
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.get(), mMax.get());
+    }
+
+    /*
+     * Zero every bucket. Samples recorded meanwhile may be half counted.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /* Bucket layout */
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /*
+     * Smallest value held by the bucket
+     */
+    static long lowestOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    /*
+     * Largest value held by the bucket
+     */
+    static long highestOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return lowestOf(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * Snapshot
+     * An immutable copy of the histogram at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mTotal / mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /*
+         * The value at or below which the given percentage of samples
+         * fall, reported as the top of its bucket; 0 when empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) return Math.min(highestOf(i), mMax);
+            }
+            return mMax;
+        }
+
+        /*
+         * Samples recorded since an earlier snapshot of the same histogram
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] counts = new long[mCounts.length];
+            long count = 0;
+            long max = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Math.max(0, mCounts[i] - earlier.mCounts[i]);
+                count += counts[i];
+                if (counts[i] > 0) max = highestOf(i);
+            }
+            return new Snapshot(counts, count, mTotal - earlier.mTotal, Math.min(max, mMax));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.bluetoothgatt;
+
+/**
+ * LoggerDownloadEngine
+ * Pulls the whole data logger out of a Wimoto unit as fast as the link
+ * allows. Rather than the documented one byte per notification, the
+ * engine first negotiates a large MTU and a high connection priority, so
+ * each notification carries as many records as fit, then subscribes to
+ * the data characteristic and enables readout. Notifications are decoded
+ * as they stream in and records are handed to the listener one by one.
+ *
+ * The readout ends when the link reports it idle. If the link drops
+ * first, the engine stops in STATE_INTERRUPTED; starting it again on a
+ * new link resumes after the last record delivered.
+ *
+ * Calls are synchronized; the link callbacks and the listener run on the
+ * link's callback thread.
+ */
+public class LoggerDownloadEngine implements LoggerLink.Callback {
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_NEGOTIATING = 1;
+    public static final int STATE_SUBSCRIBING = 2;
+    public static final int STATE_STARTING = 3;
+    public static final int STATE_STREAMING = 4;
+    public static final int STATE_INTERRUPTED = 5;
+    public static final int STATE_COMPLETE = 6;
+    public static final int STATE_FAILED = 7;
+
+    /* Minimum ATT MTU, and the largest Android will negotiate */
+    public static final int DEFAULT_MTU = 23;
+    public static final int REQUESTED_MTU = 517;
+
+    public interface Listener {
+        void onRecord(LoggerRecord record);
+
+        void onComplete(long records);
+
+        /*
+         * The link dropped mid-transfer; start again on a new link to resume
+         */
+        void onInterrupted(long records);
+
+        void onFailed(String reason);
+    }
+
+    private final Listener mListener;
+    private final LoggerRecordDecoder mDecoder;
+    private final LoggerRecordDecoder.Listener mRecordListener;
+
+    private LoggerLink mLink;
+    private int mState = STATE_IDLE;
+    private int mMtu = DEFAULT_MTU;
+
+    //Metrics
+    private long mNotifications;
+    private int mResumes;
+
+    public LoggerDownloadEngine(Listener listener) {
+        mListener = listener;
+        mDecoder = new LoggerRecordDecoder();
+        mRecordListener = new LoggerRecordDecoder.Listener() {
+            @Override
+            public void onRecord(LoggerRecord record) {
+                mListener.onRecord(record);
+            }
+        };
+    }
+
+    /*
+     * Begin a download on a connected link, or resume an interrupted one
+     */
+    public synchronized void start(LoggerLink link) {
+        if (mState == STATE_INTERRUPTED) {
+            mResumes++;
+            mDecoder.resume(mDecoder.getDeliveredCount());
+        } else if (mState == STATE_IDLE || mState == STATE_COMPLETE || mState == STATE_FAILED) {
+            mDecoder.reset();
+            mNotifications = 0;
+            mResumes = 0;
+        } else {
+            throw new IllegalStateException("Download already running");
+        }
+
+        mLink = link;
+        mMtu = DEFAULT_MTU;
+        setState(STATE_NEGOTIATING);
+        link.setCallback(this);
+        if (!link.requestMtu(REQUESTED_MTU)) {
+            onMtuChanged(DEFAULT_MTU, false);
+        }
+    }
+
+    /* LoggerLink.Callback */
+
+    @Override
+    public synchronized void onMtuChanged(int mtu, boolean success) {
+        if (mState != STATE_NEGOTIATING) return;
+        //Carry on at the default MTU if the peer refused
+        mMtu = success ? mtu : DEFAULT_MTU;
+        mLink.requestHighPriority();
+
+        setState(STATE_SUBSCRIBING);
+        if (!mLink.enableNotifications()) {
+            fail("Could not subscribe to logger data");
+        }
+    }
+
+    @Override
+    public synchronized void onNotificationsEnabled(boolean success) {
+        if (mState != STATE_SUBSCRIBING) return;
+        if (!success) {
+            fail("Logger data subscription refused");
+            return;
+        }
+
+        setState(STATE_STARTING);
+        if (!mLink.write(LoggerLink.TARGET_READ_ENABLE, true)) {
+            fail("Could not enable logger readout");
+        }
+    }
+
+    @Override
+    public synchronized void onWriteComplete(int target, boolean success) {
+        if (mState != STATE_STARTING || target != LoggerLink.TARGET_READ_ENABLE) return;
+        if (!success) {
+            fail("Logger readout refused");
+            return;
+        }
+        setState(STATE_STREAMING);
+    }
+
+    @Override
+    public synchronized void onNotification(byte[] data, int offset, int length) {
+        //Data may overtake the write response
+        if (mState != STATE_STARTING && mState != STATE_STREAMING) return;
+        mNotifications++;
+        mDecoder.feed(data, offset, length, mRecordListener);
+        if (mDecoder.isMismatched()) {
+            mLink.write(LoggerLink.TARGET_READ_ENABLE, false);
+            fail("Logger contents changed since the interrupted download");
+        }
+    }
+
+    @Override
+    public synchronized void onTransferIdle() {
+        if (mState != STATE_STREAMING) return;
+        mLink.write(LoggerLink.TARGET_READ_ENABLE, false);
+        setState(STATE_COMPLETE);
+        mListener.onComplete(mDecoder.getDeliveredCount());
+    }
+
+    @Override
+    public synchronized void onLinkLost() {
+        if (mState == STATE_IDLE || mState >= STATE_INTERRUPTED) return;
+        setState(STATE_INTERRUPTED);
+        mListener.onInterrupted(mDecoder.getDeliveredCount());
+    }
+
+    private void fail(String reason) {
+        setState(STATE_FAILED);
+        mListener.onFailed(reason);
+    }
+
+    private void setState(int state) {
+        mState = state;
+    }
+
+    /* Metrics */
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized long getRecordCount() {
+        return mDecoder.getDeliveredCount();
+    }
+
+    public synchronized long getByteCount() {
+        return mDecoder.getByteCount();
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotifications;
+    }
+
+    public synchronized int getResumeCount() {
+        return mResumes;
+    }
+
+    /*
+     * Mean logger bytes carried per notification
+     */
+    public synchronized float getBytesPerNotification() {
+        return mNotifications == 0 ? 0f : (float) mDecoder.getByteCount() / mNotifications;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.bluetoothgatt;
+
+/**
+ * LoggerLink
+ * The GATT operations a logger download needs, so the engine can run over
+ * an Android connection or a simulated peer. Every request answers through
+ * the Callback, in order; a request that returns false was not started and
+ * gets no callback. Callbacks may come from more than one thread.
+ */
+public interface LoggerLink {
+
+    /* Characteristics written by the engine */
+    public static final int TARGET_LOGGER_ENABLE = 0;
+    public static final int TARGET_READ_ENABLE = 1;
+
+    public interface Callback {
+        void onMtuChanged(int mtu, boolean success);
+
+        void onNotificationsEnabled(boolean success);
+
+        void onWriteComplete(int target, boolean success);
+
+        /*
+         * Logger data; the array is only valid for the duration of the call
+         */
+        void onNotification(byte[] data, int offset, int length);
+
+        /*
+         * No logger data has arrived for a while during readout
+         */
+        void onTransferIdle();
+
+        void onLinkLost();
+    }
+
+    void setCallback(Callback callback);
+
+    boolean requestMtu(int mtu);
+
+    /*
+     * Shortest connection interval the peer allows; no callback
+     */
+    boolean requestHighPriority();
+
+    /*
+     * Subscribe to the logger data characteristic
+     */
+    boolean enableNotifications();
+
+    boolean write(int target, boolean enable);
+}
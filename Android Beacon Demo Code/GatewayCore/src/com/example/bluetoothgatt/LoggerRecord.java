@@ -0,0 +1,98 @@
+package com.example.bluetoothgatt;
+
+/**
+ * LoggerRecord
+ * One 16-byte entry read out of a Climate data logger. Instances are
+ * reused by LoggerRecordDecoder, so copy out anything kept past the
+ * callback.
+ *
+ * Layout, big-endian like the advertised readings:
+ *   0  year (2)   2 month   3 day   4 hour (2)   6 minute   7 second
+ *   8  temperature (2)   10 light (2)   12 humidity (4)
+ *
+ * The logger clock has no time zone; times are read as UTC.
+ */
+public class LoggerRecord {
+
+    public static final int SIZE = 16;
+
+    private long mTime;
+    private int mRawTemp;
+    private int mRawLight;
+    private int mRawHumidity;
+    private long mIndex;
+
+    void decode(byte[] data, int offset, long index) {
+        mTime = readTime(data, offset);
+        mRawTemp = WimotoDecoders.readUint16(data, offset + 8);
+        mRawLight = WimotoDecoders.readUint16(data, offset + 10);
+        //Only the low 16 bits carry the humidity reading
+        mRawHumidity = WimotoDecoders.readUint16(data, offset + 14);
+        mIndex = index;
+    }
+
+    /*
+     * The record's timestamp in milliseconds since the epoch
+     */
+    static long readTime(byte[] data, int offset) {
+        int year = WimotoDecoders.readUint16(data, offset);
+        int month = data[offset + 2] & 0xFF;
+        int day = data[offset + 3] & 0xFF;
+        int hour = WimotoDecoders.readUint16(data, offset + 4);
+        int minute = data[offset + 6] & 0xFF;
+        int second = data[offset + 7] & 0xFF;
+        return (daysFromCivil(year, month, day) * 86400L
+                + hour * 3600L + minute * 60L + second) * 1000L;
+    }
+
+    /*
+     * Days since 1970-01-01 in the proleptic Gregorian calendar, without
+     * going through Calendar
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) year--;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /*
+     * Position of this record in the logger, from 0
+     */
+    public long getIndex() {
+        return mIndex;
+    }
+
+    /*
+     * Milliseconds since the epoch
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getRawTemp() {
+        return mRawTemp;
+    }
+
+    public int getRawLight() {
+        return mRawLight;
+    }
+
+    public int getRawHumidity() {
+        return mRawHumidity;
+    }
+
+    public float getTemperature() {
+        return WimotoConversions.toCelsius(mRawTemp);
+    }
+
+    public int getLight() {
+        return WimotoConversions.toLux(mRawLight);
+    }
+
+    public float getHumidity() {
+        return WimotoConversions.toRelativeHumidity(mRawHumidity);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.bluetoothgatt;
+
+/**
+ * LoggerRecordDecoder
+ * Reassembles logger records from notifications of any size, from the
+ * legacy one byte per notification up to a full MTU, without allocating.
+ * Whole records inside a notification are decoded in place; only a record
+ * split across notifications is staged.
+ *
+ * For a resumed download the first records are skipped, and the last one
+ * delivered before the interruption is compared with what the logger
+ * sends again in its place, to catch a logger that was cleared or
+ * rewritten in between.
+ */
+public class LoggerRecordDecoder {
+
+    public interface Listener {
+        void onRecord(LoggerRecord record);
+    }
+
+    private final byte[] mPartial = new byte[LoggerRecord.SIZE];
+    private int mFill;
+
+    private final LoggerRecord mRecord = new LoggerRecord();
+    private final byte[] mLast = new byte[LoggerRecord.SIZE];
+    private boolean mHasLast;
+
+    //Records seen in the current readout, skipped or not
+    private long mIndex;
+    private long mSkip;
+    private boolean mMismatch;
+
+    private long mBytes;
+    private long mDelivered;
+
+    /*
+     * Start a new readout that continues after delivered records
+     */
+    public void resume(long delivered) {
+        mFill = 0;
+        mIndex = 0;
+        mSkip = delivered;
+        mMismatch = false;
+    }
+
+    /*
+     * Start over, forgetting everything delivered so far
+     */
+    public void reset() {
+        resume(0);
+        mHasLast = false;
+        mBytes = 0;
+        mDelivered = 0;
+    }
+
+    /*
+     * Returns the number of records delivered to the listener
+     */
+    public int feed(byte[] data, int offset, int length, Listener listener) {
+        mBytes += length;
+        int end = offset + length;
+        int delivered = 0;
+
+        //Finish a record split across notifications
+        if (mFill > 0) {
+            int take = Math.min(LoggerRecord.SIZE - mFill, length);
+            System.arraycopy(data, offset, mPartial, mFill, take);
+            mFill += take;
+            offset += take;
+            if (mFill < LoggerRecord.SIZE) return 0;
+            mFill = 0;
+            if (accept(mPartial, 0, listener)) delivered++;
+        }
+
+        while (end - offset >= LoggerRecord.SIZE) {
+            if (accept(data, offset, listener)) delivered++;
+            offset += LoggerRecord.SIZE;
+        }
+
+        if (offset < end) {
+            mFill = end - offset;
+            System.arraycopy(data, offset, mPartial, 0, mFill);
+        }
+        return delivered;
+    }
+
+    private boolean accept(byte[] data, int offset, Listener listener) {
+        long index = mIndex++;
+        if (index < mSkip) {
+            if (index == mSkip - 1 && mHasLast && !matchesLast(data, offset)) {
+                mMismatch = true;
+            }
+            return false;
+        }
+        if (mMismatch) return false;
+
+        System.arraycopy(data, offset, mLast, 0, LoggerRecord.SIZE);
+        mHasLast = true;
+        mRecord.decode(data, offset, index);
+        mDelivered++;
+        listener.onRecord(mRecord);
+        return true;
+    }
+
+    private boolean matchesLast(byte[] data, int offset) {
+        for (int i = 0; i < LoggerRecord.SIZE; i++) {
+            if (data[offset + i] != mLast[i]) return false;
+        }
+        return true;
+    }
+
+    /*
+     * True if the logger sent something other than the last record
+     * delivered where a resumed readout expected it; nothing further is
+     * delivered once this is set
+     */
+    public boolean isMismatched() {
+        return mMismatch;
+    }
+
+    /*
+     * Bytes of an incomplete record still waiting for the next notification
+     */
+    public int getPendingBytes() {
+        return mFill;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.bluetoothgatt;
+
+/**
+ * MacAddress
+ * Packs "AA:BB:CC:DD:EE:FF" device addresses into the low 48 bits of a
+ * long, most significant byte first, so they can be stored and compared
+ * as primitives.
+ */
+public final class MacAddress {
+
+    /* Returned by pack for anything that isn't a colon separated address */
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    public static long pack(String address) {
+        if (address == null || address.length() != 17) return INVALID;
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            int pos = i * 3;
+            int high = Character.digit(address.charAt(pos), 16);
+            int low = Character.digit(address.charAt(pos + 1), 16);
+            if (high < 0 || low < 0) return INVALID;
+            if (i < 5 && address.charAt(pos + 2) != ':') return INVALID;
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    public static String format(long packed) {
+        char[] text = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (packed >>> (8 * (5 - i))) & 0xFF;
+            text[i * 3] = HEX[b >> 4];
+            text[i * 3 + 1] = HEX[b & 0xF];
+            if (i < 5) text[i * 3 + 2] = ':';
+        }
+        return new String(text);
+    }
+}
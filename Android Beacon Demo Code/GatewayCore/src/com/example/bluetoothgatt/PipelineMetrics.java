@@ -0,0 +1,219 @@
+package com.example.bluetoothgatt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PipelineMetrics
+ * Counters and latency histograms for every stage between the radio and
+ * the screen: the scan callback, the decode worker, the hop to the main
+ * thread and the UI update. Each stage writes from its own thread;
+ * recording is lock-free and allocation-free, so it stays on in the field.
+ *
+ * snapshot() copies everything at once for display or export, and the
+ * difference of two snapshots gives the rates over an interval.
+ */
+public class PipelineMetrics {
+
+    /* Counters */
+    public static final int ADVERTS_RECEIVED = 0;
+    public static final int ADVERTS_DROPPED = 1;
+    public static final int ADVERTS_DECODED = 2;
+    public static final int ADVERTS_SIGNAL_ONLY = 3;
+    public static final int ADVERTS_DUPLICATE = 4;
+    public static final int ADVERTS_UNDECODED = 5;
+    public static final int SNAPSHOTS_PUBLISHED = 6;
+    public static final int DEVICES_EVICTED = 7;
+    public static final int SCAN_STARTS = 8;
+    public static final int SCAN_RESTARTS = 9;
+    public static final int SCAN_FAILURES = 10;
+    public static final int COUNTER_COUNT = 11;
+
+    /* Latency stages */
+    /* Time spent inside a scan callback */
+    public static final int STAGE_CALLBACK = 0;
+    /* Time to decode and apply one batch on the worker */
+    public static final int STAGE_DECODE = 1;
+    /* Time from posting to the main thread until the handler ran */
+    public static final int STAGE_HANDLER = 2;
+    /* Time to apply an update on the main thread */
+    public static final int STAGE_UI = 3;
+    public static final int STAGE_COUNT = 4;
+
+    /*
+     * ScanCallback.onScanFailed error codes run from 1, ALREADY_STARTED, to
+     * 6, SCANNING_TOO_FREQUENTLY; anything else is counted under 0
+     */
+    public static final int MAX_FAILURE_CODE = 6;
+
+    private static final String[] COUNTER_NAMES = {
+            "adverts_received", "adverts_dropped", "adverts_decoded", "adverts_signal_only",
+            "adverts_duplicate", "adverts_undecoded", "snapshots_published", "devices_evicted",
+            "scan_starts", "scan_restarts", "scan_failures"
+    };
+    private static final String[] STAGE_NAMES = {
+            "callback", "decode", "handler", "ui"
+    };
+
+    private final long mCreated;
+    private final AtomicLongArray mCounters;
+    private final AtomicLongArray mFailures;
+    private final LatencyHistogram[] mStages;
+
+    public PipelineMetrics() {
+        mCreated = System.currentTimeMillis();
+        mCounters = new AtomicLongArray(COUNTER_COUNT);
+        mFailures = new AtomicLongArray(MAX_FAILURE_CODE + 1);
+        mStages = new LatencyHistogram[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        if (delta != 0) mCounters.addAndGet(counter, delta);
+    }
+
+    public long get(int counter) {
+        return mCounters.get(counter);
+    }
+
+    public void onScanFailed(int errorCode) {
+        mCounters.incrementAndGet(SCAN_FAILURES);
+        mFailures.incrementAndGet(errorCode > 0 && errorCode <= MAX_FAILURE_CODE ? errorCode : 0);
+    }
+
+    public long getFailureCount(int errorCode) {
+        return mFailures.get(errorCode);
+    }
+
+    /*
+     * Record a stage duration measured with System.nanoTime()
+     */
+    public void record(int stage, long nanos) {
+        mStages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return mStages[stage];
+    }
+
+    public Snapshot snapshot() {
+        long[] counters = new long[COUNTER_COUNT];
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        long[] failures = new long[MAX_FAILURE_CODE + 1];
+        for (int i = 0; i <= MAX_FAILURE_CODE; i++) {
+            failures[i] = mFailures.get(i);
+        }
+        LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = mStages[i].snapshot();
+        }
+        return new Snapshot(System.currentTimeMillis() - mCreated, counters, failures, stages);
+    }
+
+    public static String getCounterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Snapshot
+     * Every counter and stage at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long mUptime;
+        private final long[] mCounters;
+        private final long[] mFailures;
+        private final LatencyHistogram.Snapshot[] mStages;
+
+        Snapshot(long uptime, long[] counters, long[] failures,
+                LatencyHistogram.Snapshot[] stages) {
+            mUptime = uptime;
+            mCounters = counters;
+            mFailures = failures;
+            mStages = stages;
+        }
+
+        /*
+         * Milliseconds covered, since the metrics were created or since
+         * the earlier snapshot for a difference
+         */
+        public long getUptime() {
+            return mUptime;
+        }
+
+        public long get(int counter) {
+            return mCounters[counter];
+        }
+
+        public long getFailureCount(int errorCode) {
+            return mFailures[errorCode];
+        }
+
+        public LatencyHistogram.Snapshot getStage(int stage) {
+            return mStages[stage];
+        }
+
+        /*
+         * What happened between an earlier snapshot and this one
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] counters = new long[COUNTER_COUNT];
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                counters[i] = mCounters[i] - earlier.mCounters[i];
+            }
+            long[] failures = new long[MAX_FAILURE_CODE + 1];
+            for (int i = 0; i <= MAX_FAILURE_CODE; i++) {
+                failures[i] = mFailures[i] - earlier.mFailures[i];
+            }
+            LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                stages[i] = mStages[i].since(earlier.mStages[i]);
+            }
+            return new Snapshot(mUptime - earlier.mUptime, counters, failures, stages);
+        }
+
+        /*
+         * One "name value" line per metric, latencies in microseconds,
+         * e.g. for a log line or a collector
+         */
+        public void export(StringBuilder out) {
+            out.append("uptime_ms ").append(mUptime).append('\n');
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                out.append(COUNTER_NAMES[i]).append(' ').append(mCounters[i]).append('\n');
+            }
+            for (int i = 0; i <= MAX_FAILURE_CODE; i++) {
+                if (mFailures[i] == 0) continue;
+                out.append("scan_failed_").append(i).append(' ').append(mFailures[i]).append('\n');
+            }
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                LatencyHistogram.Snapshot stage = mStages[i];
+                String name = STAGE_NAMES[i];
+                out.append(name).append("_count ").append(stage.getCount()).append('\n');
+                if (stage.getCount() == 0) continue;
+                out.append(name).append("_mean_us ").append(Math.round(stage.getMean() / 1000)).append('\n');
+                out.append(name).append("_p50_us ").append(stage.getValueAtPercentile(50) / 1000).append('\n');
+                out.append(name).append("_p99_us ").append(stage.getValueAtPercentile(99) / 1000).append('\n');
+                out.append(name).append("_p999_us ").append(stage.getValueAtPercentile(99.9) / 1000).append('\n');
+                out.append(name).append("_max_us ").append(stage.getMax() / 1000).append('\n');
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            export(out);
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.bluetoothgatt;
+
+import java.util.Arrays;
+
+/**
+ * ProximityIndex
+ * Devices ordered nearest first, either by smoothed RSSI or by estimated
+ * distance, kept up to date one advert at a time. Devices are identified
+ * by their RssiFilterEngine slot.
+ *
+ * Keys are quantized into fixed buckets (0.25dB, or 1% of distance) each
+ * holding a linked list of slots, with a Fenwick tree over the bucket
+ * counts. Moving a device costs O(log B) for B buckets, counting the
+ * devices within a limit is O(log B), and the nearest K come out in
+ * O(K + m log B) for the m occupied buckets visited. Devices in the same
+ * bucket come out in no particular order.
+ *
+ * Nothing allocates after construction except growing past the initial
+ * capacity. The index is not synchronized.
+ */
+public class ProximityIndex {
+
+    /* Strongest smoothed RSSI first */
+    public static final int ORDER_RSSI = 0;
+    /* Smallest estimated distance first; unknown distances come last */
+    public static final int ORDER_DISTANCE = 1;
+
+    private static final float RSSI_MAX = 20f;
+    private static final float RSSI_MIN = -128f;
+    private static final float RSSI_STEP = 0.25f;
+
+    /* log10 of metres, 1cm to 1km */
+    private static final float LOG_DISTANCE_MIN = -2f;
+    private static final float LOG_DISTANCE_MAX = 3f;
+    private static final float LOG_DISTANCE_STEP = 0.004f;
+
+    private static final int NONE = -1;
+
+    private final int mOrder;
+    private final int mBuckets;
+    //Fenwick tree over bucket counts, 1-based
+    private final int[] mTree;
+    private final int[] mHead;
+    private int mSize;
+
+    //Per-slot state
+    private int[] mBucket;
+    private int[] mNext;
+    private int[] mPrev;
+    private float[] mKey;
+
+    public ProximityIndex(int order) {
+        this(order, 64);
+    }
+
+    public ProximityIndex(int order, int initialCapacity) {
+        if (order == ORDER_RSSI) {
+            mBuckets = (int) ((RSSI_MAX - RSSI_MIN) / RSSI_STEP) + 1;
+        } else if (order == ORDER_DISTANCE) {
+            //One more for unknown distances
+            mBuckets = (int) ((LOG_DISTANCE_MAX - LOG_DISTANCE_MIN) / LOG_DISTANCE_STEP) + 2;
+        } else {
+            throw new IllegalArgumentException("Unknown order " + order);
+        }
+        mOrder = order;
+        mTree = new int[mBuckets + 1];
+        mHead = new int[mBuckets];
+        Arrays.fill(mHead, NONE);
+
+        int capacity = Math.max(1, initialCapacity);
+        mBucket = new int[capacity];
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        mKey = new float[capacity];
+        Arrays.fill(mBucket, NONE);
+    }
+
+    public int getOrder() {
+        return mOrder;
+    }
+
+    /*
+     * Insert or move a device. value is the smoothed RSSI in dBm or the
+     * distance in metres, depending on the order; NaN ranks last.
+     */
+    public void update(int slot, float value) {
+        if (slot >= mBucket.length) grow(slot + 1);
+        mKey[slot] = value;
+        int bucket = bucketOf(value);
+        int old = mBucket[slot];
+        if (old == bucket) return;
+        if (old != NONE) {
+            unlink(slot, old);
+        } else {
+            mSize++;
+        }
+        link(slot, bucket);
+    }
+
+    public void remove(int slot) {
+        if (slot >= mBucket.length || mBucket[slot] == NONE) return;
+        unlink(slot, mBucket[slot]);
+        mBucket[slot] = NONE;
+        mSize--;
+    }
+
+    public boolean contains(int slot) {
+        return slot < mBucket.length && mBucket[slot] != NONE;
+    }
+
+    /*
+     * The value last given for the slot
+     */
+    public float getKey(int slot) {
+        return mKey[slot];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mTree, 0);
+        Arrays.fill(mHead, NONE);
+        Arrays.fill(mBucket, NONE);
+        mSize = 0;
+    }
+
+    /*
+     * Writes up to k slots into out, nearest first, and returns how many
+     */
+    public int top(int k, int[] out) {
+        int limit = Math.min(k, Math.min(out.length, mSize));
+        int count = 0;
+        int bucket = nextOccupied(0);
+        while (count < limit && bucket != NONE) {
+            for (int slot = mHead[bucket]; slot != NONE && count < limit; slot = mNext[slot]) {
+                out[count++] = slot;
+            }
+            bucket = nextOccupied(bucket + 1);
+        }
+        return count;
+    }
+
+    /*
+     * Devices at least as close as the limit: an RSSI of at least limit,
+     * or a distance of at most limit. The limit's own bucket is counted
+     * in full.
+     */
+    public int countWithin(float limit) {
+        return prefix(bucketOf(limit));
+    }
+
+    /*
+     * Writes slots between the two limits into out, nearest first, and
+     * returns how many. For RSSI near is the stronger limit, e.g.
+     * range(-50, -70, out); for distance the smaller one.
+     */
+    public int range(float near, float far, int[] out) {
+        int first = bucketOf(near);
+        int last = bucketOf(far);
+        int count = 0;
+        int bucket = nextOccupied(first);
+        while (bucket != NONE && bucket <= last && count < out.length) {
+            for (int slot = mHead[bucket]; slot != NONE && count < out.length; slot = mNext[slot]) {
+                out[count++] = slot;
+            }
+            bucket = nextOccupied(bucket + 1);
+        }
+        return count;
+    }
+
+    /*
+     * Position of the device counting from 0 for the nearest bucket; devices
+     * sharing a bucket share a rank
+     */
+    public int getRank(int slot) {
+        if (!contains(slot)) return NONE;
+        int bucket = mBucket[slot];
+        return bucket == 0 ? 0 : prefix(bucket - 1);
+    }
+
+    /* Buckets */
+
+    private int bucketOf(float value) {
+        if (Float.isNaN(value)) return mBuckets - 1;
+        int bucket;
+        if (mOrder == ORDER_RSSI) {
+            float clamped = Math.max(RSSI_MIN, Math.min(RSSI_MAX, value));
+            bucket = (int) ((RSSI_MAX - clamped) / RSSI_STEP);
+            return Math.min(bucket, mBuckets - 1);
+        }
+        if (value <= 0) return 0;
+        float log = (float) Math.log10(value);
+        float clamped = Math.max(LOG_DISTANCE_MIN, Math.min(LOG_DISTANCE_MAX, log));
+        bucket = (int) ((clamped - LOG_DISTANCE_MIN) / LOG_DISTANCE_STEP);
+        //The last bucket is kept for unknown distances
+        return Math.min(bucket, mBuckets - 2);
+    }
+
+    private void link(int slot, int bucket) {
+        int head = mHead[bucket];
+        mNext[slot] = head;
+        mPrev[slot] = NONE;
+        if (head != NONE) mPrev[head] = slot;
+        mHead[bucket] = slot;
+        mBucket[slot] = bucket;
+        add(bucket, 1);
+    }
+
+    private void unlink(int slot, int bucket) {
+        int next = mNext[slot];
+        int prev = mPrev[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead[bucket] = next;
+        }
+        if (next != NONE) mPrev[next] = prev;
+        add(bucket, -1);
+    }
+
+    /*
+     * First bucket at or after from holding a device, or NONE
+     */
+    private int nextOccupied(int from) {
+        if (from >= mBuckets) return NONE;
+        int before = from == 0 ? 0 : prefix(from - 1);
+        if (before == mSize) return NONE;
+        return find(before + 1);
+    }
+
+    /* Fenwick tree */
+
+    private void add(int bucket, int delta) {
+        for (int i = bucket + 1; i <= mBuckets; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    /*
+     * Devices in buckets 0 to bucket inclusive
+     */
+    private int prefix(int bucket) {
+        int sum = 0;
+        for (int i = bucket + 1; i > 0; i -= i & -i) {
+            sum += mTree[i];
+        }
+        return sum;
+    }
+
+    /*
+     * Smallest bucket whose prefix count reaches target
+     */
+    private int find(int target) {
+        int position = 0;
+        int step = Integer.highestOneBit(mBuckets);
+        for (; step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= mBuckets && mTree[next] < target) {
+                position = next;
+                target -= mTree[next];
+            }
+        }
+        return position;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, mBucket.length * 2);
+        int old = mBucket.length;
+        mBucket = Arrays.copyOf(mBucket, capacity);
+        mNext = Arrays.copyOf(mNext, capacity);
+        mPrev = Arrays.copyOf(mPrev, capacity);
+        mKey = Arrays.copyOf(mKey, capacity);
+        Arrays.fill(mBucket, old, capacity, NONE);
+    }
+}
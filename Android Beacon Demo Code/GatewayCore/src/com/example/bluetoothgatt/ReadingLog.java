@@ -0,0 +1,478 @@
+package com.example.bluetoothgatt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * ReadingLog
+ * Append-only binary log of every decoded reading, written through
+ * memory-mapped segment files. Appending is a copy into the mapping, with
+ * no system call or allocation per record; the segment is forced to disk
+ * at most once per sync interval and on rollover.
+ *
+ * Each segment is preallocated, so unwritten records read as zeros, and
+ * starts with a header holding the record count as of the last sync.
+ * Every record carries a CRC32. After a crash only the records past that
+ * count are scanned, up to the first one whose checksum fails.
+ *
+ * Record layout, 40 bytes big-endian:
+ *   0  long   timestamp, milliseconds since the epoch (never 0)
+ *   8  long   device address, see MacAddress
+ *   16 byte   profile
+ *   17 byte   rssi
+ *   18 ushort raw temperature
+ *   20 ushort raw light
+ *   22 ushort raw humidity
+ *   24 float  temperature C
+ *   28 float  light lux
+ *   32 float  relative humidity
+ *   36 int    CRC32 of bytes 0-35
+ *
+ * A log has a single writer and is not synchronized.
+ */
+public class ReadingLog implements Closeable {
+
+    public static final int RECORD_SIZE = 40;
+
+    public interface Visitor {
+        /*
+         * The record is reused for the next call
+         */
+        void onRecord(Record record);
+    }
+
+    /**
+     * One record read back from the log
+     */
+    public static final class Record {
+        private long mTime;
+        private long mDevice;
+        private int mProfile;
+        private int mRssi;
+        private int mRawTemp;
+        private int mRawLight;
+        private int mRawHumidity;
+        private float mTemperature;
+        private float mLight;
+        private float mHumidity;
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public long getDevice() {
+            return mDevice;
+        }
+
+        public String getAddress() {
+            return MacAddress.format(mDevice);
+        }
+
+        public int getProfile() {
+            return mProfile;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public int getRawTemp() {
+            return mRawTemp;
+        }
+
+        public int getRawLight() {
+            return mRawLight;
+        }
+
+        public int getRawHumidity() {
+            return mRawHumidity;
+        }
+
+        public float getTemperature() {
+            return mTemperature;
+        }
+
+        public float getLight() {
+            return mLight;
+        }
+
+        public float getHumidity() {
+            return mHumidity;
+        }
+    }
+
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x574C4F47;
+    private static final int VERSION = 1;
+
+    //Header fields
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_COMPLETE = 12;
+    private static final int HEADER_COUNT = 16;
+
+    //Record fields
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_DEVICE = 8;
+    private static final int RECORD_PROFILE = 16;
+    private static final int RECORD_RSSI = 17;
+    private static final int RECORD_RAW_TEMP = 18;
+    private static final int RECORD_RAW_LIGHT = 20;
+    private static final int RECORD_RAW_HUMIDITY = 22;
+    private static final int RECORD_TEMPERATURE = 24;
+    private static final int RECORD_LIGHT = 28;
+    private static final int RECORD_HUMIDITY = 32;
+    private static final int RECORD_CHECKSUM = 36;
+
+    private static final String SUFFIX = ".rlog";
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mRecordsPerSegment;
+    private final long mSyncIntervalNanos;
+    private final int mMaxSegments;
+
+    private final byte[] mScratch = new byte[RECORD_SIZE];
+    private final ByteBuffer mScratchBuffer = ByteBuffer.wrap(mScratch);
+    private final CRC32 mCrc = new CRC32();
+
+    private MappedByteBuffer mSegment;
+    private long mSegmentIndex;
+    private int mCount;
+    private int mCommitted;
+    private long mLastSync;
+    private boolean mClosed;
+
+    //Metrics
+    private long mAppended;
+    private long mSyncs;
+    private long mRollovers;
+    private long mRecovered;
+    private long mSkipped;
+    private long mErrors;
+
+    /*
+     * 1MB segments, synced every second, keeping the newest 64
+     */
+    public ReadingLog(File dir) throws IOException {
+        this(dir, 1 << 20, 1000, 64);
+    }
+
+    public ReadingLog(File dir, int segmentSize, long syncIntervalMillis, int maxSegments)
+            throws IOException {
+        mRecordsPerSegment = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+        if (mRecordsPerSegment <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("Segment too small for a record");
+        }
+        mDir = dir;
+        mSegmentSize = HEADER_SIZE + mRecordsPerSegment * RECORD_SIZE;
+        mSyncIntervalNanos = syncIntervalMillis * 1000000L;
+        mMaxSegments = maxSegments;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        File[] segments = listSegments(dir);
+        if (segments.length == 0) {
+            openSegment(0);
+        } else {
+            File last = segments[segments.length - 1];
+            mSegmentIndex = parseIndex(last);
+            if (!recover(last)) {
+                openSegment(mSegmentIndex + 1);
+            }
+        }
+        mLastSync = System.nanoTime();
+    }
+
+    /*
+     * Reopen the newest segment where the last writer left off. Returns
+     * false if it was completed or can't be appended to.
+     */
+    private boolean recover(File file) throws IOException {
+        if (file.length() != mSegmentSize) return false;
+        MappedByteBuffer segment = map(file, FileChannel.MapMode.READ_WRITE);
+        if (segment.getInt(HEADER_MAGIC) != MAGIC
+                || segment.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE
+                || segment.getInt(HEADER_COMPLETE) != 0) {
+            return false;
+        }
+
+        long committed = segment.getLong(HEADER_COUNT);
+        if (committed < 0 || committed > mRecordsPerSegment) return false;
+
+        //Everything up to the header count was forced; only the tail is checked
+        int count = (int) committed;
+        while (count < mRecordsPerSegment
+                && readRecord(segment, count, mScratch, mCrc)) {
+            count++;
+        }
+        mRecovered = count - committed;
+
+        //Clear a torn record and anything after it, so readers stop here
+        for (int i = count; i < mRecordsPerSegment; i++) {
+            int position = HEADER_SIZE + i * RECORD_SIZE;
+            if (segment.getLong(position + RECORD_TIME) == 0) break;
+            segment.putLong(position + RECORD_TIME, 0);
+        }
+
+        mSegment = segment;
+        mCount = count;
+        mCommitted = count;
+        segment.putLong(HEADER_COUNT, count);
+        segment.force();
+        return true;
+    }
+
+    private void openSegment(long index) throws IOException {
+        MappedByteBuffer segment = map(segmentFile(mDir, index), FileChannel.MapMode.READ_WRITE);
+        segment.putInt(HEADER_MAGIC, MAGIC);
+        segment.putInt(HEADER_VERSION, VERSION);
+        segment.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+        segment.putInt(HEADER_COMPLETE, 0);
+        segment.putLong(HEADER_COUNT, 0);
+
+        mSegment = segment;
+        mSegmentIndex = index;
+        mCount = 0;
+        mCommitted = 0;
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != mSegmentSize) raf.setLength(mSegmentSize);
+            //The mapping stays valid once the file is closed
+            return raf.getChannel().map(mode, 0, mSegmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public boolean append(WimotoClimate beacon) {
+        return append(beacon.getTimestamp(), MacAddress.pack(beacon.getAddress()),
+                beacon.getProfile(), beacon.getSignal(), beacon.getRawTemp(),
+                beacon.getRawLight(), beacon.getRawHumidity(), beacon.getCurrentTemp(),
+                beacon.getLightLevel(), beacon.getHumidity());
+    }
+
+    /*
+     * Returns false if the log is closed, the device is MacAddress.INVALID
+     * or a new segment couldn't be created, in which case the record is
+     * dropped
+     */
+    public boolean append(long time, long device, int profile, int rssi,
+            int rawTemp, int rawLight, int rawHumidity,
+            float temperature, float light, float humidity) {
+        if (mClosed) return false;
+        if (device == MacAddress.INVALID) {
+            //No way to tell such devices apart on reading back
+            mSkipped++;
+            return false;
+        }
+        if (mCount == mRecordsPerSegment && !rollover()) return false;
+
+        ByteBuffer record = mScratchBuffer;
+        record.putLong(RECORD_TIME, time);
+        record.putLong(RECORD_DEVICE, device);
+        record.put(RECORD_PROFILE, (byte) profile);
+        record.put(RECORD_RSSI, (byte) rssi);
+        record.putShort(RECORD_RAW_TEMP, (short) rawTemp);
+        record.putShort(RECORD_RAW_LIGHT, (short) rawLight);
+        record.putShort(RECORD_RAW_HUMIDITY, (short) rawHumidity);
+        record.putFloat(RECORD_TEMPERATURE, temperature);
+        record.putFloat(RECORD_LIGHT, light);
+        record.putFloat(RECORD_HUMIDITY, humidity);
+        mCrc.reset();
+        mCrc.update(mScratch, 0, RECORD_CHECKSUM);
+        record.putInt(RECORD_CHECKSUM, (int) mCrc.getValue());
+
+        mSegment.position(HEADER_SIZE + mCount * RECORD_SIZE);
+        mSegment.put(mScratch);
+        mCount++;
+        mAppended++;
+
+        if (System.nanoTime() - mLastSync >= mSyncIntervalNanos) {
+            sync();
+        }
+        return true;
+    }
+
+    /*
+     * Force appended records to disk. The header count written here is
+     * itself persisted by the next sync, so recovery rescans at most one
+     * interval of records.
+     */
+    public void sync() {
+        if (mSegment == null) return;
+        mSegment.force();
+        if (mCommitted != mCount) {
+            mSegment.putLong(HEADER_COUNT, mCount);
+            mCommitted = mCount;
+        }
+        mLastSync = System.nanoTime();
+        mSyncs++;
+    }
+
+    private boolean rollover() {
+        if (mSegment != null) {
+            mSegment.putInt(HEADER_COMPLETE, 1);
+            mSegment.putLong(HEADER_COUNT, mCount);
+            mSegment.force();
+            mSegment = null;
+        }
+        try {
+            openSegment(mSegmentIndex + 1);
+        } catch (IOException e) {
+            //Stays full, so the next append retries
+            mErrors++;
+            return false;
+        }
+        mRollovers++;
+
+        File[] segments = listSegments(mDir);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (!segments[i].delete()) mErrors++;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) return;
+        sync();
+        mClosed = true;
+        mSegment = null;
+    }
+
+    /* Metrics */
+
+    public long getAppendedCount() {
+        return mAppended;
+    }
+
+    public long getSyncCount() {
+        return mSyncs;
+    }
+
+    public long getRolloverCount() {
+        return mRollovers;
+    }
+
+    /*
+     * Records found past the synced count when the log was opened
+     */
+    public long getRecoveredCount() {
+        return mRecovered;
+    }
+
+    /*
+     * Readings dropped because the device has no MAC address
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    /* Reading */
+
+    /*
+     * Visits every valid record in the directory, oldest segment first,
+     * and returns how many were read. Safe to run against a log that is
+     * still being written, though the newest records may not be seen.
+     */
+    public static long replay(File dir, Visitor visitor) throws IOException {
+        byte[] scratch = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(scratch);
+        CRC32 crc = new CRC32();
+        Record record = new Record();
+        long total = 0;
+
+        for (File file : listSegments(dir)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer segment;
+            try {
+                segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (segment.capacity() < HEADER_SIZE
+                    || segment.getInt(HEADER_MAGIC) != MAGIC
+                    || segment.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                continue;
+            }
+
+            int records = (segment.capacity() - HEADER_SIZE) / RECORD_SIZE;
+            for (int i = 0; i < records && readRecord(segment, i, scratch, crc); i++) {
+                record.mTime = buffer.getLong(RECORD_TIME);
+                record.mDevice = buffer.getLong(RECORD_DEVICE);
+                record.mProfile = buffer.get(RECORD_PROFILE) & 0xFF;
+                record.mRssi = buffer.get(RECORD_RSSI);
+                record.mRawTemp = buffer.getShort(RECORD_RAW_TEMP) & 0xFFFF;
+                record.mRawLight = buffer.getShort(RECORD_RAW_LIGHT) & 0xFFFF;
+                record.mRawHumidity = buffer.getShort(RECORD_RAW_HUMIDITY) & 0xFFFF;
+                record.mTemperature = buffer.getFloat(RECORD_TEMPERATURE);
+                record.mLight = buffer.getFloat(RECORD_LIGHT);
+                record.mHumidity = buffer.getFloat(RECORD_HUMIDITY);
+                visitor.onRecord(record);
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Copies record index into scratch and checks it was completely written
+     */
+    private static boolean readRecord(ByteBuffer segment, int index, byte[] scratch, CRC32 crc) {
+        int position = HEADER_SIZE + index * RECORD_SIZE;
+        if (segment.getLong(position + RECORD_TIME) == 0) return false;
+
+        segment.position(position);
+        segment.get(scratch);
+        crc.reset();
+        crc.update(scratch, 0, RECORD_CHECKSUM);
+        int stored = ((scratch[RECORD_CHECKSUM] & 0xFF) << 24)
+                | ((scratch[RECORD_CHECKSUM + 1] & 0xFF) << 16)
+                | ((scratch[RECORD_CHECKSUM + 2] & 0xFF) << 8)
+                | (scratch[RECORD_CHECKSUM + 3] & 0xFF);
+        return stored == (int) crc.getValue();
+    }
+
+    private static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.length() == 16 + SUFFIX.length() && name.endsWith(SUFFIX)
+                        && file.isFile();
+            }
+        });
+        if (files == null) return new File[0];
+        //Fixed width hex names sort in segment order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static File segmentFile(File dir, long index) {
+        return new File(dir, String.format("%016x", index) + SUFFIX);
+    }
+
+    private static long parseIndex(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+    }
+}
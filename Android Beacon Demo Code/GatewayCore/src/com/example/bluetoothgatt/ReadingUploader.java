@@ -0,0 +1,626 @@
+package com.example.bluetoothgatt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ReadingUploader
+ * Ships decoded readings to an HTTP collector in batches, so a phone
+ * acting as a gateway wakes its radio once per batch rather than once per
+ * reading.
+ *
+ * Readings are packed into a batch as fixed RECORD_SIZE records. A batch
+ * is sealed when it is full or its oldest reading is maxDelay old, and
+ * POSTed gzipped by a background thread. At most memoryBatches sealed
+ * batches wait in memory; past that, or when an upload fails, batches
+ * spill to files in the spill directory and are sent oldest first once
+ * the collector answers again. Spilled batches survive a restart. The
+ * spill directory is capped, dropping its oldest batches when full.
+ *
+ * Failed uploads back off exponentially with jitter, from MIN_BACKOFF to
+ * MAX_BACKOFF. A 4xx answer other than 408 or 429 means the collector
+ * will never take the batch, so it is dropped and counted as rejected.
+ *
+ * Request body, gzipped, big-endian:
+ *
+ *   header  "WRUP", short version, int record count
+ *   record  long time (ms), 6 byte MAC, byte profile, byte rssi,
+ *           short raw temperature, short raw light, short raw humidity
+ *
+ * offer() may be called from one producer thread at a time, normally the
+ * tracker's. It never blocks on the network; it only writes to disk when
+ * memory is full. close() is safe on the main thread: it aborts an upload
+ * in progress and waits at most CLOSE_TIMEOUT for the thread to spill
+ * what's left.
+ */
+public class ReadingUploader implements Closeable {
+
+    public static final int RECORD_SIZE = 22;
+    public static final int HEADER_SIZE = 10;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_MAX_DELAY = 60000;
+    public static final int DEFAULT_MEMORY_BATCHES = 8;
+    public static final long DEFAULT_MAX_SPILL_BYTES = 16 * 1024 * 1024;
+
+    public static final long MIN_BACKOFF = 1000;
+    public static final long MAX_BACKOFF = 5 * 60 * 1000;
+    public static final long CLOSE_TIMEOUT = 1000;
+
+    private static final int MAGIC = 0x57525550;
+    private static final int VERSION = 1;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final String SPILL_PREFIX = "batch-";
+    private static final String SPILL_SUFFIX = ".gz";
+
+    private static class Batch {
+        byte[] data;
+        int count;
+        //Time of the oldest reading, for lag and for sealing
+        long oldest;
+        //Set once spilled
+        File file;
+        long size;
+    }
+
+    private final URL mUrl;
+    private final File mSpillDir;
+    private final int mBatchSize;
+    private final long mMaxDelay;
+    private final int mMemoryBatches;
+    private final long mMaxSpillBytes;
+    private final Random mJitter;
+    private final LatencyHistogram mLatency;
+
+    //Guarded by mLock
+    private final Object mLock = new Object();
+    private Batch mCurrent;
+    private final ArrayDeque<Batch> mSealed;
+    private final ArrayDeque<Batch> mSpilled;
+    private long mSpillBytes;
+    private long mSpillSequence;
+    private boolean mRunning;
+    private Thread mThread;
+    //Being uploaded; the spill cap leaves it alone
+    private Batch mInFlight;
+
+    //Open while posting, so close() can abort it
+    private volatile HttpURLConnection mConnection;
+
+    private volatile long mOffered;
+    private volatile long mUploaded;
+    private volatile long mBatches;
+    private volatile long mRawBytes;
+    private volatile long mSentBytes;
+    private volatile long mFailures;
+    private volatile long mRejected;
+    private volatile long mDropped;
+    private volatile long mSpills;
+    private volatile long mBackoff;
+
+    public ReadingUploader(URL url, File spillDir) {
+        this(url, spillDir, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY, DEFAULT_MEMORY_BATCHES,
+                DEFAULT_MAX_SPILL_BYTES);
+    }
+
+    public ReadingUploader(URL url, File spillDir, int batchSize, long maxDelay,
+            int memoryBatches, long maxSpillBytes) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize " + batchSize);
+        mUrl = url;
+        mSpillDir = spillDir;
+        mBatchSize = batchSize;
+        mMaxDelay = maxDelay;
+        mMemoryBatches = memoryBatches;
+        mMaxSpillBytes = maxSpillBytes;
+        mJitter = new Random();
+        mLatency = new LatencyHistogram();
+        mSealed = new ArrayDeque<Batch>();
+        mSpilled = new ArrayDeque<Batch>();
+    }
+
+    /*
+     * Pick up batches spilled by an earlier run and start uploading. Does
+     * nothing while the thread from an earlier close() is still spilling.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mThread != null) return;
+            recoverSpilled();
+            mRunning = true;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "ReadingUploader");
+            mThread.setDaemon(true);
+            mThread.setPriority(Thread.MIN_PRIORITY);
+            mThread.start();
+        }
+    }
+
+    /*
+     * Stop uploading. Readings not yet sent are spilled by the uploader
+     * thread on its way out, to go out after the next start(); this waits
+     * at most CLOSE_TIMEOUT for that.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+            if (thread == null || !mRunning) return;
+            mRunning = false;
+            mLock.notifyAll();
+        }
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            //Fails the write or read in progress; a batch that was in memory is spilled
+            connection.disconnect();
+        }
+        try {
+            thread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean offer(WimotoClimate beacon) {
+        return offer(beacon.getTimestamp(), MacAddress.pack(beacon.getAddress()),
+                beacon.getProfile(), beacon.getSignal(), beacon.getRawTemp(),
+                beacon.getLightLevel(), beacon.getRawHumidity());
+    }
+
+    /*
+     * Returns false if the reading was dropped because the uploader is
+     * stopped. Once accepted, a reading is only dropped if its batch can't
+     * be spilled or is pushed out of a full spill directory; both count
+     * towards getDroppedCount().
+     */
+    public boolean offer(long time, long device, int profile, int rssi,
+            int rawTemp, int rawLight, int rawHumidity) {
+        synchronized (mLock) {
+            mOffered++;
+            if (!mRunning) {
+                mDropped++;
+                return false;
+            }
+            if (mCurrent == null) {
+                mCurrent = new Batch();
+                mCurrent.data = new byte[HEADER_SIZE + mBatchSize * RECORD_SIZE];
+                mCurrent.oldest = time;
+                //Starts the clock for the maxDelay seal
+                mLock.notifyAll();
+            }
+
+            Batch batch = mCurrent;
+            byte[] data = batch.data;
+            int offset = HEADER_SIZE + batch.count * RECORD_SIZE;
+            putLong(data, offset, time);
+            for (int i = 0; i < 6; i++) {
+                data[offset + 8 + i] = (byte) (device >>> ((5 - i) * 8));
+            }
+            data[offset + 14] = (byte) profile;
+            data[offset + 15] = (byte) rssi;
+            putShort(data, offset + 16, rawTemp);
+            putShort(data, offset + 18, rawLight);
+            putShort(data, offset + 20, rawHumidity);
+            if (time < batch.oldest) batch.oldest = time;
+
+            if (++batch.count == mBatchSize) {
+                seal();
+                mLock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /* Uploader thread */
+
+    private void loop() {
+        while (true) {
+            Batch batch;
+            synchronized (mLock) {
+                batch = nextBatch();
+                if (batch == null) {
+                    //Stopped; keep what's left for the next start()
+                    seal();
+                    while (!mSealed.isEmpty()) {
+                        spill(mSealed.pollFirst());
+                    }
+                    mThread = null;
+                    return;
+                }
+                mInFlight = batch;
+            }
+
+            byte[] payload;
+            try {
+                payload = batch.file != null ? readFile(batch.file) : compress(batch);
+            } catch (IOException e) {
+                //An unreadable spill file won't get better
+                synchronized (mLock) {
+                    mDropped += batch.count;
+                    removeSpilled(batch);
+                    mInFlight = null;
+                }
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int status = post(payload, batch.count);
+            if (status < 0 && isRunning()) {
+                //A kept-alive connection the collector has since closed fails once
+                status = post(payload, batch.count);
+            }
+            mLatency.record(System.nanoTime() - start);
+
+            synchronized (mLock) {
+                mInFlight = null;
+                if (status >= 200 && status < 300) {
+                    mUploaded += batch.count;
+                    mBatches++;
+                    mSentBytes += payload.length;
+                    mRawBytes += HEADER_SIZE + batch.count * RECORD_SIZE;
+                    mBackoff = 0;
+                    removeSpilled(batch);
+                    continue;
+                }
+                if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                    mRejected += batch.count;
+                    removeSpilled(batch);
+                    continue;
+                }
+
+                mFailures++;
+                //Keep it across restarts and out of memory while we wait
+                if (batch.file == null) spill(batch, payload);
+                mBackoff = mBackoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, mBackoff * 2);
+                long wait = mBackoff / 2 + (long) (mJitter.nextDouble() * mBackoff / 2);
+                long until = System.currentTimeMillis() + wait;
+                while (mRunning) {
+                    long remaining = until - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    waitLocked(remaining);
+                }
+            }
+        }
+    }
+
+    /*
+     * The oldest batch ready to send, waiting for one if need be; null
+     * once stopped
+     */
+    private Batch nextBatch() {
+        while (mRunning) {
+            if (!mSpilled.isEmpty()) return mSpilled.peekFirst();
+            if (!mSealed.isEmpty()) return mSealed.pollFirst();
+
+            long now = System.currentTimeMillis();
+            if (mCurrent != null) {
+                long due = mCurrent.oldest + mMaxDelay;
+                if (now >= due) {
+                    seal();
+                    continue;
+                }
+                waitLocked(due - now);
+            } else {
+                waitLocked(0);
+            }
+        }
+        return null;
+    }
+
+    private boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning;
+        }
+    }
+
+    private void waitLocked(long millis) {
+        try {
+            mLock.wait(millis);
+        } catch (InterruptedException e) {
+            mRunning = false;
+        }
+    }
+
+    /*
+     * Returns the HTTP status, or -1 if the collector couldn't be reached
+     */
+    private int post(byte[] payload, int count) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) mUrl.openConnection();
+            mConnection = connection;
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setFixedLengthStreamingMode(payload.length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Reading-Count", Integer.toString(count));
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            //Read the body out so the connection can be reused
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            mConnection = null;
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    /* Batches, all called holding mLock */
+
+    private void seal() {
+        Batch batch = mCurrent;
+        if (batch == null || batch.count == 0) return;
+        mCurrent = null;
+        byte[] data = batch.data;
+        putInt(data, 0, MAGIC);
+        putShort(data, 4, VERSION);
+        putInt(data, 6, batch.count);
+        if (mSealed.size() < mMemoryBatches) {
+            mSealed.addLast(batch);
+        } else {
+            //The collector is falling behind
+            spill(batch);
+        }
+    }
+
+    private void spill(Batch batch) {
+        try {
+            spill(batch, compress(batch));
+        } catch (IOException e) {
+            mDropped += batch.count;
+        }
+    }
+
+    private void spill(Batch batch, byte[] payload) {
+        //Named so the order, count and age come back without reading it
+        File file = new File(mSpillDir, SPILL_PREFIX + String.format("%016x", mSpillSequence++)
+                + "-" + batch.count + "-" + batch.oldest + SPILL_SUFFIX);
+        try {
+            if (!mSpillDir.isDirectory() && !mSpillDir.mkdirs()) {
+                throw new IOException("Can't create " + mSpillDir);
+            }
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            mDropped += batch.count;
+            return;
+        }
+        batch.data = null;
+        batch.file = file;
+        batch.size = payload.length;
+        mSpilled.addLast(batch);
+        mSpillBytes += batch.size;
+        mSpills++;
+
+        //Oldest first, sparing this batch and the one being uploaded
+        Iterator<Batch> spilled = mSpilled.iterator();
+        while (mSpillBytes > mMaxSpillBytes && spilled.hasNext()) {
+            Batch oldest = spilled.next();
+            if (oldest == batch || oldest == mInFlight) continue;
+            spilled.remove();
+            mDropped += oldest.count;
+            mSpillBytes -= oldest.size;
+            oldest.file.delete();
+        }
+    }
+
+    private void removeSpilled(Batch batch) {
+        if (batch.file == null) return;
+        if (mSpilled.remove(batch)) mSpillBytes -= batch.size;
+        batch.file.delete();
+    }
+
+    private void recoverSpilled() {
+        File[] files = mSpillDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX);
+            }
+        });
+        if (files == null) return;
+        //The zero-padded sequence sorts by name
+        Arrays.sort(files);
+        for (File file : files) {
+            String[] parts = file.getName()
+                    .substring(SPILL_PREFIX.length(), file.getName().length() - SPILL_SUFFIX.length())
+                    .split("-");
+            Batch batch = new Batch();
+            try {
+                mSpillSequence = Math.max(mSpillSequence, Long.parseLong(parts[0], 16) + 1);
+                batch.count = Integer.parseInt(parts[1]);
+                batch.oldest = Long.parseLong(parts[2]);
+            } catch (RuntimeException e) {
+                file.delete();
+                continue;
+            }
+            batch.file = file;
+            batch.size = file.length();
+            mSpilled.addLast(batch);
+            mSpillBytes += batch.size;
+        }
+    }
+
+    /* Encoding */
+
+    private static byte[] compress(Batch batch) throws IOException {
+        int length = HEADER_SIZE + batch.count * RECORD_SIZE;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 3 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(batch.data, 0, length);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) throw new IOException("Truncated " + file);
+                read += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) >= 0) {
+                //Discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> ((7 - i) * 8));
+        }
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /* Metrics */
+
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    public long getUploadedCount() {
+        return mUploaded;
+    }
+
+    public long getBatchCount() {
+        return mBatches;
+    }
+
+    /*
+     * Bytes before and after compression, for uploaded batches
+     */
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getFailureCount() {
+        return mFailures;
+    }
+
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    /*
+     * Readings offered while stopped, unspillable or pushed out of a full
+     * spill directory. Every offered reading ends up uploaded, rejected,
+     * dropped or pending.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getSpillCount() {
+        return mSpills;
+    }
+
+    /*
+     * Current retry delay, 0 while the collector is answering
+     */
+    public long getBackoff() {
+        return mBackoff;
+    }
+
+    /*
+     * Time per upload attempt, successful or not
+     */
+    public LatencyHistogram getUploadLatency() {
+        return mLatency;
+    }
+
+    /*
+     * Readings waiting in memory or on disk
+     */
+    public long getPendingCount() {
+        synchronized (mLock) {
+            long pending = mCurrent == null ? 0 : mCurrent.count;
+            for (Batch batch : mSealed) pending += batch.count;
+            for (Batch batch : mSpilled) pending += batch.count;
+            return pending;
+        }
+    }
+
+    public long getSpillBytes() {
+        synchronized (mLock) {
+            return mSpillBytes;
+        }
+    }
+
+    /*
+     * How far behind the collector is: the age of the oldest reading not
+     * yet uploaded, or 0 when nothing is waiting
+     */
+    public long getLag(long now) {
+        synchronized (mLock) {
+            long oldest = Long.MAX_VALUE;
+            if (mCurrent != null && mCurrent.count > 0) oldest = mCurrent.oldest;
+            for (Batch batch : mSealed) oldest = Math.min(oldest, batch.oldest);
+            for (Batch batch : mSpilled) oldest = Math.min(oldest, batch.oldest);
+            return oldest == Long.MAX_VALUE ? 0 : Math.max(0, now - oldest);
+        }
+    }
+}
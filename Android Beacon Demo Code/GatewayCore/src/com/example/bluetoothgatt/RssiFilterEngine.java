@@ -0,0 +1,242 @@
+package com.example.bluetoothgatt;
+
+import java.util.Arrays;
+
+/**
+ * RssiFilterEngine
+ * Smooths the RSSI of every device heard, either with an exponentially
+ * weighted moving average or a one-dimensional Kalman filter treating the
+ * signal as a random walk, and estimates distance from it with the
+ * log-distance path loss model.
+ *
+ * State lives in flat arrays indexed by the device's DeviceRegistry slot,
+ * assigned on its first advert. Only that first sighting allocates; every
+ * later update is O(1) on primitives, so it can run for every advert
+ * including the duplicates the decoder drops. Addresses that aren't MACs
+ * aren't filtered.
+ *
+ * The engine is not synchronized; keep it on the thread that owns the
+ * tracker.
+ */
+public class RssiFilterEngine {
+
+    public static final int MODE_EWMA = 0;
+    public static final int MODE_KALMAN = 1;
+
+    public static final int NO_SLOT = DeviceRegistry.NO_SLOT;
+
+    /* Weight of each new sample for the moving average */
+    public static final float DEFAULT_ALPHA = 0.2f;
+    /* Kalman drift allowed per second of silence, in dB^2 */
+    public static final float DEFAULT_PROCESS_NOISE = 1f;
+    /* Kalman variance of a single sample, in dB^2; about 4dB of scatter */
+    public static final float DEFAULT_MEASUREMENT_NOISE = 16f;
+    /* 2 in free space, 2.7 to 4 indoors */
+    public static final float DEFAULT_PATH_LOSS_EXPONENT = 2f;
+    /*
+     * The advertised power level is measured at the antenna; a receiver 1m
+     * away sees about this much less at 2.4GHz
+     */
+    public static final int ONE_METRE_LOSS = 41;
+
+    private final int mMode;
+    private float mAlpha = DEFAULT_ALPHA;
+    private float mProcessNoise = DEFAULT_PROCESS_NOISE;
+    private float mMeasurementNoise = DEFAULT_MEASUREMENT_NOISE;
+    private float mPathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+
+    private final DeviceRegistry mRegistry;
+
+    //Per-slot state
+    private float[] mEstimate;
+    private float[] mVariance;
+    private long[] mLastTime;
+    private int[] mTxPower;
+    private int[] mSamples;
+
+    public RssiFilterEngine(int mode) {
+        this(mode, 64);
+    }
+
+    public RssiFilterEngine(int mode, int initialCapacity) {
+        this(mode, new DeviceRegistry(initialCapacity));
+    }
+
+    /*
+     * Index by a registry shared with other per-device state. Call
+     * reset() for a slot the registry hands out again.
+     */
+    public RssiFilterEngine(int mode, DeviceRegistry registry) {
+        if (mode != MODE_EWMA && mode != MODE_KALMAN) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        mMode = mode;
+        mRegistry = registry;
+        int capacity = Math.max(16, registry.getSlotCount());
+        mEstimate = new float[capacity];
+        mVariance = new float[capacity];
+        mLastTime = new long[capacity];
+        mTxPower = new int[capacity];
+        Arrays.fill(mTxPower, AdCursor.TX_POWER_UNKNOWN);
+        mSamples = new int[capacity];
+    }
+
+    public void setAlpha(float alpha) {
+        mAlpha = alpha;
+    }
+
+    public void setProcessNoise(float variancePerSecond) {
+        mProcessNoise = variancePerSecond;
+    }
+
+    public void setMeasurementNoise(float variance) {
+        mMeasurementNoise = variance;
+    }
+
+    public void setPathLossExponent(float exponent) {
+        mPathLossExponent = exponent;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public DeviceRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /*
+     * Filter one RSSI sample and return the device's slot, or NO_SLOT if
+     * the address isn't a MAC
+     */
+    public int update(String address, int rssi, long timestamp) {
+        int slot = mRegistry.getSlot(address);
+        if (slot == NO_SLOT) {
+            slot = mRegistry.register(address);
+            if (slot == NO_SLOT) return NO_SLOT;
+            reset(slot);
+        }
+        update(slot, rssi, timestamp);
+        return slot;
+    }
+
+    public void update(int slot, int rssi, long timestamp) {
+        if (slot >= mSamples.length) grow(slot + 1);
+        if (mSamples[slot]++ == 0) {
+            mEstimate[slot] = rssi;
+            mVariance[slot] = mMeasurementNoise;
+            mLastTime[slot] = timestamp;
+            return;
+        }
+
+        if (mMode == MODE_EWMA) {
+            mEstimate[slot] += mAlpha * (rssi - mEstimate[slot]);
+        } else {
+            //Predict: uncertainty grows with time since the last sample
+            long elapsed = timestamp - mLastTime[slot];
+            float variance = mVariance[slot];
+            if (elapsed > 0) variance += mProcessNoise * (elapsed / 1000f);
+
+            //Correct
+            float gain = variance / (variance + mMeasurementNoise);
+            mEstimate[slot] += gain * (rssi - mEstimate[slot]);
+            mVariance[slot] = (1f - gain) * variance;
+        }
+        if (timestamp > mLastTime[slot]) mLastTime[slot] = timestamp;
+    }
+
+    /*
+     * Record the advertised power level, or AdCursor.TX_POWER_UNKNOWN to
+     * keep the last one
+     */
+    public void setTxPower(String address, int txPower) {
+        if (txPower == AdCursor.TX_POWER_UNKNOWN) return;
+        int slot = getSlot(address);
+        if (slot != NO_SLOT) mTxPower[slot] = txPower;
+    }
+
+    /*
+     * Forget a slot's history, e.g. when its device was evicted
+     */
+    public void reset(int slot) {
+        if (slot >= mSamples.length) grow(slot + 1);
+        mSamples[slot] = 0;
+        mTxPower[slot] = AdCursor.TX_POWER_UNKNOWN;
+    }
+
+    public int getSlot(String address) {
+        return mRegistry.getSlot(address);
+    }
+
+    /*
+     * Smoothed RSSI in dBm, or NaN for an unknown device
+     */
+    public float getRssi(String address) {
+        int slot = getSlot(address);
+        return slot == NO_SLOT ? Float.NaN : mEstimate[slot];
+    }
+
+    public float getRssi(int slot) {
+        return mEstimate[slot];
+    }
+
+    /*
+     * Estimated distance in metres, or NaN for an unknown device or one
+     * that doesn't advertise its power level
+     */
+    public float getDistance(String address) {
+        int slot = getSlot(address);
+        return slot == NO_SLOT ? Float.NaN : getDistance(slot);
+    }
+
+    public float getDistance(int slot) {
+        return distance(mEstimate[slot], mTxPower[slot], mPathLossExponent);
+    }
+
+    public String getAddress(int slot) {
+        return mRegistry.getAddress(slot);
+    }
+
+    public int getTxPower(int slot) {
+        return mTxPower[slot];
+    }
+
+    public int getSampleCount(int slot) {
+        return mSamples[slot];
+    }
+
+    public long getLastTime(int slot) {
+        return mLastTime[slot];
+    }
+
+    /*
+     * Devices with a slot
+     */
+    public int size() {
+        return mRegistry.size();
+    }
+
+    public void clear() {
+        mRegistry.clear();
+    }
+
+    /*
+     * d = 10 ^ ((P1m - rssi) / (10 n)), P1m being the power expected at 1m
+     */
+    public static float distance(float rssi, int txPower, float exponent) {
+        if (txPower == AdCursor.TX_POWER_UNKNOWN || Float.isNaN(rssi)) return Float.NaN;
+        int oneMetre = txPower - ONE_METRE_LOSS;
+        return (float) Math.pow(10, (oneMetre - rssi) / (10 * exponent));
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, mEstimate.length * 2);
+        mEstimate = Arrays.copyOf(mEstimate, capacity);
+        mVariance = Arrays.copyOf(mVariance, capacity);
+        mLastTime = Arrays.copyOf(mLastTime, capacity);
+        int from = mTxPower.length;
+        mTxPower = Arrays.copyOf(mTxPower, capacity);
+        Arrays.fill(mTxPower, from, capacity, AdCursor.TX_POWER_UNKNOWN);
+        mSamples = Arrays.copyOf(mSamples, capacity);
+    }
+}
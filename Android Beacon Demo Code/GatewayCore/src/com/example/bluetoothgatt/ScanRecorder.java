@@ -0,0 +1,204 @@
+package com.example.bluetoothgatt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ScanRecorder
+ * Captures raw adverts, as the scan callbacks hand them over, into a
+ * compact file that ScanReplayer feeds back through any AdvertSink. Put it
+ * in front of the decode path to reproduce a field session on a plain JVM.
+ *
+ * File layout, big-endian:
+ *
+ *   header  "WSCN", int version, long timestamp of the first advert
+ *   record  varint  zigzag timestamp delta from the previous record (ms)
+ *           varint  device index; an index not seen before is followed
+ *                   by the device's 6 byte MAC
+ *           byte    rssi
+ *           varint  data length, then the data
+ *
+ * The zero padding controllers add after the last AD structure isn't
+ * kept, so a replay delivers the record without it. A record that doesn't
+ * parse cleanly is kept whole. A typical Climate advert takes about 35
+ * bytes. Writes go through a
+ * buffer, so only a full buffer reaches the file on the calling thread.
+ * The first I/O error stops the recording; it is counted and the adverts
+ * after it are dropped. Calls must be serialized, as the scan callbacks
+ * are.
+ */
+public class ScanRecorder implements AdvertSink, Closeable {
+
+    static final int MAGIC = 0x5753434E;
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //Three varints of up to 10 bytes, the RSSI and a MAC
+    private static final int MAX_PREFIX = 3 * 10 + 1 + 6;
+
+    private final DataOutputStream mOut;
+    private final DeviceRegistry mDevices;
+    private final byte[] mScratch;
+    private final AdCursor mCursor;
+    private int mKnownDevices;
+    private long mLastTimestamp;
+    private boolean mStarted;
+    private boolean mClosed;
+
+    private long mRecorded;
+    private long mSkipped;
+    private long mBytes;
+    private long mErrors;
+
+    /*
+     * Start a new recording in dir, named after the current time
+     */
+    public static ScanRecorder open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return new ScanRecorder(new File(dir, "scan-" + System.currentTimeMillis() + ".wscan"));
+    }
+
+    public ScanRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public ScanRecorder(OutputStream out) {
+        mOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        mDevices = new DeviceRegistry();
+        mScratch = new byte[MAX_PREFIX];
+        mCursor = new AdCursor();
+    }
+
+    @Override
+    public void onAdvert(long timestamp, String address, String deviceName, int rssi,
+            byte[] data, int offset, int length) {
+        if (mClosed) return;
+        int slot = mDevices.register(address);
+        if (slot == DeviceRegistry.NO_SLOT) {
+            //Only MAC addresses can be replayed
+            mSkipped++;
+            return;
+        }
+
+        length = trim(data, offset, length);
+        try {
+            if (!mStarted) {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(VERSION);
+                mOut.writeLong(timestamp);
+                mBytes += 16;
+                mLastTimestamp = timestamp;
+                mStarted = true;
+            }
+
+            //Batched results can arrive out of order, so the delta is signed
+            long delta = timestamp - mLastTimestamp;
+            int n = putVarint(mScratch, 0, (delta << 1) ^ (delta >> 63));
+            n = putVarint(mScratch, n, slot);
+            if (slot == mKnownDevices) {
+                long mac = mDevices.getMac(slot);
+                for (int i = 5; i >= 0; i--) {
+                    mScratch[n++] = (byte) (mac >>> (i * 8));
+                }
+                mKnownDevices++;
+            }
+            mScratch[n++] = (byte) rssi;
+            n = putVarint(mScratch, n, length);
+            mOut.write(mScratch, 0, n);
+            mOut.write(data, offset, length);
+
+            mLastTimestamp = timestamp;
+            mBytes += n + length;
+            mRecorded++;
+        } catch (IOException e) {
+            mErrors++;
+            close();
+        }
+    }
+
+    /*
+     * Push buffered records to the file
+     */
+    public void flush() {
+        if (mClosed) return;
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            mErrors++;
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            mErrors++;
+        }
+    }
+
+    /*
+     * Length of the record without the zeros after its last AD structure,
+     * or the whole length if anything else follows it
+     */
+    private int trim(byte[] data, int offset, int length) {
+        mCursor.reset(data, offset, length);
+        while (mCursor.next()) {
+            //Walk to the end
+        }
+        if (mCursor.isMalformed()) return length;
+        int end = mCursor.getPosition();
+        for (int i = end; i < offset + length; i++) {
+            if (data[i] != 0) return length;
+        }
+        return end - offset;
+    }
+
+    static int putVarint(byte[] out, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    /* Metrics */
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public long getRecordedCount() {
+        return mRecorded;
+    }
+
+    /*
+     * Adverts from addresses that aren't MACs
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    public int getDeviceCount() {
+        return mKnownDevices;
+    }
+
+    public long getErrorCount() {
+        return mErrors;
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.bluetoothgatt;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * ScanReplayer
+ * Feeds a ScanRecorder file back into an AdvertSink, at the pace it was
+ * recorded, some multiple of it, or as fast as the sink takes it.
+ *
+ * Timestamps are passed through as recorded by default, so a replay into
+ * the same code decodes to the same state every time. Rebasing shifts them
+ * to the replay clock instead, for consumers that compare against the
+ * current time, such as device expiry.
+ */
+public class ScanReplayer implements Closeable {
+
+    /* Don't wait between adverts */
+    public static final double SPEED_MAX = 0;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream mIn;
+    private final long mFirstTimestamp;
+    private final ArrayList<String> mAddresses;
+    private byte[] mData = new byte[64];
+
+    private double mSpeed = SPEED_MAX;
+    private boolean mRebase;
+
+    private long mReplayed;
+
+    public ScanReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public ScanReplayer(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        mAddresses = new ArrayList<String>();
+        long first = 0;
+        try {
+            if (mIn.readInt() != ScanRecorder.MAGIC) {
+                throw new IOException("Not a scan recording");
+            }
+            int version = mIn.readInt();
+            if (version != ScanRecorder.VERSION) {
+                throw new IOException("Unsupported scan recording version " + version);
+            }
+            first = mIn.readLong();
+        } catch (EOFException e) {
+            //Nothing was recorded
+            mIn.close();
+            throw new IOException("Empty scan recording");
+        }
+        mFirstTimestamp = first;
+    }
+
+    /*
+     * 1 replays in real time, 10 ten times faster, SPEED_MAX without
+     * pauses
+     */
+    public ScanReplayer setSpeed(double speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed " + speed);
+        mSpeed = speed;
+        return this;
+    }
+
+    /*
+     * Shift timestamps so the first advert is stamped with the time the
+     * replay started; paced replays scale the gaps by the speed
+     */
+    public ScanReplayer setRebaseTimestamps(boolean rebase) {
+        mRebase = rebase;
+        return this;
+    }
+
+    /*
+     * Replay to the end of the recording, returning the number of adverts
+     * delivered. A record cut short by an interrupted recording ends it.
+     */
+    public long replay(AdvertSink sink) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        long timestamp = mFirstTimestamp;
+
+        while (true) {
+            int rssi;
+            int length;
+            String address;
+            try {
+                long delta = readVarint();
+                timestamp += (delta >>> 1) ^ -(delta & 1);
+                int index = (int) readVarint();
+                if (index == mAddresses.size()) {
+                    long mac = 0;
+                    for (int i = 0; i < 6; i++) {
+                        mac = (mac << 8) | mIn.readUnsignedByte();
+                    }
+                    mAddresses.add(MacAddress.format(mac));
+                } else if (index > mAddresses.size() || index < 0) {
+                    throw new IOException("Corrupt device index " + index);
+                }
+                address = mAddresses.get(index);
+                rssi = mIn.readByte();
+                length = (int) readVarint();
+                if (length < 0 || length > 0xFFFF) {
+                    throw new IOException("Corrupt advert length " + length);
+                }
+                if (length > mData.length) {
+                    mData = new byte[Math.max(length, mData.length * 2)];
+                }
+                mIn.readFully(mData, 0, length);
+            } catch (EOFException e) {
+                return mReplayed;
+            }
+
+            long elapsed = timestamp - mFirstTimestamp;
+            long stamp = timestamp;
+            if (mSpeed != SPEED_MAX) {
+                long dueNanos = startNanos + (long) (elapsed * 1000000L / mSpeed);
+                long wait = dueNanos - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+                if (mRebase) stamp = startMillis + (long) (elapsed / mSpeed);
+            } else if (mRebase) {
+                stamp = startMillis + elapsed;
+            }
+
+            sink.onAdvert(stamp, address, null, rssi, mData, 0, length);
+            mReplayed++;
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupt varint");
+    }
+
+    public long getFirstTimestamp() {
+        return mFirstTimestamp;
+    }
+
+    public long getReplayedCount() {
+        return mReplayed;
+    }
+
+    public int getDeviceCount() {
+        return mAddresses.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.bluetoothgatt;
+
+/**
+ * ScanScheduler
+ * Decides how long each scan window runs and how long the radio rests
+ * before the next one. The driver reports the window boundaries and every
+ * advert heard in between; all times are passed in, in milliseconds, so
+ * a scheduler can be run against a simulated clock.
+ */
+public interface ScanScheduler {
+
+    public static final int POWER_PLUGGED = 0;
+    public static final int POWER_BATTERY = 1;
+    public static final int POWER_LOW = 2;
+
+    /*
+     * A window is starting; returns how long to scan for
+     */
+    long onWindowStart(long now);
+
+    /*
+     * Called for every advert received, from the scan callback thread or
+     * the thread decoding them; newDevice is true for a device not heard
+     * recently. The driver ends the window only once every advert heard
+     * in it has been reported.
+     */
+    void onAdvert(boolean newDevice);
+
+    /*
+     * The window has ended; returns how long to pause before the next one
+     */
+    long onWindowEnd(long now);
+
+    void setPowerState(int powerState);
+}
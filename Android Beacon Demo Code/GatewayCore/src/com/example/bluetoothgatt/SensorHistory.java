@@ -0,0 +1,119 @@
+package com.example.bluetoothgatt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * SensorHistory
+ * Keeps readings over time for every device, at three resolutions: every
+ * sample, 1-minute buckets and 1-hour buckets. Each tier is a fixed ring
+ * of primitive arrays sized up front, so the memory per device is known
+ * in advance (see getBytesPerDevice) and recording doesn't allocate once
+ * a device has been seen.
+ *
+ * With the defaults each device holds its last 256 samples, 6 hours of
+ * minutes and 14 days of hours in under 48KB.
+ *
+ * A device's history outlives it being tracked, so one that comes and
+ * goes keeps a single record. It is only dropped by expire(), once
+ * nothing has been recorded for it for as long as the hour tier spans.
+ */
+public class SensorHistory {
+
+    public static final int SERIES_TEMPERATURE = 0;
+    public static final int SERIES_LIGHT = 1;
+    public static final int SERIES_HUMIDITY = 2;
+    public static final int SERIES_RSSI = 3;
+    public static final int SERIES_COUNT = 4;
+
+    public static final int TIER_RAW = 0;
+    public static final int TIER_MINUTE = 1;
+    public static final int TIER_HOUR = 2;
+    public static final int TIER_COUNT = 3;
+
+    private final int mRawCapacity;
+    private final int mMinuteCapacity;
+    private final int mHourCapacity;
+    private final HashMap<String, DeviceHistory> mDevices;
+
+    public SensorHistory() {
+        this(256, 6 * 60, 14 * 24);
+    }
+
+    public SensorHistory(int rawCapacity, int minuteCapacity, int hourCapacity) {
+        mRawCapacity = rawCapacity;
+        mMinuteCapacity = minuteCapacity;
+        mHourCapacity = hourCapacity;
+        mDevices = new HashMap<String, DeviceHistory>();
+    }
+
+    public void record(WimotoClimate beacon) {
+        record(beacon.getAddress(), beacon.getTimestamp(), beacon.getCurrentTemp(),
+                beacon.getLightLevel(), beacon.getHumidity(), beacon.getSignal());
+    }
+
+    public void record(String address, long time, float temperature, float light,
+            float humidity, int rssi) {
+        DeviceHistory device;
+        synchronized (this) {
+            device = mDevices.get(address);
+            if (device == null) {
+                device = new DeviceHistory(address, mRawCapacity, mMinuteCapacity, mHourCapacity);
+                mDevices.put(address, device);
+            }
+        }
+        device.record(time, temperature, light, humidity, rssi);
+    }
+
+    /*
+     * History for one device, or null if it was never recorded
+     */
+    public synchronized DeviceHistory get(String address) {
+        return mDevices.get(address);
+    }
+
+    public synchronized List<DeviceHistory> getDevices() {
+        return new ArrayList<DeviceHistory>(mDevices.values());
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    /*
+     * Drop devices with nothing recorded for the hour tier's span; returns
+     * how many went
+     */
+    public int expire(long now) {
+        long cutoff = now - mHourCapacity * 60 * 60 * 1000L;
+        int expired = 0;
+        for (DeviceHistory device : getDevices()) {
+            if (device.getLastTime() >= cutoff) continue;
+            synchronized (this) {
+                //Recorded again since the check
+                if (device.getLastTime() >= cutoff) continue;
+                mDevices.remove(device.getAddress());
+            }
+            expired++;
+        }
+        return expired;
+    }
+
+    public synchronized void remove(String address) {
+        mDevices.remove(address);
+    }
+
+    public synchronized void clear() {
+        mDevices.clear();
+    }
+
+    /*
+     * Array storage each device costs with this configuration
+     */
+    public long getBytesPerDevice() {
+        return HistoryTier.getFootprintBytes(mRawCapacity, SERIES_COUNT, false)
+                + HistoryTier.getFootprintBytes(mMinuteCapacity, SERIES_COUNT, true)
+                + HistoryTier.getFootprintBytes(mHourCapacity, SERIES_COUNT, true);
+    }
+}
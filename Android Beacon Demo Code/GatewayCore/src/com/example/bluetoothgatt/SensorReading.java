@@ -0,0 +1,91 @@
+package com.example.bluetoothgatt;
+
+/**
+ * SensorReading
+ * Mutable holder for one decoded advertisement. Decoders fill in whichever
+ * channels their profile carries; callers reuse a single instance per thread
+ * so that decoding allocates nothing.
+ */
+public class SensorReading {
+
+    public static final int CHANNEL_TEMPERATURE = 0;
+    public static final int CHANNEL_LIGHT = 1;
+    public static final int CHANNEL_HUMIDITY = 2;
+    public static final int CHANNEL_SOIL_MOISTURE = 3;
+    public static final int CHANNEL_PROBE_TEMPERATURE = 4;
+    public static final int CHANNEL_ACCEL_X = 5;
+    public static final int CHANNEL_ACCEL_Y = 6;
+    public static final int CHANNEL_ACCEL_Z = 7;
+    public static final int CHANNEL_MOTION = 8;
+    public static final int CHANNEL_LEAK = 9;
+    public static final int CHANNEL_BATTERY = 10;
+    public static final int CHANNEL_COUNT = 11;
+
+    private int mProfile;
+    private int mServiceUuid;
+    private int mTxPower;
+    //Bit per channel that the last decode filled in
+    private int mPresent;
+    private final int[] mRaw = new int[CHANNEL_COUNT];
+    private final float[] mValue = new float[CHANNEL_COUNT];
+
+    //Scratch cursor owned by whichever thread owns this reading
+    final AdCursor mCursor = new AdCursor();
+
+    public SensorReading() {
+        clear();
+    }
+
+    public void clear() {
+        mProfile = WimotoProfile.UNKNOWN;
+        mServiceUuid = -1;
+        mTxPower = AdCursor.TX_POWER_UNKNOWN;
+        mPresent = 0;
+    }
+
+    void setSource(int profile, int serviceUuid) {
+        mProfile = profile;
+        mServiceUuid = serviceUuid;
+    }
+
+    void setTxPower(int txPower) {
+        mTxPower = txPower;
+    }
+
+    public void set(int channel, int raw, float value) {
+        mRaw[channel] = raw;
+        mValue[channel] = value;
+        mPresent |= 1 << channel;
+    }
+
+    public boolean has(int channel) {
+        return (mPresent & (1 << channel)) != 0;
+    }
+
+    public int getChannels() {
+        return mPresent;
+    }
+
+    /*
+     * Values are left over from earlier decodes unless has(channel)
+     */
+    public int getRaw(int channel) {
+        return mRaw[channel];
+    }
+
+    public float getValue(int channel) {
+        return mValue[channel];
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public int getTxPower() {
+        return mTxPower;
+    }
+}
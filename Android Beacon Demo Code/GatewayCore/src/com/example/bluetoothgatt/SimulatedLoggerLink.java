@@ -0,0 +1,156 @@
+package com.example.bluetoothgatt;
+
+/**
+ * SimulatedLoggerLink
+ * A logger peer in memory, for exercising LoggerDownloadEngine without a
+ * radio. Requests are answered synchronously; the readout itself is sent
+ * by run(), as notifications of MTU - 3 bytes (or a fixed size, to mimic
+ * the one byte per notification firmware). The link can be made to drop
+ * after a number of bytes to exercise resume.
+ */
+public class SimulatedLoggerLink implements LoggerLink {
+
+    /* ATT notification header: opcode and handle */
+    private static final int NOTIFY_OVERHEAD = 3;
+
+    private final byte[] mLogger;
+    private final int mMaxMtu;
+    private final int mFixedPayload;
+
+    private Callback mCallback;
+    private int mMtu = LoggerDownloadEngine.DEFAULT_MTU;
+    private boolean mSubscribed;
+    private boolean mReading;
+    private boolean mConnected = true;
+    private long mDropAfter = -1;
+
+    private long mSent;
+    private long mNotifications;
+
+    /*
+     * Payload sized by the negotiated MTU, capped at maxMtu
+     */
+    public SimulatedLoggerLink(byte[] logger, int maxMtu) {
+        this(logger, maxMtu, 0);
+    }
+
+    /*
+     * fixedPayload > 0 sends that many bytes per notification whatever
+     * the MTU
+     */
+    public SimulatedLoggerLink(byte[] logger, int maxMtu, int fixedPayload) {
+        mLogger = logger;
+        mMaxMtu = maxMtu;
+        mFixedPayload = fixedPayload;
+    }
+
+    /*
+     * Lose the link once this many bytes have been sent on it
+     */
+    public void setDropAfter(long bytes) {
+        mDropAfter = bytes;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!mConnected) return false;
+        mMtu = Math.max(LoggerDownloadEngine.DEFAULT_MTU, Math.min(mtu, mMaxMtu));
+        mCallback.onMtuChanged(mMtu, true);
+        return true;
+    }
+
+    @Override
+    public boolean requestHighPriority() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean enableNotifications() {
+        if (!mConnected) return false;
+        mSubscribed = true;
+        mCallback.onNotificationsEnabled(true);
+        return true;
+    }
+
+    @Override
+    public boolean write(int target, boolean enable) {
+        if (!mConnected) return false;
+        if (target == TARGET_READ_ENABLE) {
+            mReading = enable && mSubscribed;
+        }
+        mCallback.onWriteComplete(target, true);
+        return true;
+    }
+
+    /*
+     * Streams the readout from the start of the logger until it ends or
+     * the link drops, and returns the notifications sent
+     */
+    public long run() {
+        if (!mReading) return 0;
+        int payload = mFixedPayload > 0 ? mFixedPayload : mMtu - NOTIFY_OVERHEAD;
+        long sent = 0;
+        int offset = 0;
+        while (mReading && offset < mLogger.length) {
+            if (mDropAfter >= 0 && mSent >= mDropAfter) {
+                mConnected = false;
+                mReading = false;
+                mCallback.onLinkLost();
+                return sent;
+            }
+            int length = Math.min(payload, mLogger.length - offset);
+            if (mDropAfter >= 0) length = (int) Math.min(length, mDropAfter - mSent);
+            mCallback.onNotification(mLogger, offset, length);
+            offset += length;
+            mSent += length;
+            mNotifications++;
+            sent++;
+        }
+        if (mReading) mCallback.onTransferIdle();
+        return sent;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public long getNotificationCount() {
+        return mNotifications;
+    }
+
+    /*
+     * Fills a logger image with count records, one a minute from the given
+     * time, with slowly varying readings
+     */
+    public static byte[] createLogger(int count, int year, int month, int day) {
+        byte[] logger = new byte[count * LoggerRecord.SIZE];
+        for (int i = 0; i < count; i++) {
+            int o = i * LoggerRecord.SIZE;
+            int minutes = i;
+            int dayOffset = minutes / (24 * 60);
+            int hour = (minutes / 60) % 24;
+            int minute = minutes % 60;
+            putUint16(logger, o, year);
+            logger[o + 2] = (byte) month;
+            //Days past the end of the month are left to the decoder's arithmetic
+            logger[o + 3] = (byte) (day + dayOffset);
+            putUint16(logger, o + 4, hour);
+            logger[o + 6] = (byte) minute;
+            logger[o + 7] = 0;
+            putUint16(logger, o + 8, 0x6000 + (i % 512));
+            putUint16(logger, o + 10, 200 + (i % 1000));
+            putUint16(logger, o + 14, 0x7000 + (i % 256));
+        }
+        return logger;
+    }
+
+    private static void putUint16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.bluetoothgatt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * TraceLog
+ * Diagnostics for the per-advert paths, where building log strings costs
+ * more than the work being logged. An event is an id and up to five long
+ * arguments, written into a ring buffer owned by the calling thread; the
+ * text is only produced offline, by TraceLogDecoder, from a dump.
+ *
+ * Events are defined once with a format, e.g.
+ *
+ *   static final int ADVERT = TraceLog.define("advert", "%m %ddBm temp 0x%04x");
+ *
+ * where %m prints an argument packed by MacAddress.pack, %d a decimal
+ * and %x (with an optional width) hex. Events below the current level
+ * return before touching the buffer, and none allocate. Each thread keeps
+ * its last RING_CAPACITY events, and rings outlive their threads so a
+ * dump still shows what a finished thread did.
+ *
+ * A dump may catch an event being overwritten on another thread; that
+ * event decodes with mixed arguments, nothing worse.
+ */
+public class TraceLog {
+
+    public static final int LEVEL_VERBOSE = 0;
+    public static final int LEVEL_DEBUG = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_WARN = 3;
+    public static final int LEVEL_ERROR = 4;
+    /* Record nothing */
+    public static final int LEVEL_OFF = 5;
+
+    /* Events kept per thread; a power of two */
+    public static final int RING_CAPACITY = 1024;
+    public static final int MAX_EVENTS = 256;
+
+    static final int MAGIC = 0x57545243;
+    static final int VERSION = 1;
+    /* Time, id and level, five arguments */
+    static final int EVENT_LONGS = 7;
+
+    private static volatile int sLevel = LEVEL_INFO;
+
+    private static final String[] sNames = new String[MAX_EVENTS];
+    private static final String[] sFormats = new String[MAX_EVENTS];
+    private static int sDefined;
+
+    private static final ArrayList<Ring> sRings = new ArrayList<Ring>();
+    private static final ThreadLocal<Ring> sRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread().getName());
+            synchronized (sRings) {
+                sRings.add(ring);
+            }
+            return ring;
+        }
+    };
+
+    /*
+     * Register an event and return its id
+     */
+    public static synchronized int define(String name, String format) {
+        if (sDefined == MAX_EVENTS) {
+            throw new IllegalStateException("More than " + MAX_EVENTS + " trace events");
+        }
+        sNames[sDefined] = name;
+        sFormats[sDefined] = format;
+        return sDefined++;
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isEnabled(int level) {
+        return level >= sLevel;
+    }
+
+    public static void event(int level, int event) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, 0, 0, 0, 0, 0);
+    }
+
+    public static void event(int level, int event, long a) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, a, 0, 0, 0, 0);
+    }
+
+    public static void event(int level, int event, long a, long b) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, a, b, 0, 0, 0);
+    }
+
+    public static void event(int level, int event, long a, long b, long c) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, a, b, c, 0, 0);
+    }
+
+    public static void event(int level, int event, long a, long b, long c, long d) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, a, b, c, d, 0);
+    }
+
+    public static void event(int level, int event, long a, long b, long c, long d, long e) {
+        if (level < sLevel) return;
+        sRing.get().write(level, event, a, b, c, d, e);
+    }
+
+    /*
+     * Write every thread's events to a new file in dir, named after the
+     * current time, and return it
+     */
+    public static File dump(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File file = new File(dir, "trace-" + System.currentTimeMillis() + ".wtrc");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /*
+     * File layout, big-endian:
+     *
+     *   header  "WTRC", int version, long epoch nanoseconds at nanoTime 0
+     *   events  int count, then per event: UTF name, UTF format
+     *   rings   int count, then per ring: UTF thread name, int events,
+     *           and the events oldest first as EVENT_LONGS longs each
+     */
+    public static void dump(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis() * 1000000L - System.nanoTime());
+
+        synchronized (TraceLog.class) {
+            out.writeInt(sDefined);
+            for (int i = 0; i < sDefined; i++) {
+                out.writeUTF(sNames[i]);
+                out.writeUTF(sFormats[i]);
+            }
+        }
+
+        Ring[] rings;
+        synchronized (sRings) {
+            rings = sRings.toArray(new Ring[sRings.size()]);
+        }
+        out.writeInt(rings.length);
+        long[] events = new long[RING_CAPACITY * EVENT_LONGS];
+        for (Ring ring : rings) {
+            int count = ring.copy(events);
+            out.writeUTF(ring.mThread);
+            out.writeInt(count);
+            for (int i = 0; i < count * EVENT_LONGS; i++) {
+                out.writeLong(events[i]);
+            }
+        }
+        out.flush();
+    }
+
+    private static final class Ring {
+
+        final String mThread;
+        final long[] mEvents;
+        //Events ever written; only the owning thread writes it
+        volatile long mWritten;
+
+        Ring(String thread) {
+            mThread = thread;
+            mEvents = new long[RING_CAPACITY * EVENT_LONGS];
+        }
+
+        void write(int level, int event, long a, long b, long c, long d, long e) {
+            long written = mWritten;
+            int base = (int) (written & (RING_CAPACITY - 1)) * EVENT_LONGS;
+            long[] events = mEvents;
+            events[base] = System.nanoTime();
+            events[base + 1] = ((long) event << 8) | level;
+            events[base + 2] = a;
+            events[base + 3] = b;
+            events[base + 4] = c;
+            events[base + 5] = d;
+            events[base + 6] = e;
+            mWritten = written + 1;
+        }
+
+        /*
+         * Copy out the retained events, oldest first
+         */
+        int copy(long[] out) {
+            long written = mWritten;
+            int count = (int) Math.min(written, RING_CAPACITY);
+            long first = written - count;
+            for (int i = 0; i < count; i++) {
+                int from = (int) ((first + i) & (RING_CAPACITY - 1)) * EVENT_LONGS;
+                System.arraycopy(mEvents, from, out, i * EVENT_LONGS, EVENT_LONGS);
+            }
+            return count;
+        }
+    }
+
+    private TraceLog() {
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.bluetoothgatt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * TraceLogDecoder
+ * Turns a TraceLog dump back into text, one line per event with every
+ * thread merged in time order:
+ *
+ *   2015-01-01 12:00:00.123456 I binder:1234_2 advert C2:A0:3F:00:00:01 -67dBm
+ *
+ * Usage: java -cp GatewayCore.jar com.example.bluetoothgatt.TraceLogDecoder trace.wtrc
+ */
+public class TraceLogDecoder {
+
+    private static final char[] LEVELS = { 'V', 'D', 'I', 'W', 'E' };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceLogDecoder <trace.wtrc>");
+            System.exit(1);
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out));
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            decode(in, out);
+        } finally {
+            in.close();
+            out.flush();
+        }
+    }
+
+    /*
+     * Returns the number of events written
+     */
+    public static int decode(InputStream stream, Appendable out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+        if (in.readInt() != TraceLog.MAGIC) {
+            throw new IOException("Not a trace dump");
+        }
+        int version = in.readInt();
+        if (version != TraceLog.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        long epochOffset = in.readLong();
+
+        int defined = in.readInt();
+        String[] names = new String[defined];
+        String[] formats = new String[defined];
+        for (int i = 0; i < defined; i++) {
+            names[i] = in.readUTF();
+            formats[i] = in.readUTF();
+        }
+
+        int rings = in.readInt();
+        String[] threads = new String[rings];
+        long[][] events = new long[rings][];
+        int total = 0;
+        for (int r = 0; r < rings; r++) {
+            threads[r] = in.readUTF();
+            int count = in.readInt();
+            events[r] = new long[count * TraceLog.EVENT_LONGS];
+            for (int i = 0; i < events[r].length; i++) {
+                events[r][i] = in.readLong();
+            }
+            total += count;
+        }
+
+        //Merge the threads by time
+        final long[][] byRing = events;
+        Integer[] order = new Integer[total];
+        int next = 0;
+        for (int r = 0; r < rings; r++) {
+            for (int i = 0; i < events[r].length / TraceLog.EVENT_LONGS; i++) {
+                order[next++] = (r << 16) | i;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = byRing[a >>> 16][(a & 0xFFFF) * TraceLog.EVENT_LONGS];
+                long tb = byRing[b >>> 16][(b & 0xFFFF) * TraceLog.EVENT_LONGS];
+                return ta < tb ? -1 : ta > tb ? 1 : 0;
+            }
+        });
+
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder();
+        long[] args = new long[TraceLog.EVENT_LONGS - 2];
+        for (int e = 0; e < total; e++) {
+            int ring = order[e] >>> 16;
+            int base = (order[e] & 0xFFFF) * TraceLog.EVENT_LONGS;
+            long[] ringEvents = events[ring];
+            long nanos = ringEvents[base] + epochOffset;
+            int id = (int) (ringEvents[base + 1] >>> 8);
+            int level = (int) (ringEvents[base + 1] & 0xFF);
+            System.arraycopy(ringEvents, base + 2, args, 0, args.length);
+
+            line.setLength(0);
+            line.append(date.format(new Date(nanos / 1000000L)));
+            appendPadded(line, (nanos / 1000) % 1000, 3);
+            line.append(' ').append(level < LEVELS.length ? LEVELS[level] : '?');
+            line.append(' ').append(threads[ring]).append(' ');
+            if (id < defined) {
+                line.append(names[id]).append(' ');
+                format(line, formats[id], args);
+            } else {
+                line.append("event ").append(id);
+            }
+            out.append(line).append('\n');
+        }
+        return total;
+    }
+
+    /*
+     * %d decimal, %x hex with an optional zero-padded width, %m a packed
+     * MAC address, %% a percent sign
+     */
+    static void format(StringBuilder out, String format, long[] args) {
+        int arg = 0;
+        for (int i = 0, n = format.length(); i < n; i++) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 == n) {
+                out.append(c);
+                continue;
+            }
+            int width = 0;
+            while (i + 1 < n && Character.isDigit(format.charAt(i + 1))) {
+                width = width * 10 + (format.charAt(++i) - '0');
+            }
+            if (i + 1 == n) break;
+            char conversion = format.charAt(++i);
+            if (conversion == '%') {
+                out.append('%');
+                continue;
+            }
+            long value = arg < args.length ? args[arg++] : 0;
+            switch (conversion) {
+                case 'd':
+                    out.append(value);
+                    break;
+                case 'x':
+                    String hex = Long.toHexString(value);
+                    for (int pad = hex.length(); pad < width; pad++) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                    break;
+                case 'm':
+                    out.append(MacAddress.format(value));
+                    break;
+                default:
+                    out.append('%').append(conversion);
+                    break;
+            }
+        }
+    }
+
+    private static void appendPadded(StringBuilder out, long value, int digits) {
+        String text = Long.toString(value);
+        for (int i = text.length(); i < digits; i++) {
+            out.append('0');
+        }
+        out.append(text);
+    }
+
+    private TraceLogDecoder() {
+    }
+}
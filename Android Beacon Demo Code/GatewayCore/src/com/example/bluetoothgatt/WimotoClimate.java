@@ -0,0 +1,222 @@
+package com.example.bluetoothgatt;
+
+import java.util.UUID;
+
+/**
+* Created by Dave Smith
+* Double Encore, Inc.
+* TemperatureBeacon
+*/
+public class WimotoClimate {
+	
+	/* Full Bluetooth UUID that defines the Health Thermometer Service */
+    public static final UUID TEMP_SERVICE = UUID.fromString("00005608-0000-1000-8000-00805f9b34fb");
+    public static final UUID LIGHT_SERVICE = UUID.fromString("0000560e-0000-1000-8000-00805f9b34fb");
+    public static final UUID HUM_SERVICE = UUID.fromString("00005614-0000-1000-8000-00805f9b34fb");
+	
+
+    /* Decode scratch space, one per scanning thread */
+    private static final ThreadLocal<SensorReading> sReading = new ThreadLocal<SensorReading>() {
+        @Override
+        protected SensorReading initialValue() {
+            return new SensorReading();
+        }
+    };
+
+    private String mName;
+    private int mProfile;
+    private boolean mDecoded;
+    private float mCurrentTemp;
+    private int mLightLevel;
+    private float mHumidity;
+    //As broadcast, before conversion
+    private int mRawTemp;
+    private int mRawLight;
+    private int mRawHumidity;
+    
+    //Device metadata
+    private int mSignal;
+    //Advertised power level, or AdCursor.TX_POWER_UNKNOWN
+    private int mTxPower;
+    private String mAddress;
+    //When the advert was heard, milliseconds since the epoch
+    private long mTimestamp;
+
+    /* Builder for a full scan record */
+    public WimotoClimate(byte[] scanRecord, String address, String deviceName, int rssi) {
+        this(scanRecord, 0, scanRecord.length, address, deviceName, rssi);
+    }
+    
+    
+
+    /* Builder for an advert embedded in a larger buffer, such as an HCI event */
+    public WimotoClimate(byte[] data, int offset, int length, String address, String deviceName, int rssi) {
+        this(System.currentTimeMillis(), data, offset, length, address, deviceName, rssi);
+    }
+    
+    /* Builder for an advert heard at a known time, such as a batched or recorded result */
+    public WimotoClimate(long timestamp, byte[] data, int offset, int length, String address, String deviceName, int rssi) {
+        
+    	mTimestamp = timestamp;
+    	mSignal = rssi;
+    	mAddress = address;
+    	mName = deviceName;
+    	
+    	//Locate the sensor payload through the AD structures and decode it
+    	SensorReading reading = sReading.get();
+    	mDecoded = DecoderRegistry.getDefault().decode(data, offset, length, reading);
+    	mProfile = reading.getProfile();
+    	mTxPower = reading.getTxPower();
+    	if (!mDecoded) return;
+    	
+    	//Raw values are converted to C and lux by the profile decoder. The
+    	//reading is reused, so channels this profile lacks still hold the
+    	//last decode's values; those stay at 0 here.
+    	if (reading.has(SensorReading.CHANNEL_TEMPERATURE)) {
+    	    mCurrentTemp = reading.getValue(SensorReading.CHANNEL_TEMPERATURE);
+    	    mRawTemp = reading.getRaw(SensorReading.CHANNEL_TEMPERATURE);
+    	}
+    	if (reading.has(SensorReading.CHANNEL_LIGHT)) {
+    	    mLightLevel = reading.getRaw(SensorReading.CHANNEL_LIGHT);
+    	    mRawLight = reading.getRaw(SensorReading.CHANNEL_LIGHT);
+    	}
+    	if (reading.has(SensorReading.CHANNEL_HUMIDITY)) {
+    	    mHumidity = reading.getValue(SensorReading.CHANNEL_HUMIDITY);
+    	    mRawHumidity = reading.getRaw(SensorReading.CHANNEL_HUMIDITY);
+    	}
+    	
+    	//Captures carry no cached device name, so fall back to the advertised one
+    	if (mName == null) {
+    	    AdCursor cursor = reading.mCursor.reset(data, offset, length);
+    	    while (cursor.next()) {
+    	        if (cursor.isName()) {
+    	            mName = cursor.getName();
+    	            break;
+    	        }
+    	    }
+    	}
+        
+    }
+    
+    
+    /* Copy of an already decoded beacon with a new signal reading */
+    private WimotoClimate(WimotoClimate other, int rssi, long timestamp) {
+        mName = other.mName;
+        mProfile = other.mProfile;
+        mDecoded = other.mDecoded;
+        mCurrentTemp = other.mCurrentTemp;
+        mLightLevel = other.mLightLevel;
+        mHumidity = other.mHumidity;
+        mRawTemp = other.mRawTemp;
+        mRawLight = other.mRawLight;
+        mRawHumidity = other.mRawHumidity;
+        mAddress = other.mAddress;
+        mTxPower = other.mTxPower;
+        mSignal = rssi;
+        mTimestamp = timestamp;
+    }
+    
+    /* Copy of an already decoded beacon with one channel replaced */
+    private WimotoClimate(WimotoClimate other, int channel, int raw, long timestamp) {
+        this(other, other.mSignal, timestamp);
+        switch (channel) {
+            case SensorReading.CHANNEL_TEMPERATURE:
+                mRawTemp = raw;
+                mCurrentTemp = WimotoConversions.toCelsius(raw);
+                break;
+            case SensorReading.CHANNEL_LIGHT:
+                mRawLight = raw;
+                mLightLevel = WimotoConversions.toLux(raw);
+                break;
+            case SensorReading.CHANNEL_HUMIDITY:
+                mRawHumidity = raw;
+                mHumidity = WimotoConversions.toRelativeHumidity(raw);
+                break;
+        }
+    }
+    
+    /*
+     * Cheap update for a repeated advert: the payload is unchanged so it
+     * isn't decoded again
+     */
+    public WimotoClimate withSignal(int rssi) {
+        return new WimotoClimate(this, rssi, System.currentTimeMillis());
+    }
+    
+    public WimotoClimate withSignal(int rssi, long timestamp) {
+        return new WimotoClimate(this, rssi, timestamp);
+    }
+    
+    /*
+     * Update from a single characteristic value, such as a notification.
+     * The signal is kept from the last advert.
+     */
+    public WimotoClimate withReading(int channel, int raw, long timestamp) {
+        return new WimotoClimate(this, channel, raw, timestamp);
+    }
+    
+    
+    public String getName() {
+        return mName;
+    }
+
+    public int getSignal() {
+        return mSignal;
+    }
+
+    /*
+     * Power level in dBm from the advert, or AdCursor.TX_POWER_UNKNOWN
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public float getCurrentTemp() {
+        return mCurrentTemp;
+    }
+
+    public int getLightLevel(){
+    	return mLightLevel;
+    }
+    
+    public float getHumidity(){
+    	return mHumidity;
+    }
+    
+    public int getRawTemp(){
+    	return mRawTemp;
+    }
+    
+    public int getRawLight(){
+    	return mRawLight;
+    }
+    
+    public int getRawHumidity(){
+    	return mRawHumidity;
+    }
+    
+    public int getProfile(){
+    	return mProfile;
+    }
+    
+    /*
+     * False if the advert did not carry a payload from a known profile
+     */
+    public boolean isDecoded(){
+    	return mDecoded;
+    }
+    
+    
+    public String getAddress(){
+    	return mAddress;
+    }
+    
+    public long getTimestamp(){
+    	return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%ddBm): %.1fC", mName, mSignal, mCurrentTemp);
+    }
+}
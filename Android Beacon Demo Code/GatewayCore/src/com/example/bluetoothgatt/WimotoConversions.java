@@ -0,0 +1,48 @@
+package com.example.bluetoothgatt;
+
+/**
+ * WimotoConversions
+ * Raw-to-engineering unit conversions shared by the advertisement,
+ * notification and data logger paths.
+ */
+public class WimotoConversions {
+
+    /*
+     * T = -46.85 + 175.72 * ST/2^16, ST being the unsigned 16-bit reading
+     */
+    public static float toCelsius(int raw) {
+        return -46.85f + (175.72f * ((float) raw / 65536));
+    }
+
+    /*
+     * RH = -6 + 125 * SRH/2^16
+     */
+    public static float toRelativeHumidity(int raw) {
+        return -6f + (125f * ((float) raw / 65536));
+    }
+
+    /*
+     * The light level is already reported in lux
+     */
+    public static int toLux(int raw) {
+        return raw;
+    }
+
+    /*
+     * 6-bit two's complement accelerometer count to g (1.5g full scale)
+     */
+    public static float toGravity(int raw) {
+        int signed = (raw & 0x20) != 0 ? (raw & 0x3F) - 64 : (raw & 0x3F);
+        return signed * (1.5f / 32);
+    }
+
+    /*
+     * Battery byte, 255 being full, to a percentage
+     */
+    public static int toBatteryPercent(int raw) {
+        return (raw & 0xFF) * 100 / 255;
+    }
+
+    private WimotoConversions() {
+    }
+}
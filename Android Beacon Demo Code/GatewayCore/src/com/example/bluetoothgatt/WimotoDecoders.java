@@ -0,0 +1,103 @@
+package com.example.bluetoothgatt;
+
+/**
+ * WimotoDecoders
+ * Payload decoders for each product family. All of them follow the layout
+ * of the documented Climate broadcast: big-endian fields in the order of the
+ * profile's services, following the UUID or company identifier.
+ */
+public class WimotoDecoders {
+
+    /* TT-TT LL-LL HH-HH */
+    public static final AdvertDecoder CLIMATE = new AdvertDecoder() {
+        @Override
+        public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+            if (length < 6) return false;
+
+            int temp = readUint16(data, offset);
+            int light = readUint16(data, offset + 2);
+            int humidity = readUint16(data, offset + 4);
+
+            out.set(SensorReading.CHANNEL_TEMPERATURE, temp, WimotoConversions.toCelsius(temp));
+            out.set(SensorReading.CHANNEL_LIGHT, light, WimotoConversions.toLux(light));
+            out.set(SensorReading.CHANNEL_HUMIDITY, humidity,
+                    WimotoConversions.toRelativeHumidity(humidity));
+            return true;
+        }
+    };
+
+    /* TT-TT LL-LL MM-MM, soil moisture being reported as raw counts */
+    public static final AdvertDecoder GROW = new AdvertDecoder() {
+        @Override
+        public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+            if (length < 6) return false;
+
+            int temp = readUint16(data, offset);
+            int light = readUint16(data, offset + 2);
+            int moisture = readUint16(data, offset + 4);
+
+            out.set(SensorReading.CHANNEL_TEMPERATURE, temp, WimotoConversions.toCelsius(temp));
+            out.set(SensorReading.CHANNEL_LIGHT, light, WimotoConversions.toLux(light));
+            out.set(SensorReading.CHANNEL_SOIL_MOISTURE, moisture, moisture);
+            return true;
+        }
+    };
+
+    /* X Y Z PIR Battery, as laid out in the Sentry broadcast table */
+    public static final AdvertDecoder SENTRY = new AdvertDecoder() {
+        @Override
+        public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+            if (length < 5) return false;
+
+            int x = data[offset] & 0x3F;
+            int y = data[offset + 1] & 0x3F;
+            int z = data[offset + 2] & 0x3F;
+            int motion = data[offset + 3] & 0x01;
+            int battery = data[offset + 4] & 0xFF;
+
+            out.set(SensorReading.CHANNEL_ACCEL_X, x, WimotoConversions.toGravity(x));
+            out.set(SensorReading.CHANNEL_ACCEL_Y, y, WimotoConversions.toGravity(y));
+            out.set(SensorReading.CHANNEL_ACCEL_Z, z, WimotoConversions.toGravity(z));
+            out.set(SensorReading.CHANNEL_MOTION, motion, motion);
+            out.set(SensorReading.CHANNEL_BATTERY, battery,
+                    WimotoConversions.toBatteryPercent(battery));
+            return true;
+        }
+    };
+
+    /* Thermopile TT-TT, probe PP-PP; both share the Climate temperature encoding */
+    public static final AdvertDecoder THERMO = new AdvertDecoder() {
+        @Override
+        public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+            if (length < 4) return false;
+
+            int thermopile = readUint16(data, offset);
+            int probe = readUint16(data, offset + 2);
+
+            out.set(SensorReading.CHANNEL_TEMPERATURE, thermopile,
+                    WimotoConversions.toCelsius(thermopile));
+            out.set(SensorReading.CHANNEL_PROBE_TEMPERATURE, probe,
+                    WimotoConversions.toCelsius(probe));
+            return true;
+        }
+    };
+
+    /* Single leak byte, non-zero when water is detected */
+    public static final AdvertDecoder WATER = new AdvertDecoder() {
+        @Override
+        public boolean decode(byte[] data, int offset, int length, SensorReading out) {
+            if (length < 1) return false;
+
+            int leak = data[offset] != 0 ? 1 : 0;
+            out.set(SensorReading.CHANNEL_LEAK, leak, leak);
+            return true;
+        }
+    };
+
+    static int readUint16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private WimotoDecoders() {
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.bluetoothgatt;
+
+/**
+ * WimotoProfile
+ * Identifiers for the Wimoto product families and the 16-bit short forms of
+ * their proprietary service UUIDs, taken from the Profiles & Characteristics
+ * sheet (bits 0-15 of the first group of each 128-bit UUID).
+ */
+public class WimotoProfile {
+
+    public static final int UNKNOWN = 0;
+    public static final int CLIMATE = 1;
+    public static final int GROW = 2;
+    public static final int SENTRY = 3;
+    public static final int THERMO = 4;
+    public static final int WATER = 5;
+
+    /* Company identifier at the head of the broadcast data (01-17) */
+    public static final int COMPANY_ID = 0x1701;
+
+    /* Climate: E003xxxx-EC48-4ED0-9F3B-5419C00A94FD */
+    public static final int CLIMATE_TEMP_SERVICE = 0x5608;
+    public static final int CLIMATE_LIGHT_SERVICE = 0x560E;
+    public static final int CLIMATE_HUM_SERVICE = 0x5614;
+    public static final int CLIMATE_LOGGER_SERVICE = 0x561A;
+    /* Current value characteristics, readable and notifying */
+    public static final int CLIMATE_TEMP_CURRENT = 0x5609;
+    public static final int CLIMATE_LIGHT_CURRENT = 0x560F;
+    public static final int CLIMATE_HUM_CURRENT = 0x5615;
+
+    /* Grow: DAF4xxxx-BFB0-4DD8-9293-62AF5F545E31 */
+    public static final int GROW_TEMP_SERVICE = 0x4706;
+    public static final int GROW_LIGHT_SERVICE = 0x470C;
+    public static final int GROW_MOISTURE_SERVICE = 0x4712;
+    public static final int GROW_LOGGER_SERVICE = 0x4718;
+
+    /* Sentry: 4209xxxx-E433-4420-83D8-CDAACCD2E312 */
+    public static final int SENTRY_ACCEL_SERVICE = 0xDC68;
+    public static final int SENTRY_MOTION_SERVICE = 0xDC6D;
+    public static final int SENTRY_LOGGER_SERVICE = 0xDC71;
+
+    /* Thermo: 497Bxxxx-B61E-4F82-8FE9-B12CF2497338 */
+    public static final int THERMO_THERMOPILE_SERVICE = 0x8E4E;
+    public static final int THERMO_PROBE_SERVICE = 0x8E54;
+    public static final int THERMO_LOGGER_SERVICE = 0x8E5A;
+
+    /* Water: 35D8xxxx-9D78-43C2-AB2E-0E48CAC2DBDA */
+    public static final int WATER_LEAK_SERVICE = 0xC7DB;
+    public static final int WATER_LOGGER_SERVICE = 0xC7E5;
+
+    public static String getName(int profile) {
+        switch (profile) {
+            case CLIMATE:
+                return "Climate";
+            case GROW:
+                return "Grow";
+            case SENTRY:
+                return "Sentry";
+            case THERMO:
+                return "Thermo";
+            case WATER:
+                return "Water";
+            default:
+                return "Unknown";
+        }
+    }
+
+    private WimotoProfile() {
+    }
+}
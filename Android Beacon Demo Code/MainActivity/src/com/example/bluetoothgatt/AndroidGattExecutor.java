@@ -0,0 +1,267 @@
+package com.example.bluetoothgatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * AndroidGattExecutor
+ * GattExecutor over BluetoothGatt, one connection per device address.
+ * Stack callbacks arrive on binder threads; they're posted to the handler
+ * so the scheduler is only ever touched from the handler's thread, which
+ * is also where its timeouts are driven from. Notifications are the
+ * exception: they go straight to the NotificationListener on the binder
+ * thread.
+ */
+class AndroidGattExecutor implements GattExecutor {
+    private static final String TAG = "AndroidGattExecutor";
+
+    interface NotificationListener {
+        void onNotification(String address, UUID characteristic, byte[] value);
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final Handler mHandler;
+    private final HashMap<String, BluetoothGatt> mGatts;
+    private GattScheduler mScheduler;
+    private volatile NotificationListener mNotificationListener;
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    AndroidGattExecutor(Context context, BluetoothAdapter adapter, Handler handler) {
+        mContext = context;
+        mAdapter = adapter;
+        mHandler = handler;
+        mGatts = new HashMap<String, BluetoothGatt>();
+    }
+
+    void attach(GattScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    void setNotificationListener(NotificationListener listener) {
+        mNotificationListener = listener;
+    }
+
+    /*
+     * Queue an operation; call from the handler's thread
+     */
+    void enqueue(String address, GattOperation operation) {
+        mScheduler.enqueue(address, operation, SystemClock.uptimeMillis());
+        tick();
+    }
+
+    /*
+     * Hold a connection to the device and run the operation on each
+     * connection; call from the handler's thread
+     */
+    void subscribe(String address, GattOperation operation) {
+        mScheduler.subscribe(address, operation, SystemClock.uptimeMillis());
+        tick();
+    }
+
+    void unsubscribe(String address) {
+        mScheduler.unsubscribe(address, SystemClock.uptimeMillis());
+        tick();
+    }
+
+    /*
+     * Drop all queued work and close every connection
+     */
+    void shutdown() {
+        mHandler.removeCallbacks(mTickRunnable);
+        mScheduler.cancelAll(SystemClock.uptimeMillis());
+        for (BluetoothGatt gatt : mGatts.values()) {
+            gatt.close();
+        }
+        mGatts.clear();
+    }
+
+    private void tick() {
+        mHandler.removeCallbacks(mTickRunnable);
+        long now = SystemClock.uptimeMillis();
+        long next = mScheduler.tick(now);
+        if (next >= 0) {
+            mHandler.postAtTime(mTickRunnable, next);
+        }
+    }
+
+    /* GattExecutor */
+
+    @Override
+    public boolean connect(String address) {
+        //Left over from a connect that timed out without a callback
+        BluetoothGatt stale = mGatts.remove(address);
+        if (stale != null) stale.close();
+
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothGatt gatt = device.connectGatt(mContext, false, new DeviceCallback(address));
+        if (gatt == null) return false;
+        mGatts.put(address, gatt);
+        return true;
+    }
+
+    @Override
+    public void disconnect(String address) {
+        BluetoothGatt gatt = mGatts.get(address);
+        if (gatt != null) gatt.disconnect();
+    }
+
+    @Override
+    public boolean execute(String address, GattOperation operation) {
+        BluetoothGatt gatt = mGatts.get(address);
+        if (gatt == null) return false;
+        BluetoothGattService service = gatt.getService(operation.getService());
+        if (service == null) return false;
+        BluetoothGattCharacteristic characteristic =
+                service.getCharacteristic(operation.getCharacteristic());
+        if (characteristic == null) return false;
+
+        switch (operation.getType()) {
+            case GattOperation.TYPE_READ:
+                return gatt.readCharacteristic(characteristic);
+            case GattOperation.TYPE_WRITE:
+                characteristic.setValue(operation.getValue());
+                return gatt.writeCharacteristic(characteristic);
+            case GattOperation.TYPE_WRITE_DESCRIPTOR:
+                BluetoothGattDescriptor descriptor =
+                        characteristic.getDescriptor(operation.getDescriptor());
+                if (descriptor == null) return false;
+                descriptor.setValue(operation.getValue());
+                return gatt.writeDescriptor(descriptor);
+            case GattOperation.TYPE_SUBSCRIBE:
+                BluetoothGattDescriptor config =
+                        characteristic.getDescriptor(operation.getDescriptor());
+                if (config == null) return false;
+                //Local delivery first, then ask the device to start sending
+                if (!gatt.setCharacteristicNotification(characteristic, true)) return false;
+                config.setValue(operation.getValue());
+                return gatt.writeDescriptor(config);
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Stack callbacks, posted to the handler. Each carries the gatt it came
+     * from and is dropped unless that is still the device's connection: a
+     * connect or disconnect the scheduler timed out may answer after a
+     * newer connection has been opened, and must not be taken for it.
+     */
+
+    private void postConnected(final String address, final BluetoothGatt gatt) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mGatts.get(address) != gatt) return;
+                mScheduler.onConnected(address, SystemClock.uptimeMillis());
+                tick();
+            }
+        });
+    }
+
+    private void postDisconnected(final String address, final BluetoothGatt gatt) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                gatt.close();
+                if (mGatts.get(address) != gatt) return;
+                mGatts.remove(address);
+                mScheduler.onDisconnected(address, SystemClock.uptimeMillis());
+                tick();
+            }
+        });
+    }
+
+    private void postComplete(final String address, final BluetoothGatt gatt, final int status,
+            final byte[] value) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mGatts.get(address) != gatt) return;
+                mScheduler.onComplete(address, status, value, SystemClock.uptimeMillis());
+                tick();
+            }
+        });
+    }
+
+    private class DeviceCallback extends BluetoothGattCallback {
+        private final String mAddress;
+
+        DeviceCallback(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                postDisconnected(mAddress, gatt);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Service discovery failed on " + mAddress + ": " + status);
+                gatt.disconnect();
+                return;
+            }
+            postConnected(mAddress, gatt);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic, int status) {
+            //The characteristic is reused by the stack, so keep a copy
+            byte[] value = characteristic.getValue();
+            postComplete(mAddress, gatt, toStatus(status), value == null ? null : value.clone());
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic, int status) {
+            postComplete(mAddress, gatt, toStatus(status), null);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic) {
+            NotificationListener listener = mNotificationListener;
+            if (listener == null) return;
+            byte[] value = characteristic.getValue();
+            listener.onNotification(mAddress, characteristic.getUuid(),
+                    value == null ? null : value.clone());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                int status) {
+            postComplete(mAddress, gatt, toStatus(status), null);
+        }
+
+        private int toStatus(int status) {
+            return status == BluetoothGatt.GATT_SUCCESS
+                    ? GattScheduler.STATUS_SUCCESS : GattScheduler.STATUS_FAILED;
+        }
+    }
+}
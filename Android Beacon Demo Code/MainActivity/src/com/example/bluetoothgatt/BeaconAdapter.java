@@ -0,0 +1,222 @@
+package com.example.bluetoothgatt;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * BeaconAdapter
+ * Displays the Climate data in a table
+ * Device Name - Temperature - Light Level - RSSI
+ *
+ * Snapshots from the decode pipeline are only recorded as they arrive. Once per
+ * display frame the pending changes are applied: a new device triggers a
+ * single data set change, otherwise only the visible rows that changed are
+ * rebound. Rows keep a stable id per device address, and a device the
+ * pipeline has evicted loses its row with the first snapshot missing it.
+ */
+class BeaconAdapter extends BaseAdapter implements Choreographer.FrameCallback {
+
+    private static class Row {
+        final long id;
+        WimotoClimate beacon;
+        //Smoothed by the pipeline, changing even when the beacon doesn't
+        float rssi;
+        float distance;
+        boolean dirty;
+        //Generation of the last snapshot holding the device
+        long seen;
+
+        Row(long id, WimotoClimate beacon) {
+            this.id = id;
+            this.beacon = beacon;
+        }
+    }
+
+    private static class ViewHolder {
+        TextView name;
+        TextView temperature;
+        TextView light;
+        TextView rssi;
+    }
+
+    private final Context mContext;
+    private final ListView mList;
+    private final ArrayList<Row> mRows;
+    private final HashMap<String, Row> mRowsByAddress;
+    //Rows changed since the last frame
+    private final ArrayList<Row> mDirty;
+
+    private long mNextId;
+    private long mGeneration;
+    private boolean mStructureChanged;
+    private boolean mFrameScheduled;
+
+    public BeaconAdapter(Context context, ListView list) {
+        mContext = context;
+        mList = list;
+        mRows = new ArrayList<Row>();
+        mRowsByAddress = new HashMap<String, Row>();
+        mDirty = new ArrayList<Row>();
+    }
+
+    /*
+     * Called on the main thread with the latest pipeline snapshot. Beacons
+     * are immutable and replaced on every change, so a row is only marked
+     * dirty when its instance differs or the smoothed signal moved by a
+     * whole dB.
+     */
+    public void applySnapshot(BeaconSnapshot snapshot) {
+        boolean changed = false;
+        long generation = ++mGeneration;
+        for (int i = 0, n = snapshot.size(); i < n; i++) {
+            WimotoClimate beacon = snapshot.get(i);
+            float rssi = snapshot.getRssi(i);
+            Row row = mRowsByAddress.get(beacon.getAddress());
+            if (row != null) row.seen = generation;
+            if (row == null) {
+                row = new Row(mNextId++, beacon);
+                row.seen = generation;
+                mRowsByAddress.put(beacon.getAddress(), row);
+                mRows.add(row);
+                mStructureChanged = true;
+            } else if (row.beacon != beacon || Math.round(row.rssi) != Math.round(rssi)) {
+                row.beacon = beacon;
+            } else {
+                continue;
+            }
+            row.rssi = rssi;
+            row.distance = snapshot.getDistance(i);
+
+            if (!row.dirty) {
+                row.dirty = true;
+                mDirty.add(row);
+            }
+            changed = true;
+        }
+        //Every snapshot holds every tracked device, so fewer means evictions
+        if (mRows.size() > snapshot.size()) {
+            removeUnseen(generation);
+            changed = true;
+        }
+        if (changed) scheduleFrame();
+    }
+
+    private void removeUnseen(long generation) {
+        int kept = 0;
+        for (int i = 0, n = mRows.size(); i < n; i++) {
+            Row row = mRows.get(i);
+            if (row.seen == generation) {
+                mRows.set(kept++, row);
+            } else {
+                mRowsByAddress.remove(row.beacon.getAddress());
+            }
+        }
+        while (mRows.size() > kept) {
+            mRows.remove(mRows.size() - 1);
+        }
+        mStructureChanged = true;
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) return;
+        mFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /*
+     * Drop any frame still pending, e.g. when the activity pauses
+     */
+    public void cancelFrame() {
+        if (!mFrameScheduled) return;
+        mFrameScheduled = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    /* Choreographer.FrameCallback */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+
+        if (mStructureChanged) {
+            //New rows shift positions, so let the list rebind what it shows
+            mStructureChanged = false;
+            notifyDataSetChanged();
+        } else {
+            int first = mList.getFirstVisiblePosition();
+            int last = mList.getLastVisiblePosition();
+            for (int i = first; i <= last && i < mRows.size(); i++) {
+                Row row = mRows.get(i);
+                if (!row.dirty) continue;
+
+                View view = mList.getChildAt(i - first);
+                if (view != null) bindView(view, row);
+            }
+        }
+
+        for (int i = 0; i < mDirty.size(); i++) {
+            mDirty.get(i).dirty = false;
+        }
+        mDirty.clear();
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public WimotoClimate getItem(int position) {
+        return mRows.get(position).beacon;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = LayoutInflater.from(mContext)
+                    .inflate(R.layout.item_beacon_list, parent, false);
+
+            ViewHolder holder = new ViewHolder();
+            holder.name = (TextView) convertView.findViewById(R.id.text_name);
+            holder.temperature = (TextView) convertView.findViewById(R.id.text_temperature);
+            holder.light = (TextView) convertView.findViewById(R.id.text_address);
+            holder.rssi = (TextView) convertView.findViewById(R.id.text_rssi);
+            convertView.setTag(holder);
+        }
+
+        bindView(convertView, mRows.get(position));
+        return convertView;
+    }
+
+    private void bindView(View view, Row row) {
+        ViewHolder holder = (ViewHolder) view.getTag();
+        WimotoClimate beacon = row.beacon;
+
+        holder.name.setText(beacon.getName());
+        holder.temperature.setText(String.format("%.2f C", beacon.getCurrentTemp()));
+        holder.light.setText(String.format("%d lux", beacon.getLightLevel()));
+        if (Float.isNaN(row.distance)) {
+            holder.rssi.setText(String.format("%.0fdBm", row.rssi));
+        } else {
+            holder.rssi.setText(String.format("%.0fdBm ~%.1fm", row.rssi, row.distance));
+        }
+    }
+}
@@ -4,25 +4,23 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.view.ViewGroup;
 import android.view.Window;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
 import java.util.UUID;
 
@@ -34,10 +32,32 @@ import java.util.UUID;
 public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.LeScanCallback {
     private static final String TAG = "BeaconActivity";
 
+    private static final int MSG_SNAPSHOT = 0;
+
+    /* Adverts held between the scan callback and the decode worker */
+    private static final int QUEUE_CAPACITY = 512;
+    /* Longest wait for the decode worker at the end of a window */
+    private static final long DRAIN_TIMEOUT = 500;
+    private static final long DRAIN_POLL = 20;
+
     private BluetoothAdapter mBluetoothAdapter;
-    /* Collect unique devices discovered, keyed by address */
-    private HashMap<String, WimotoClimate> mBeacons;
+    /* Decodes and tracks devices on its own thread, keyed by address */
+    private DecodePipeline mPipeline;
+    /* Every reading heard, downsampled to minutes and hours */
+    private SensorHistory mHistory;
+    /* Readings persisted across launches, null if storage isn't available */
+    private ReadingLog mReadingLog;
+    private ReadingUploader mUploader;
+    /* Sizes each scan window and the pause after it */
+    private AdaptiveScanScheduler mScheduler;
     private BeaconAdapter mAdapter;
+    /* Metrics as of the last window, to log the difference */
+    private PipelineMetrics.Snapshot mLastMetrics;
+    /* Raw scan traffic for replay, null unless record_scan_traffic is set */
+    private ScanRecorder mRecorder;
+    /* Ending a window: waiting for the worker to catch up */
+    private long mWindowStop;
+    private long mDrainTarget;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,7 +70,7 @@ public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.L
          * in a list, using a custom adapter implementation
          */
         ListView list = new ListView(this);
-        mAdapter = new BeaconAdapter(this);
+        mAdapter = new BeaconAdapter(this, list);
         list.setAdapter(mAdapter);
         setContentView(list);
 
@@ -61,7 +81,44 @@ public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.L
         BluetoothManager manager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         mBluetoothAdapter = manager.getAdapter();
 
-        mBeacons = new HashMap<String, WimotoClimate>();
+        mScheduler = new AdaptiveScanScheduler(5000, 2500);
+
+        mPipeline = new DecodePipeline(QUEUE_CAPACITY, new AdvertDeduplicator());
+        mHistory = new SensorHistory();
+        mPipeline.setScanScheduler(mScheduler);
+        mPipeline.setHistory(mHistory);
+        try {
+            mReadingLog = new ReadingLog(new File(getFilesDir(), "readings"));
+            mPipeline.setReadingLog(mReadingLog);
+            Log.i(TAG, "Reading log recovered " + mReadingLog.getRecoveredCount() + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Reading log unavailable", e);
+        }
+        if (getResources().getBoolean(R.bool.upload_readings)) {
+            try {
+                mUploader = new ReadingUploader(new URL(getString(R.string.collector_url)),
+                        new File(getFilesDir(), "uploads"));
+                mUploader.start();
+                mPipeline.setUploader(mUploader);
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "Collector URL invalid", e);
+            }
+        }
+        mPipeline.setListener(new DecodePipeline.Listener() {
+            @Override
+            public void onSnapshotAvailable() {
+                mHandler.sendEmptyMessage(MSG_SNAPSHOT);
+            }
+        });
+        mPipeline.start();
+
+        if (getResources().getBoolean(R.bool.record_scan_traffic)) {
+            try {
+                mRecorder = ScanRecorder.open(new File(getFilesDir(), "scans"));
+            } catch (IOException e) {
+                Log.w(TAG, "Scan recording unavailable", e);
+            }
+        }
     }
 
     @Override
@@ -100,7 +157,26 @@ public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.L
         //Cancel any scans in progress
         mHandler.removeCallbacks(mStopRunnable);
         mHandler.removeCallbacks(mStartRunnable);
+        mHandler.removeCallbacks(mDrainCheck);
         mBluetoothAdapter.stopLeScan(this);
+        mAdapter.cancelFrame();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPipeline.stop();
+        if (mRecorder != null) {
+            mRecorder.close();
+            Log.i(TAG, "Recorded " + mRecorder.getRecordedCount() + " adverts");
+        }
+        if (mReadingLog != null) {
+            mReadingLog.close();
+        }
+        if (mUploader != null) {
+            //Anything not yet sent is spilled and goes out next time
+            mUploader.close();
+        }
     }
 
     private Runnable mStopRunnable = new Runnable() {
@@ -112,43 +188,118 @@ public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.L
     private Runnable mStartRunnable = new Runnable() {
         @Override
         public void run() {
+            mPipeline.getMetrics().increment(PipelineMetrics.SCAN_RESTARTS);
             startScan();
         }
     };
 
     private void startScan() {
         //Scan for devices advertising the thermometer service
-        mBluetoothAdapter.startLeScan(this);
+        mScheduler.setPowerState(PowerState.read(this));
+        long window = mScheduler.onWindowStart(SystemClock.elapsedRealtime());
+        mPipeline.getMetrics().increment(PipelineMetrics.SCAN_STARTS);
+        if (!mBluetoothAdapter.startLeScan(this)) {
+            //The old API gives no reason
+            Log.w(TAG, "LE Scan Failed");
+            mPipeline.getMetrics().onScanFailed(0);
+        }
         setProgressBarIndeterminateVisibility(true);
 
-        mHandler.postDelayed(mStopRunnable, 5000);
+        mHandler.postDelayed(mStopRunnable, window);
     }
 
+    /*
+     * The scheduler hears about adverts from the decode worker, so the
+     * window's decision waits, within bounds, until the worker has drained
+     * everything queued during it
+     */
     private void stopScan() {
         mBluetoothAdapter.stopLeScan(this);
         setProgressBarIndeterminateVisibility(false);
+        mWindowStop = SystemClock.elapsedRealtime();
+        mDrainTarget = mPipeline.getAcceptedCount();
+        mDrainCheck.run();
+    }
+
+    private final Runnable mDrainCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mPipeline.getProcessedCount() < mDrainTarget
+                    && SystemClock.elapsedRealtime() - mWindowStop < DRAIN_TIMEOUT) {
+                mHandler.postDelayed(this, DRAIN_POLL);
+                return;
+            }
+            endWindow();
+        }
+    };
+
+    private void endWindow() {
+        long interval = mScheduler.onWindowEnd(mWindowStop);
+        Log.i(TAG, "Scan schedule " + mScheduler);
+        logPipeline();
+        if (mRecorder != null) {
+            //A late callback may still be writing
+            synchronized (mRecorder) {
+                mRecorder.flush();
+            }
+        }
 
-        mHandler.postDelayed(mStartRunnable, 2500);
+        mHandler.postDelayed(mStartRunnable, interval);
+    }
+
+    private void logPipeline() {
+        AdvertDeduplicator deduplicator = mPipeline.getDeduplicator();
+        Log.i(TAG, "Adverts queued: " + mPipeline.getAcceptedCount()
+                + ", dropped: " + mPipeline.getDroppedCount()
+                + ", decoded: " + deduplicator.getPassedCount()
+                + ", signal only: " + deduplicator.getRssiUpdateCount()
+                + ", suppressed: " + deduplicator.getSuppressedCount()
+                + ", snapshots: " + mPipeline.getPublishedCount()
+                + ", evicted: " + mPipeline.getEvictedCount()
+                + ", history: " + mHistory.size() + " devices");
+
+        //Everything since the last window, for sizing and regressions
+        PipelineMetrics.Snapshot metrics = mPipeline.getMetrics().snapshot();
+        if (mLastMetrics != null) {
+            Log.i(TAG, "Pipeline metrics:\n" + metrics.since(mLastMetrics));
+        }
+        mLastMetrics = metrics;
+
+        if (mUploader != null) {
+            Log.i(TAG, "Readings uploaded: " + mUploader.getUploadedCount()
+                    + ", pending: " + mUploader.getPendingCount()
+                    + ", lag: " + mUploader.getLag(System.currentTimeMillis()) + "ms"
+                    + ", spilled: " + mUploader.getSpillCount()
+                    + ", dropped: " + mUploader.getDroppedCount()
+                    + ", failures: " + mUploader.getFailureCount());
+        }
     }
 
     /* BluetoothAdapter.LeScanCallback */
     /*
      * Callback used when a device has been found
      * Able to access device information as well as broadcast data
-     * When a device has been found, a WimotoClimate object is created and then added to a database
+     * When a device has been found, its advert is queued for the decode pipeline
      * 
      */
 
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        Log.i(TAG, "New LE Device: " + device.getName() + " @ " + rssi);
- 
         /*
-         * Create a new beacon from the list of obtains AD structures
-         * and pass it up to the main thread
+         * Only copy the advert into the pipeline queue here; deduplication
+         * and decoding happen on its worker thread
          */
-        WimotoClimate beacon = new WimotoClimate(scanRecord, device.getName(), rssi);
-        mHandler.sendMessage(Message.obtain(null, 0, beacon));
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+        if (mRecorder != null) {
+            synchronized (mRecorder) {
+                mRecorder.onAdvert(timestamp, device.getAddress(), device.getName(),
+                        rssi, scanRecord, 0, scanRecord.length);
+            }
+        }
+        mPipeline.onAdvert(timestamp, device.getAddress(), device.getName(),
+                rssi, scanRecord, 0, scanRecord.length);
+        mPipeline.getMetrics().record(PipelineMetrics.STAGE_CALLBACK, System.nanoTime() - start);
     }
 
         /*
@@ -158,51 +309,17 @@ public class BeaconKitKatActivity extends Activity implements BluetoothAdapter.L
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            WimotoClimate beacon = (WimotoClimate) msg.obj;
-            mBeacons.put(beacon.getName(), beacon);
-
-            mAdapter.setNotifyOnChange(false);
-            mAdapter.clear();
-            mAdapter.addAll(mBeacons.values());
-            mAdapter.notifyDataSetChanged();
-        }
-    };
-
-    /*
-     * A custom adapter implementation that displays the TemperatureBeacon
-     * element data in columns, and also varies the text color of each row
-     * by the temperature values of the beacon
-     */
-    private static class BeaconAdapter extends ArrayAdapter<WimotoClimate> {
-
-        public BeaconAdapter(Context context) {
-            super(context, 0);
-        }
-
-        @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            if (convertView == null) {
-                convertView = LayoutInflater.from(getContext())
-                        .inflate(R.layout.item_beacon_list, parent, false);
+            //The adapter picks up the change on the next frame
+            switch (msg.what) {
+                case MSG_SNAPSHOT:
+                    BeaconSnapshot snapshot = mPipeline.takeSnapshot();
+                    if (snapshot == null) break;
+                    long start = System.nanoTime();
+                    mAdapter.applySnapshot(snapshot);
+                    mPipeline.getMetrics().record(PipelineMetrics.STAGE_UI,
+                            System.nanoTime() - start);
+                    break;
             }
-
-            WimotoClimate beacon = getItem(position);
-
-            TextView nameView = (TextView) convertView.findViewById(R.id.text_name);
-            nameView.setText(beacon.getName());
-
-            TextView tempView = (TextView) convertView.findViewById(R.id.text_temperature);
-            tempView.setText(String.format("%.2f C", beacon.getCurrentTemp()));
-
-            TextView addressView = (TextView) convertView.findViewById(R.id.text_address);
-            addressView.setText(String.format("%d lux", beacon.getLightLevel()));
-
-            TextView rssiView = (TextView) convertView.findViewById(R.id.text_rssi);
-            rssiView.setText(String.format("%ddBm", beacon.getSignal()));
-
-            return convertView;
         }
-
-
-    }
+    };
 }
\ No newline at end of file
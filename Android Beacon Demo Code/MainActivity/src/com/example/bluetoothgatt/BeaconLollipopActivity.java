@@ -10,7 +10,6 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
-import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
@@ -19,19 +18,18 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.view.ViewGroup;
 import android.view.Window;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -46,11 +44,41 @@ public class BeaconLollipopActivity extends Activity {
 	
     private static final String TAG = "BeaconActivity";
 
+    private static final int MSG_SNAPSHOT = 0;
+
+    private static final int TRACE_SCAN_RESULT = TraceLog.define("scanResult", "%m %ddBm");
+    private static final int TRACE_BATCH = TraceLog.define("batchResults", "%d results");
+
+    /* Adverts held between the scan callback and the decode worker */
+    private static final int QUEUE_CAPACITY = 512;
+    /* Longest wait for the controller's flushed results, then for the worker */
+    private static final long FLUSH_TIMEOUT = 500;
+    private static final long DRAIN_TIMEOUT = 500;
+    private static final long DRAIN_POLL = 20;
+
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeScanner mBluetoothLeScanner;
-    /* Collect unique devices discovered, keyed by address */
-    private HashMap<String, WimotoClimate> mBeacons;
+    /* Decodes and tracks devices on its own thread, keyed by address */
+    private DecodePipeline mPipeline;
+    /* Every reading heard, downsampled to minutes and hours */
+    private SensorHistory mHistory;
+    /* Readings persisted across launches, null if storage isn't available */
+    private ReadingLog mReadingLog;
+    private ReadingUploader mUploader;
+    /* Sizes each scan window and the pause after it */
+    private AdaptiveScanScheduler mScheduler;
     private BeaconAdapter mAdapter;
+    /* Controller-side batching, when the chipset supports it */
+    private boolean mBatching;
+    private long mReportDelay;
+    /* Metrics as of the last window, to log the difference */
+    private PipelineMetrics.Snapshot mLastMetrics;
+    /* Raw scan traffic for replay, null unless record_scan_traffic is set */
+    private ScanRecorder mRecorder;
+    /* Ending a window: waiting on the flush, then for the worker to catch up */
+    private boolean mFlushing;
+    private long mWindowStop;
+    private long mDrainTarget;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,7 +89,7 @@ public class BeaconLollipopActivity extends Activity {
          * in a list, using a custom adapter implementation
          */
         ListView list = new ListView(this);
-        mAdapter = new BeaconAdapter(this);
+        mAdapter = new BeaconAdapter(this, list);
         list.setAdapter(mAdapter);
         setContentView(list);
 
@@ -73,7 +101,50 @@ public class BeaconLollipopActivity extends Activity {
         mBluetoothAdapter = manager.getAdapter();
         mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
 
-        mBeacons = new HashMap<String, WimotoClimate>();
+        mScheduler = new AdaptiveScanScheduler(5000, 100);
+
+        mPipeline = new DecodePipeline(QUEUE_CAPACITY, new AdvertDeduplicator());
+        mHistory = new SensorHistory();
+        mPipeline.setScanScheduler(mScheduler);
+        mPipeline.setHistory(mHistory);
+        try {
+            mReadingLog = new ReadingLog(new File(getFilesDir(), "readings"));
+            mPipeline.setReadingLog(mReadingLog);
+            Log.i(TAG, "Reading log recovered " + mReadingLog.getRecoveredCount() + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Reading log unavailable", e);
+        }
+        if (getResources().getBoolean(R.bool.upload_readings)) {
+            try {
+                mUploader = new ReadingUploader(new URL(getString(R.string.collector_url)),
+                        new File(getFilesDir(), "uploads"));
+                mUploader.start();
+                mPipeline.setUploader(mUploader);
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "Collector URL invalid", e);
+            }
+        }
+        mPipeline.setListener(new DecodePipeline.Listener() {
+            @Override
+            public void onSnapshotAvailable() {
+                mHandler.sendEmptyMessage(MSG_SNAPSHOT);
+            }
+        });
+        mPipeline.start();
+
+        if (getResources().getBoolean(R.bool.record_scan_traffic)) {
+            try {
+                mRecorder = ScanRecorder.open(new File(getFilesDir(), "scans"));
+            } catch (IOException e) {
+                Log.w(TAG, "Scan recording unavailable", e);
+            }
+        }
+
+        mBatching = getResources().getBoolean(R.bool.batch_scan_results)
+                && mBluetoothAdapter != null
+                && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+        mReportDelay = getResources().getInteger(R.integer.scan_batch_delay_ms);
+        Log.i(TAG, "Batched scan results: " + mBatching);
     }
 
     @Override
@@ -109,11 +180,31 @@ public class BeaconLollipopActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
-        //Cancel scan in progress
-        //Cancel any scans in progress
+        //Cancel any scans in progress, without scheduling the next one
         mHandler.removeCallbacks(mStopRunnable);
         mHandler.removeCallbacks(mStartRunnable);
-        stopScan();
+        mHandler.removeCallbacks(mFlushTimeout);
+        mHandler.removeCallbacks(mDrainCheck);
+        mFlushing = false;
+        mBluetoothLeScanner.stopScan(mScanCallback);
+        mAdapter.cancelFrame();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPipeline.stop();
+        if (mRecorder != null) {
+            mRecorder.close();
+            Log.i(TAG, "Recorded " + mRecorder.getRecordedCount() + " adverts");
+        }
+        if (mReadingLog != null) {
+            mReadingLog.close();
+        }
+        if (mUploader != null) {
+            //Anything not yet sent is spilled and goes out next time
+            mUploader.close();
+        }
     }
 
     private Runnable mStopRunnable = new Runnable() {
@@ -125,38 +216,134 @@ public class BeaconLollipopActivity extends Activity {
     private Runnable mStartRunnable = new Runnable() {
         @Override
         public void run() {
+            mPipeline.getMetrics().increment(PipelineMetrics.SCAN_RESTARTS);
             startScan();
         }
     };
 
     /*
-     * Sets up the scan settings and begins a 5s scan
+     * Sets up the scan settings and begins a scan window
+     * as long as the scheduler asks for
      */
     private void startScan() {
         //Scan for devices that advertise the climate temperature service
     	
-    	ScanFilter beaconFilter = new ScanFilter.Builder().setServiceUuid(WimotoClimate.TEMP_SERVICE).build();
+    	ScanFilter beaconFilter = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(WimotoClimate.TEMP_SERVICE)).build();
     	ArrayList<ScanFilter> filters = new ArrayList<ScanFilter>();
     	filters.add(beaconFilter);
     	
     	Log.i(TAG, "**********STARTING SCAN**********");
     	
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build();
+        mScheduler.setPowerState(PowerState.read(this));
+        long window = mScheduler.onWindowStart(SystemClock.elapsedRealtime());
+
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (mBatching) {
+            /*
+             * The controller queues results and wakes us once per delay;
+             * keep it under the window so each window delivers at least once
+             */
+            builder.setReportDelay(Math.min(mReportDelay, window / 2));
+        }
+        ScanSettings settings = builder.build();
 
-        mHandler.postDelayed(mStopRunnable, 5000);
+        mHandler.postDelayed(mStopRunnable, window);
+        mPipeline.getMetrics().increment(PipelineMetrics.SCAN_STARTS);
         mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
     }
     
     /*
-     * Stops scan and sets it to start again after 250ms
+     * Ends the scan window. The scheduler sizes the next cycle from the
+     * adverts heard in this one, so the decision waits until they have all
+     * reached it: first the results the controller is still holding, which
+     * the flush delivers later through onBatchScanResults, then everything
+     * still queued for the decode worker, which is what tells the
+     * scheduler about them. Both waits are bounded.
      */
     private void stopScan() {
     	
     	Log.i(TAG, "**********ENDING scan**********");
+        if (mBatching) {
+            //Deliver whatever the controller is still holding
+            mFlushing = true;
+            mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
+            mHandler.postDelayed(mFlushTimeout, FLUSH_TIMEOUT);
+        } else {
+            drainWindow();
+        }
+    }
+
+    private final Runnable mFlushTimeout = new Runnable() {
+        @Override
+        public void run() {
+            //Nothing was pending, or the flush went missing
+            mFlushing = false;
+            drainWindow();
+        }
+    };
+
+    private void drainWindow() {
         mBluetoothLeScanner.stopScan(mScanCallback);
-        mHandler.postDelayed(mStartRunnable, 100);
+        mWindowStop = SystemClock.elapsedRealtime();
+        mDrainTarget = mPipeline.getAcceptedCount();
+        mDrainCheck.run();
+    }
+
+    /*
+     * Poll rather than have the worker call back, as it only matters once
+     * per window
+     */
+    private final Runnable mDrainCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mPipeline.getProcessedCount() < mDrainTarget
+                    && SystemClock.elapsedRealtime() - mWindowStop < DRAIN_TIMEOUT) {
+                mHandler.postDelayed(this, DRAIN_POLL);
+                return;
+            }
+            endWindow();
+        }
+    };
+
+    /*
+     * Sets the scan to start again once the scheduler's pause is up
+     */
+    private void endWindow() {
+        long interval = mScheduler.onWindowEnd(mWindowStop);
+        Log.i(TAG, "Scan schedule " + mScheduler);
+        logPipeline();
+        if (mRecorder != null) mRecorder.flush();
+        //The pause runs from the decision, not from when the radio stopped
+        mHandler.postDelayed(mStartRunnable, interval);
+    }
+
+    private void logPipeline() {
+        AdvertDeduplicator deduplicator = mPipeline.getDeduplicator();
+        Log.i(TAG, "Adverts queued: " + mPipeline.getAcceptedCount()
+                + ", dropped: " + mPipeline.getDroppedCount()
+                + ", decoded: " + deduplicator.getPassedCount()
+                + ", signal only: " + deduplicator.getRssiUpdateCount()
+                + ", suppressed: " + deduplicator.getSuppressedCount()
+                + ", snapshots: " + mPipeline.getPublishedCount()
+                + ", evicted: " + mPipeline.getEvictedCount()
+                + ", history: " + mHistory.size() + " devices");
+
+        //Everything since the last window, for sizing and regressions
+        PipelineMetrics.Snapshot metrics = mPipeline.getMetrics().snapshot();
+        if (mLastMetrics != null) {
+            Log.i(TAG, "Pipeline metrics:\n" + metrics.since(mLastMetrics));
+        }
+        mLastMetrics = metrics;
+
+        if (mUploader != null) {
+            Log.i(TAG, "Readings uploaded: " + mUploader.getUploadedCount()
+                    + ", pending: " + mUploader.getPendingCount()
+                    + ", lag: " + mUploader.getLag(System.currentTimeMillis()) + "ms"
+                    + ", spilled: " + mUploader.getSpillCount()
+                    + ", dropped: " + mUploader.getDroppedCount()
+                    + ", failures: " + mUploader.getFailureCount());
+        }
     }
     
     /* Updated scan callback for Android Lollipop
@@ -167,42 +354,68 @@ public class BeaconLollipopActivity extends Activity {
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            Log.d(TAG, "onScanResult");
+            long start = System.nanoTime();
+            if (TraceLog.isEnabled(TraceLog.LEVEL_DEBUG)) {
+                TraceLog.event(TraceLog.LEVEL_DEBUG, TRACE_SCAN_RESULT,
+                        MacAddress.pack(result.getDevice().getAddress()), result.getRssi());
+            }
             processResult(result);
+            mPipeline.getMetrics().record(PipelineMetrics.STAGE_CALLBACK,
+                    System.nanoTime() - start);
         }
 
+        /*
+         * With a report delay set the controller hands over everything it
+         * queued at once. The whole batch is queued and the worker woken
+         * once to decode it.
+         */
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            Log.d(TAG, "onBatchScanResults: "+results.size()+" results");
-            for (ScanResult result : results) {
-                processResult(result);
+            long start = System.nanoTime();
+            TraceLog.event(TraceLog.LEVEL_DEBUG, TRACE_BATCH, results.size());
+            for (int i = 0, n = results.size(); i < n; i++) {
+                offerResult(results.get(i));
+            }
+            mPipeline.flush();
+            mPipeline.getMetrics().record(PipelineMetrics.STAGE_CALLBACK,
+                    System.nanoTime() - start);
+
+            //Scan callbacks arrive on the main thread, like the handler's
+            if (mFlushing) {
+                mFlushing = false;
+                mHandler.removeCallbacks(mFlushTimeout);
+                drainWindow();
             }
         }
 
         @Override
         public void onScanFailed(int errorCode) {
             Log.w(TAG, "LE Scan Failed: "+errorCode);
+            mPipeline.getMetrics().onScanFailed(errorCode);
         }
 
         
         /*
-         * Process ad data and create a new WimotoClimate object
-         * and pass it up to the main thread
-         * The scanResult result contains all the raw ad data
+         * Copy the raw ad data into the pipeline queue; the worker
+         * deduplicates and decodes it off this thread
          */
-        
         private void processResult(ScanResult result) {
-        
-        	
-            Log.i(TAG, "New LE Device: " + result.getDevice().getName() + " @ " + result.getRssi());
-            //Log.i(TAG, "Temperature: 0x" + String.format("%02x%02x", result.getScanRecord().getBytes()[23], result.getScanRecord().getBytes()[24]));
-            //Log.i(TAG, "Light Level: 0x" + String.format("%02x%02x", result.getScanRecord().getBytes()[25], result.getScanRecord().getBytes()[26]));
-
+            offerResult(result);
+            mPipeline.flush();
+        }
 
-            WimotoClimate beacon = new WimotoClimate(result.getScanRecord(),
-                    result.getDevice().getName(),
-                    result.getRssi());
-            mHandler.sendMessage(Message.obtain(null, 0, beacon));
+        private void offerResult(ScanResult result) {
+            byte[] scanRecord = result.getScanRecord().getBytes();
+            //Batched results were heard earlier than they are delivered
+            long age = (SystemClock.elapsedRealtimeNanos() - result.getTimestampNanos()) / 1000000;
+            long timestamp = System.currentTimeMillis() - age;
+            BluetoothDevice device = result.getDevice();
+            if (mRecorder != null) {
+                mRecorder.onAdvert(timestamp, device.getAddress(), device.getName(),
+                        result.getRssi(), scanRecord, 0, scanRecord.length);
+            }
+            mPipeline.offer(timestamp, device.getAddress(), device.getName(),
+                    result.getRssi(), scanRecord, 0, scanRecord.length);
         }
     };
 
@@ -213,52 +426,17 @@ public class BeaconLollipopActivity extends Activity {
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            WimotoClimate beacon = (WimotoClimate) msg.obj;
-            mBeacons.put(beacon.getName(), beacon);
-
-            mAdapter.setNotifyOnChange(false);
-            mAdapter.clear();
-            mAdapter.addAll(mBeacons.values());
-            mAdapter.notifyDataSetChanged();
-        }
-    };
-
-    /*
-     * A custom adapter implementation that displays the Climate data in a table
-     * Device Name - Temperature - Light Level - RSSI
-     */
-    private static class BeaconAdapter extends ArrayAdapter<WimotoClimate> {
-
-        public BeaconAdapter(Context context) {
-            super(context, 0);
-        }
-
-        @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            if (convertView == null) {
-                convertView = LayoutInflater.from(getContext())
-                        .inflate(R.layout.item_beacon_list, parent, false);
+            //The adapter picks up the change on the next frame
+            switch (msg.what) {
+                case MSG_SNAPSHOT:
+                    BeaconSnapshot snapshot = mPipeline.takeSnapshot();
+                    if (snapshot == null) break;
+                    long start = System.nanoTime();
+                    mAdapter.applySnapshot(snapshot);
+                    mPipeline.getMetrics().record(PipelineMetrics.STAGE_UI,
+                            System.nanoTime() - start);
+                    break;
             }
-
-            WimotoClimate beacon = getItem(position);
-
-
-            TextView nameView = (TextView) convertView.findViewById(R.id.text_name);
-            nameView.setText(beacon.getName());
-
-            TextView tempView = (TextView) convertView.findViewById(R.id.text_temperature);
-            tempView.setText(String.format("%.2f C" , beacon.getCurrentTemp()));
-
-            TextView addressView = (TextView) convertView.findViewById(R.id.text_address);
-            addressView.setText(String.format("%d lux", beacon.getLightLevel()));
-
-            TextView rssiView = (TextView) convertView.findViewById(R.id.text_rssi);
-            rssiView.setText(String.format("%ddBm", beacon.getSignal()));
-
-
-            return convertView;
         }
-
-
-    }
+    };
 }
\ No newline at end of file
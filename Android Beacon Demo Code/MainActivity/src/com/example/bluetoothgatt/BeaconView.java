@@ -4,18 +4,28 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Created by Dave Smith
  * Double Encore, Inc.
  * Date: 10/19/13
  * BeaconView
+ *
+ * Beacon state is kept in flat arrays indexed by DeviceRegistry slot, and
+ * each temperature label is formatted into its own char buffer only when
+ * the value changes, so drawing a frame allocates nothing. Updates only
+ * collect the area that moved; it is invalidated at most once per
+ * FRAME_INTERVAL, however many adverts arrive in between. Beacons missing
+ * from a snapshot have been evicted by the pipeline and are removed.
  */
 public class BeaconView extends View {
 
@@ -24,13 +34,48 @@ public class BeaconView extends View {
     private static final float MAX_SIGNAL = -50;
     private static final float MIN_SIGNAL = -100;
 
-    private HashMap<String, Integer> mPositions;
-    private HashMap<String, WimotoClimate> mBeacons;
+    /* About 60fps */
+    private static final long FRAME_INTERVAL = 16;
+    /* Enough for "-46.9" or "129.0" */
+    private static final int LABEL_CAPACITY = 8;
+
+    private final DeviceRegistry mRegistry;
+    private final Random mRandom;
+
+    //Per-slot state
+    private float[] mColumn;
+    private float[] mSignal;
+    private float[] mTemp;
+    private int[] mColor;
+    private int[] mX;
+    private int[] mY;
+    private char[][] mLabels;
+    private int[] mLabelLength;
+    private float[] mLabelWidth;
+    private long[] mSeen;
+    private long mGeneration;
 
     private int mDrawRadius;
     private Paint mCirclePaint;
     private TextPaint mTextPaint;
 
+    //Area to redraw on the next frame, and the clip of the current one
+    private final Rect mDirty;
+    private final Rect mClip;
+    private boolean mFrameScheduled;
+    private long mLastFrame;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFrameScheduled = false;
+            mLastFrame = SystemClock.uptimeMillis();
+            if (mDirty.isEmpty()) return;
+            invalidate(mDirty.left, mDirty.top, mDirty.right, mDirty.bottom);
+            mDirty.setEmpty();
+        }
+    };
+
     public BeaconView(Context context) {
         this(context, null);
     }
@@ -42,8 +87,11 @@ public class BeaconView extends View {
     public BeaconView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
 
-        mPositions = new HashMap<String, Integer>();
-        mBeacons = new HashMap<String, WimotoClimate>();
+        mRegistry = new DeviceRegistry();
+        mRandom = new Random();
+        allocate(64);
+        mDirty = new Rect();
+        mClip = new Rect();
 
         mDrawRadius = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, RADIUS,
                 getResources().getDisplayMetrics());
@@ -56,49 +104,219 @@ public class BeaconView extends View {
         mTextPaint.setTextSize(mDrawRadius);
     }
 
+    /*
+     * Place every beacon in a pipeline snapshot
+     */
+    public void applySnapshot(BeaconSnapshot snapshot) {
+        long generation = ++mGeneration;
+        for (int i = 0, n = snapshot.size(); i < n; i++) {
+            WimotoClimate beacon = snapshot.get(i);
+            updateBeacon(beacon, snapshot.getRssi(i));
+            int slot = mRegistry.getSlot(beacon.getAddress());
+            if (slot != DeviceRegistry.NO_SLOT) mSeen[slot] = generation;
+        }
+        if (mRegistry.size() <= snapshot.size()) return;
+        for (int i = 0, n = mRegistry.getSlotCount(); i < n; i++) {
+            if (mRegistry.isRegistered(i) && mSeen[i] != generation) removeSlot(i);
+        }
+    }
+
+    public void removeBeacon(String address) {
+        int slot = mRegistry.getSlot(address);
+        if (slot != DeviceRegistry.NO_SLOT) removeSlot(slot);
+    }
+
     public void updateBeacon(WimotoClimate beacon) {
-        if (!mPositions.containsKey(beacon.getAddress())) {
-            //Randomize x-position
-            int random = (int)(Math.random() * getWidth());
-            int clamped = Math.max(mDrawRadius, Math.min(getWidth() - mDrawRadius, random));
-            mPositions.put(beacon.getAddress(), clamped);
+        updateBeacon(beacon, beacon.getSignal());
+    }
+
+    public void updateBeacon(WimotoClimate beacon, float rssi) {
+        int slot = mRegistry.getSlot(beacon.getAddress());
+        boolean isNew = slot == DeviceRegistry.NO_SLOT;
+        boolean moved;
+        if (isNew) {
+            slot = newSlot(beacon.getAddress());
+            if (slot == DeviceRegistry.NO_SLOT) return;
+            moved = true;
+        } else {
+            //Only worth a redraw if the circle lands on another pixel
+            moved = Math.round(toY(rssi)) != Math.round(toY(mSignal[slot]));
+        }
+        mSignal[slot] = rssi;
+
+        float temp = beacon.getCurrentTemp();
+        boolean relabel = isNew || temp != mTemp[slot];
+        if (relabel) {
+            mTemp[slot] = temp;
+            setLabel(slot, temp);
         }
+        if (!moved && !relabel) return;
 
-        mBeacons.put(beacon.getAddress(), beacon);
+        //Old area first, then the new one
+        markDirty(slot);
+        position(slot);
+        markDirty(slot);
+        scheduleFrame();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        for (int i = 0, n = mRegistry.getSlotCount(); i < n; i++) {
+            if (mRegistry.isRegistered(i)) position(i);
+        }
         invalidate();
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mFrameRunnable);
+        mFrameScheduled = false;
+        mDirty.setEmpty();
+    }
 
     @Override
     protected void onDraw(Canvas canvas) {
         //Draw any backgrounds
         super.onDraw(canvas);
+        canvas.getClipBounds(mClip);
 
         //Draw user
         mCirclePaint.setColor(Color.BLACK);
         canvas.drawCircle(getWidth() / 2, getHeight(), mDrawRadius, mCirclePaint);
 
+        for (int i = 0, n = mRegistry.getSlotCount(); i < n; i++) {
+            if (!mRegistry.isRegistered(i)) continue;
+            int x = mX[i];
+            int y = mY[i];
+            //Skip anything outside the area being redrawn
+            if (!mClip.intersects(x - mDrawRadius, y - mDrawRadius,
+                    x + Math.max(mDrawRadius, (int) mLabelWidth[i]), y + mDrawRadius)) continue;
+
+            mCirclePaint.setColor(mColor[i]);
+            canvas.drawCircle(x, y, mDrawRadius, mCirclePaint);
+            canvas.drawText(mLabels[i], 0, mLabelLength[i], x - mDrawRadius, y, mTextPaint);
+        }
+    }
+
+    /* Slots */
 
-        for(WimotoClimate beacon : mBeacons.values()) {
-            //Scaled temperature between 0 and 30 degrees
-            float scaled = Math.max(0f, Math.min(1f,
-                    beacon.getCurrentTemp() / 30f) );
-            //Color circle based on scaled temperature
-            // 100 degrees, solid red
-            // 0 degress, solid blue
-            int red = Math.round(255 * scaled);
-            int blue = 255 - red;
-            mCirclePaint.setColor(Color.rgb(red, 0, blue));
+    private int newSlot(String address) {
+        int slot = mRegistry.register(address);
+        if (slot == DeviceRegistry.NO_SLOT) return slot;
+        if (slot >= mSignal.length) allocate(Math.max(slot + 1, mSignal.length * 2));
+        //Randomize x-position
+        mColumn[slot] = mRandom.nextFloat();
+        position(slot);
+        return slot;
+    }
+
+    private void removeSlot(int slot) {
+        markDirty(slot);
+        scheduleFrame();
+        mRegistry.remove(mRegistry.getMac(slot));
+    }
 
+    private void allocate(int capacity) {
+        mColumn = mColumn == null ? new float[capacity] : Arrays.copyOf(mColumn, capacity);
+        mSignal = mSignal == null ? new float[capacity] : Arrays.copyOf(mSignal, capacity);
+        mTemp = mTemp == null ? new float[capacity] : Arrays.copyOf(mTemp, capacity);
+        mColor = mColor == null ? new int[capacity] : Arrays.copyOf(mColor, capacity);
+        mX = mX == null ? new int[capacity] : Arrays.copyOf(mX, capacity);
+        mY = mY == null ? new int[capacity] : Arrays.copyOf(mY, capacity);
+        mLabelLength = mLabelLength == null ? new int[capacity] : Arrays.copyOf(mLabelLength, capacity);
+        mLabelWidth = mLabelWidth == null ? new float[capacity] : Arrays.copyOf(mLabelWidth, capacity);
+        mSeen = mSeen == null ? new long[capacity] : Arrays.copyOf(mSeen, capacity);
+        char[][] labels = new char[capacity][];
+        int from = 0;
+        if (mLabels != null) {
+            System.arraycopy(mLabels, 0, labels, 0, mLabels.length);
+            from = mLabels.length;
+        }
+        for (int i = from; i < capacity; i++) {
+            labels[i] = new char[LABEL_CAPACITY];
+        }
+        mLabels = labels;
+    }
 
-            int x = mPositions.get(beacon.getAddress());
-            //Calculate y-position from RSSI
-            scaled = Math.max(0f, Math.min(1f,
-                    (beacon.getSignal() - MIN_SIGNAL) / (MAX_SIGNAL - MIN_SIGNAL) ));
-            int y = Math.round( getWidth() - (scaled * getWidth()) );
+    private void position(int slot) {
+        int width = getWidth();
+        int x = Math.round(mColumn[slot] * width);
+        mX[slot] = Math.max(mDrawRadius, Math.min(width - mDrawRadius, x));
+        mY[slot] = Math.round(toY(mSignal[slot]));
+    }
 
-            canvas.drawCircle(x, y, mDrawRadius, mCirclePaint);
-            canvas.drawText(String.valueOf(beacon.getCurrentTemp()), x - mDrawRadius, y, mTextPaint);
+    /*
+     * Stronger signals sit higher. Scaled by the width, as the view always
+     * has been.
+     */
+    private float toY(float signal) {
+        float scaled = Math.max(0f, Math.min(1f, (signal - MIN_SIGNAL) / (MAX_SIGNAL - MIN_SIGNAL)));
+        return getWidth() - (scaled * getWidth());
+    }
+
+    private void setLabel(int slot, float temp) {
+        //Scaled temperature between 0 and 30 degrees
+        float scaled = Math.max(0f, Math.min(1f, temp / 30f));
+        //Color circle based on scaled temperature
+        // 30 degrees, solid red
+        // 0 degress, solid blue
+        int red = Math.round(255 * scaled);
+        int blue = 255 - red;
+        mColor[slot] = Color.rgb(red, 0, blue);
+
+        char[] label = mLabels[slot];
+        mLabelLength[slot] = formatTenths(label, temp);
+        mLabelWidth[slot] = mTextPaint.measureText(label, 0, mLabelLength[slot]);
+    }
+
+    /*
+     * Writes the value to one decimal place, e.g. "-3.5", and returns the
+     * length
+     */
+    static int formatTenths(char[] out, float value) {
+        int tenths = Math.round(value * 10);
+        int length = 0;
+        if (tenths < 0) {
+            out[length++] = '-';
+            tenths = -tenths;
+        }
+        int whole = tenths / 10;
+        int start = length;
+        do {
+            out[length++] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole > 0 && length < out.length - 2);
+        //Digits went in least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = out[i];
+            out[i] = out[j];
+            out[j] = c;
+        }
+        out[length++] = '.';
+        out[length++] = (char) ('0' + tenths % 10);
+        return length;
+    }
+
+    /* Partial invalidation */
+
+    private void markDirty(int slot) {
+        int x = mX[slot];
+        int y = mY[slot];
+        int right = Math.max(x + mDrawRadius, x - mDrawRadius + (int) Math.ceil(mLabelWidth[slot]));
+        //Antialiasing can spill a pixel past the circle
+        mDirty.union(x - mDrawRadius - 1, y - mDrawRadius - 1, right + 1, y + mDrawRadius + 1);
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) return;
+        mFrameScheduled = true;
+        long wait = mLastFrame + FRAME_INTERVAL - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            postOnAnimation(mFrameRunnable);
+        } else {
+            postDelayed(mFrameRunnable, wait);
         }
     }
 }
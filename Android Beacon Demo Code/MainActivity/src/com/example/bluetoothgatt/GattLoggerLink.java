@@ -0,0 +1,248 @@
+package com.example.bluetoothgatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * GattLoggerLink
+ * LoggerLink over a BluetoothGatt connection to a Climate. connect() opens
+ * the connection; once services are discovered it starts the engine on
+ * itself. Anything that goes wrong before then - a failed connect, a
+ * device without the logger service, no connection within
+ * CONNECT_TIMEOUT - is reported once to the ConnectListener, since the
+ * engine isn't listening yet. The readout is considered finished when no
+ * logger data has arrived for IDLE_TIMEOUT.
+ */
+class GattLoggerLink extends BluetoothGattCallback implements LoggerLink {
+    private static final String TAG = "GattLoggerLink";
+
+    /* Climate Data Logger service and characteristics */
+    static final UUID LOGGER_SERVICE = UUID.fromString("e003561a-ec48-4ed0-9f3b-5419c00a94fd");
+    static final UUID LOGGER_ENABLE = UUID.fromString("e003561b-ec48-4ed0-9f3b-5419c00a94fd");
+    static final UUID LOGGER_DATA = UUID.fromString("e003561c-ec48-4ed0-9f3b-5419c00a94fd");
+    static final UUID LOGGER_READ_ENABLE = UUID.fromString("e003561d-ec48-4ed0-9f3b-5419c00a94fd");
+    /* Client Characteristic Configuration */
+    static final UUID CONFIG_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final long IDLE_TIMEOUT = 2000;
+    private static final long CONNECT_TIMEOUT = 15000;
+
+    interface ConnectListener {
+        /*
+         * The link failed before the download started on it; retry is false
+         * when another attempt on the same device won't help
+         */
+        void onConnectFailed(String reason, boolean retry);
+    }
+
+    private final LoggerDownloadEngine mEngine;
+    private final Handler mHandler;
+    private final ConnectListener mConnectListener;
+
+    private volatile BluetoothGatt mGatt;
+    private BluetoothGattCharacteristic mEnable;
+    private BluetoothGattCharacteristic mData;
+    private BluetoothGattCharacteristic mReadEnable;
+    private Callback mCallback;
+
+    /* Guarded by this; at most one of them is ever set */
+    private boolean mStarted;
+    private boolean mConnectFailed;
+
+    private volatile long mLastData;
+    private volatile boolean mWatching;
+
+    GattLoggerLink(LoggerDownloadEngine engine, Handler handler, ConnectListener listener) {
+        mEngine = engine;
+        mHandler = handler;
+        mConnectListener = listener;
+    }
+
+    /*
+     * Returns false if the connection couldn't even be requested, in which
+     * case the listener isn't called
+     */
+    boolean connect(Context context, BluetoothDevice device) {
+        BluetoothGatt gatt = device.connectGatt(context, false, this);
+        if (gatt == null) return false;
+        mGatt = gatt;
+        mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT);
+        return true;
+    }
+
+    /* BluetoothGattCallback */
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mGatt = gatt;
+            gatt.discoverServices();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            stopWatching();
+            gatt.close();
+            //A failed connect arrives here too, with status 133 or similar
+            if (!failConnect("Connection failed (" + status + ")", true)) {
+                mCallback.onLinkLost();
+            }
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        BluetoothGattService service = gatt.getService(LOGGER_SERVICE);
+        if (status != BluetoothGatt.GATT_SUCCESS || service == null) {
+            Log.w(TAG, "No data logger service");
+            failConnect("No data logger service", false);
+            gatt.disconnect();
+            return;
+        }
+        mEnable = service.getCharacteristic(LOGGER_ENABLE);
+        mData = service.getCharacteristic(LOGGER_DATA);
+        mReadEnable = service.getCharacteristic(LOGGER_READ_ENABLE);
+
+        synchronized (this) {
+            //Lost the race with the connect timeout
+            if (mConnectFailed) return;
+            mStarted = true;
+        }
+        mHandler.removeCallbacks(mConnectTimeout);
+        mEngine.start(this);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        mCallback.onMtuChanged(mtu, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        mCallback.onNotificationsEnabled(status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        int target = characteristic == mReadEnable ? TARGET_READ_ENABLE : TARGET_LOGGER_ENABLE;
+        if (target == TARGET_READ_ENABLE && status == BluetoothGatt.GATT_SUCCESS) {
+            startWatching();
+        }
+        mCallback.onWriteComplete(target, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        if (characteristic != mData) return;
+        mLastData = SystemClock.uptimeMillis();
+        byte[] value = characteristic.getValue();
+        mCallback.onNotification(value, 0, value.length);
+    }
+
+    /* LoggerLink */
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return mGatt.requestMtu(mtu);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public boolean requestHighPriority() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return mGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    @Override
+    public boolean enableNotifications() {
+        if (mData == null || !mGatt.setCharacteristicNotification(mData, true)) return false;
+        BluetoothGattDescriptor config = mData.getDescriptor(CONFIG_DESCRIPTOR);
+        if (config == null) return false;
+        config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        return mGatt.writeDescriptor(config);
+    }
+
+    @Override
+    public boolean write(int target, boolean enable) {
+        BluetoothGattCharacteristic characteristic =
+                target == TARGET_READ_ENABLE ? mReadEnable : mEnable;
+        if (characteristic == null) return false;
+        if (!enable) stopWatching();
+        characteristic.setValue(new byte[] { (byte) (enable ? 1 : 0) });
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    /*
+     * Reports a failure before the engine started, once. Returns false if
+     * the engine has started, when failures are its business instead
+     */
+    private boolean failConnect(String reason, boolean retry) {
+        synchronized (this) {
+            if (mStarted) return false;
+            if (mConnectFailed) return true;
+            mConnectFailed = true;
+        }
+        mHandler.removeCallbacks(mConnectTimeout);
+        mConnectListener.onConnectFailed(reason, retry);
+        return true;
+    }
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            //Closing rather than disconnecting, so no callbacks follow
+            if (failConnect("Connection timed out", true)) mGatt.close();
+        }
+    };
+
+    /*
+     * Poll for the end of the readout rather than rescheduling a timer on
+     * every notification
+     */
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!mWatching) return;
+            if (SystemClock.uptimeMillis() - mLastData >= IDLE_TIMEOUT) {
+                mWatching = false;
+                mCallback.onTransferIdle();
+            } else {
+                mHandler.postDelayed(this, IDLE_TIMEOUT / 4);
+            }
+        }
+    };
+
+    private void startWatching() {
+        mLastData = SystemClock.uptimeMillis();
+        mWatching = true;
+        mHandler.postDelayed(mIdleCheck, IDLE_TIMEOUT / 4);
+    }
+
+    private void stopWatching() {
+        mWatching = false;
+        mHandler.removeCallbacks(mIdleCheck);
+    }
+
+    void disconnect() {
+        stopWatching();
+        mHandler.removeCallbacks(mConnectTimeout);
+        if (mGatt != null) mGatt.disconnect();
+    }
+}
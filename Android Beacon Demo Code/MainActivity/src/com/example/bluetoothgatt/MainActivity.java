@@ -16,13 +16,15 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.Window;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
 
@@ -33,13 +35,38 @@ import java.util.UUID;
  */
 public class MainActivity extends Activity implements BluetoothAdapter.LeScanCallback {
     private static final String TAG = "BluetoothGattActivity";
+    /* Device menu items are numbered from here by slot */
+    private static final int DEVICE_ITEM_BASE = Menu.FIRST;
+
+    private static final int TRACE_ADVERT = TraceLog.define("advert",
+            "%m %ddBm temp 0x%04x light 0x%04x humidity 0x%04x");
 
     private BluetoothAdapter mBluetoothAdapter;
-    private SparseArray<BluetoothDevice> mDevices;
-    private SparseArray<byte[]> scanRecords;
+    /* Devices found by the last scan, indexed by registry slot */
+    private DeviceRegistry mDeviceSlots;
+    private ArrayList<BluetoothDevice> mDevices;
+    /* Decoded sensor state, keyed by device address */
+    private BeaconTracker mTracker;
+    /* Only changed payloads are logged and decoded */
+    private AdvertDeduplicator mDeduplicator;
     
 
     private BluetoothGatt mConnectedGatt;
+    /* Device picked from the menu, the target for a logger download */
+    private BluetoothDevice mSelectedDevice;
+    private LoggerDownloadEngine mDownload;
+    private GattLoggerLink mDownloadLink;
+    private int mDownloadAttempts;
+    /* Downloaded logger records, persisted like scanned readings */
+    private ReadingLog mLoggerLog;
+    /* Reads fanned out across several device connections at once */
+    private GattScheduler mGattScheduler;
+    private AndroidGattExecutor mGattExecutor;
+    private int mPollPending;
+    /* Scan callback, hand-off and UI timings, logged after each scan */
+    private PipelineMetrics mMetrics;
+    /* Raw scan traffic for replay, null when not recording */
+    private volatile ScanRecorder mRecorder;
 
     private TextView mTemperature, mHumidity, mPressure, deviceName;
 
@@ -69,8 +96,15 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
         BluetoothManager manager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         mBluetoothAdapter = manager.getAdapter();
 
-        mDevices = new SparseArray<BluetoothDevice>();
-        scanRecords = new SparseArray<byte[]>();
+        mDeviceSlots = new DeviceRegistry();
+        mDevices = new ArrayList<BluetoothDevice>();
+        mTracker = new BeaconTracker();
+        mDeduplicator = new AdvertDeduplicator(false, 0);
+        mMetrics = new PipelineMetrics();
+        mGattExecutor = new AndroidGattExecutor(this, mBluetoothAdapter, mHandler);
+        mGattScheduler = new GattScheduler(mGattExecutor, MAX_POLL_CONNECTIONS);
+        mGattExecutor.attach(mGattScheduler);
+        mGattExecutor.setNotificationListener(mNotificationListener);
 
         /*
          * A progress dialog will be needed while the connection process is
@@ -79,6 +113,10 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
         mProgress = new ProgressDialog(this);
         mProgress.setIndeterminate(true);
         mProgress.setCancelable(false);
+
+        if (getResources().getBoolean(R.bool.record_scan_traffic)) {
+            toggleRecording();
+        }
     }
 
     @Override
@@ -126,6 +164,16 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
             mConnectedGatt.disconnect();
             mConnectedGatt = null;
         }
+        //Stops the idle watchdog too; callbacks still in flight find mDownload gone
+        if (mDownloadLink != null) mDownloadLink.disconnect();
+        mDownload = null;
+        mGattExecutor.shutdown();
+        mPollPending = 0;
+        if (mLoggerLog != null) {
+            mLoggerLog.close();
+            mLoggerLog = null;
+        }
+        if (mRecorder != null) toggleRecording();
     }
 
     @Override
@@ -134,8 +182,8 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
         getMenuInflater().inflate(R.menu.main, menu);
         //Add any device elements we've discovered to the overflow menu
         for (int i=0; i < mDevices.size(); i++) {
-            BluetoothDevice device = mDevices.valueAt(i);
-            menu.add(0, mDevices.keyAt(i), 0, device.getName());
+            BluetoothDevice device = mDevices.get(i);
+            if (device != null) menu.add(0, DEVICE_ITEM_BASE + i, 0, device.getName());
         }
 
         return true;
@@ -145,19 +193,46 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_scan:
+                mDeviceSlots.clear();
                 mDevices.clear();
                 //*************************START SCANNING FOR DEVICES******************************
                 startScan();
                 return true;
+            case R.id.action_download:
+                if (mSelectedDevice == null) {
+                    Toast.makeText(this, "Select a device first.", Toast.LENGTH_SHORT).show();
+                } else {
+                    startDownload(mSelectedDevice);
+                }
+                return true;
+            case R.id.action_poll:
+                startPoll();
+                return true;
+            case R.id.action_subscribe:
+                if (mSelectedDevice == null) {
+                    Toast.makeText(this, "Select a device first.", Toast.LENGTH_SHORT).show();
+                } else {
+                    toggleSubscription(mSelectedDevice);
+                }
+                return true;
+            case R.id.action_record:
+                toggleRecording();
+                return true;
+            case R.id.action_trace:
+                dumpTrace();
+                return true;
             default:
                 //Obtain the discovered device to connect with
-                BluetoothDevice device = mDevices.get(item.getItemId());
-                byte[] scanRec = scanRecords.get(item.getItemId());
+                int slot = item.getItemId() - DEVICE_ITEM_BASE;
+                if (slot < 0 || slot >= mDevices.size() || mDevices.get(slot) == null) {
+                    return super.onOptionsItemSelected(item);
+                }
+                BluetoothDevice device = mDevices.get(slot);
+                WimotoClimate beacon = mTracker.get(device.getAddress());
+                mSelectedDevice = device;
                 
                 //Display sensor data for selected device
-                mTemperature.setText(String.format("%02x%02x",scanRec[23],scanRec[24]));
-                mPressure.setText(String.format("%02x%02x",scanRec[25],scanRec[26]));
-                mHumidity.setText(String.format("%02x%02x",scanRec[27],scanRec[28]));
+                displayBeacon(beacon);
                 deviceName.setText(device.getName());
       
                 
@@ -165,6 +240,12 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
         }
     }
 
+    private void displayBeacon(WimotoClimate beacon) {
+        mTemperature.setText(String.format("%.2f C", beacon.getCurrentTemp()));
+        mPressure.setText(String.format("%d lux", beacon.getLightLevel()));
+        mHumidity.setText(String.format("%.1f %%", beacon.getHumidity()));
+    }
+
     private void clearDisplayValues() {
         mTemperature.setText("---");
         mHumidity.setText("---");
@@ -186,7 +267,11 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
     };
 
     private void startScan() {
-        mBluetoothAdapter.startLeScan(this);
+        mMetrics.increment(PipelineMetrics.SCAN_STARTS);
+        if (!mBluetoothAdapter.startLeScan(this)) {
+            Log.w(TAG, "LE Scan Failed");
+            mMetrics.onScanFailed(0);
+        }
         setProgressBarIndeterminateVisibility(true);
 
         mHandler.postDelayed(mStopRunnable, 5000);
@@ -195,6 +280,291 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
     private void stopScan() {
         mBluetoothAdapter.stopLeScan(this);
         setProgressBarIndeterminateVisibility(false);
+        Log.i(TAG, "Scan metrics:\n" + mMetrics.snapshot());
+    }
+
+    /* Device polling */
+
+    /* Connections held open at once; most controllers manage about this many */
+    private static final int MAX_POLL_CONNECTIONS = 6;
+
+    private static final UUID DEVICE_INFO_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID MANUFACTURER_NAME = UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+    private static final UUID MODEL_NUMBER = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
+    private static final UUID SYSTEM_ID = UUID.fromString("00002a23-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY_SERVICE = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY_LEVEL = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+
+    /*
+     * Read device information and battery level from every discovered
+     * device. The scheduler keeps one request in flight per device and
+     * runs several devices side by side.
+     */
+    private void startPoll() {
+        if (mPollPending > 0) return;
+        if (mDevices.size() == 0) {
+            Toast.makeText(this, "Scan for devices first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        stopScan();
+        setProgressBarIndeterminateVisibility(true);
+
+        GattOperation.Callback callback = new GattOperation.Callback() {
+            @Override
+            public void onComplete(String address, GattOperation operation, int status, byte[] value) {
+                if (status != GattScheduler.STATUS_SUCCESS) {
+                    Log.w(TAG, "Poll " + address + " " + operation.getCharacteristic()
+                            + " failed: " + status + " after " + operation.getAttempts() + " attempts");
+                } else if (BATTERY_LEVEL.equals(operation.getCharacteristic())) {
+                    Log.i(TAG, "Poll " + address + " battery " + (value[0] & 0xFF) + "%");
+                } else if (SYSTEM_ID.equals(operation.getCharacteristic())) {
+                    Log.i(TAG, "Poll " + address + " system id " + Arrays.toString(value));
+                } else {
+                    Log.i(TAG, "Poll " + address + " " + new String(value));
+                }
+                if (--mPollPending == 0) finishPoll();
+            }
+        };
+
+        for (int i = 0; i < mDevices.size(); i++) {
+            if (mDevices.get(i) == null) continue;
+            String address = mDevices.get(i).getAddress();
+            mGattExecutor.enqueue(address, GattOperation.read(DEVICE_INFO_SERVICE, MANUFACTURER_NAME, callback));
+            mGattExecutor.enqueue(address, GattOperation.read(DEVICE_INFO_SERVICE, MODEL_NUMBER, callback));
+            mGattExecutor.enqueue(address, GattOperation.read(DEVICE_INFO_SERVICE, SYSTEM_ID, callback));
+            mGattExecutor.enqueue(address, GattOperation.read(BATTERY_SERVICE, BATTERY_LEVEL, callback));
+            mPollPending += 4;
+        }
+    }
+
+    private void finishPoll() {
+        setProgressBarIndeterminateVisibility(false);
+        GattScheduler scheduler = mGattScheduler;
+        Log.i(TAG, "Poll: " + scheduler.getCompletedCount() + " reads, "
+                + scheduler.getFailedCount() + " failed, " + scheduler.getRetryCount() + " retries, "
+                + scheduler.getTimeoutCount() + " timeouts, " + scheduler.getConnectCount() + " connects, "
+                + scheduler.getMeanLatency() + "ms mean / " + scheduler.getMaxLatency() + "ms max latency, "
+                + scheduler.getMeanQueueWait() + "ms mean wait");
+        Toast.makeText(this, scheduler.getCompletedCount() + " reads, "
+                + scheduler.getFailedCount() + " failed", Toast.LENGTH_SHORT).show();
+    }
+
+    /* Live readings */
+
+    /*
+     * Hold a connection to the device and have it notify each new
+     * temperature, light and humidity value, which update the tracker
+     * just like an advert. The scheduler re-subscribes after a drop.
+     */
+    private void toggleSubscription(BluetoothDevice device) {
+        String address = device.getAddress();
+        if (mGattScheduler.isSubscribed(address)) {
+            mGattExecutor.unsubscribe(address);
+            Toast.makeText(this, "Stopped live readings.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        GattOperation.Callback callback = new GattOperation.Callback() {
+            @Override
+            public void onComplete(String address, GattOperation operation, int status, byte[] value) {
+                if (status != GattScheduler.STATUS_SUCCESS) {
+                    Log.w(TAG, "Subscribe " + address + " " + operation.getCharacteristic()
+                            + " failed: " + status);
+                }
+            }
+        };
+        GattOperation[] operations = ClimateCharacteristics.subscribe(callback);
+        for (int i = 0; i < operations.length; i++) {
+            mGattExecutor.subscribe(address, operations[i]);
+        }
+        Toast.makeText(this, "Live readings on.", Toast.LENGTH_SHORT).show();
+    }
+
+    private AndroidGattExecutor.NotificationListener mNotificationListener =
+            new AndroidGattExecutor.NotificationListener() {
+        @Override
+        public void onNotification(final String address, UUID characteristic, byte[] value) {
+            final int channel = ClimateCharacteristics.getChannel(characteristic);
+            final int raw = ClimateCharacteristics.getRaw(value);
+            if (channel < 0 || raw < 0) return;
+            final long timestamp = System.currentTimeMillis();
+            //The tracker belongs to the main thread
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mTracker.updateReading(address, channel, raw, timestamp)) return;
+                    if (mSelectedDevice != null && address.equals(mSelectedDevice.getAddress())) {
+                        displayBeacon(mTracker.get(address));
+                    }
+                }
+            });
+        }
+    };
+
+    /* Scan recording */
+
+    /*
+     * Start or stop capturing raw adverts to files/scans; replay them on
+     * a desktop with GatewayMain
+     */
+    private void toggleRecording() {
+        ScanRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            //The scan callback may be writing
+            synchronized (recorder) {
+                recorder.close();
+            }
+            Log.i(TAG, "Recorded " + recorder.getRecordedCount() + " adverts, "
+                    + recorder.getByteCount() + " bytes");
+            Toast.makeText(this, "Recording stopped.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        try {
+            mRecorder = ScanRecorder.open(new File(getFilesDir(), "scans"));
+            Toast.makeText(this, "Recording scans.", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Scan recording unavailable", e);
+            Toast.makeText(this, "Can't record scans.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /*
+     * Write the trace rings to files/traces; decode a dump with
+     * TraceLogDecoder
+     */
+    private void dumpTrace() {
+        try {
+            File file = TraceLog.dump(new File(getFilesDir(), "traces"));
+            Log.i(TAG, "Trace written to " + file);
+            Toast.makeText(this, "Trace saved.", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Trace dump failed", e);
+            Toast.makeText(this, "Can't save trace.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /* Data logger download */
+
+    /* Connection attempts per download, counting reconnects to resume one */
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 4;
+
+    private void startDownload(final BluetoothDevice device) {
+        if (mDownload != null) return;
+        stopScan();
+        if (mLoggerLog == null) {
+            try {
+                mLoggerLog = new ReadingLog(new File(getFilesDir(), "logger"));
+            } catch (IOException e) {
+                Log.w(TAG, "Logger records won't be saved", e);
+            }
+        }
+
+        final long address = MacAddress.pack(device.getAddress());
+        mDownload = new LoggerDownloadEngine(new LoggerDownloadEngine.Listener() {
+            @Override
+            public void onRecord(LoggerRecord record) {
+                //Called on the binder thread with a reused record; the log is
+                //only touched on the main thread, which also syncs and closes it
+                final long time = record.getTime();
+                final int rawTemp = record.getRawTemp();
+                final int rawLight = record.getRawLight();
+                final int rawHumidity = record.getRawHumidity();
+                final float temperature = record.getTemperature();
+                final int light = record.getLight();
+                final float humidity = record.getHumidity();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLoggerLog == null) return;
+                        mLoggerLog.append(time, address, WimotoProfile.CLIMATE, 0,
+                                rawTemp, rawLight, rawHumidity, temperature, light, humidity);
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(long records) {
+                mDownloadLink.disconnect();
+                LoggerDownloadEngine engine = mDownload;
+                if (engine != null) {
+                    Log.i(TAG, "Logger download: " + records + " records, "
+                            + engine.getBytesPerNotification() + " bytes per notification at MTU "
+                            + engine.getMtu() + ", " + engine.getResumeCount() + " resumes");
+                }
+                finishDownload(records + " records downloaded");
+            }
+
+            @Override
+            public void onInterrupted(long records) {
+                Log.w(TAG, "Logger download interrupted after " + records + " records");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownload == null) return;
+                        retryDownload(device, "Download interrupted");
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(String reason) {
+                mDownloadLink.disconnect();
+                finishDownload(reason);
+            }
+        });
+        mDownloadAttempts = 0;
+        mProgress.setMessage("Downloading data logger...");
+        mProgress.show();
+        connectDownload(device);
+    }
+
+    private void connectDownload(final BluetoothDevice device) {
+        mDownloadAttempts++;
+        mDownloadLink = new GattLoggerLink(mDownload, mHandler, new GattLoggerLink.ConnectListener() {
+            @Override
+            public void onConnectFailed(final String reason, final boolean retry) {
+                Log.w(TAG, "Logger connection failed: " + reason);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownload == null) return;
+                        if (retry) {
+                            retryDownload(device, reason);
+                        } else {
+                            finishDownload(reason);
+                        }
+                    }
+                });
+            }
+        });
+        if (!mDownloadLink.connect(this, device)) {
+            finishDownload("Can't connect to the data logger");
+        }
+    }
+
+    /*
+     * Reconnect after a failed connect or a dropped link, resuming the
+     * download if it had started, until the attempts run out
+     */
+    private void retryDownload(BluetoothDevice device, String reason) {
+        if (mDownloadAttempts >= MAX_DOWNLOAD_ATTEMPTS) {
+            finishDownload(reason);
+        } else {
+            connectDownload(device);
+        }
+    }
+
+    private void finishDownload(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mDownload = null;
+                if (mLoggerLog != null) mLoggerLog.sync();
+                mProgress.dismiss();
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
     
     
@@ -207,40 +577,68 @@ public class MainActivity extends Activity implements BluetoothAdapter.LeScanCal
      */
 
     @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-    	
+    public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        long start = System.nanoTime();
+        mMetrics.increment(PipelineMetrics.ADVERTS_RECEIVED);
+        ScanRecorder recorder = mRecorder;
+        if (recorder != null) {
+            synchronized (recorder) {
+                recorder.onAdvert(System.currentTimeMillis(), device.getAddress(), device.getName(),
+                        rssi, scanRecord, 0, scanRecord.length);
+            }
+        }
     	
+    	if (mDeduplicator.check(device.getAddress(), rssi, scanRecord)
+    	        == AdvertDeduplicator.RESULT_DUPLICATE) {
+    	    mMetrics.increment(PipelineMetrics.ADVERTS_DUPLICATE);
+    	    mMetrics.record(PipelineMetrics.STAGE_CALLBACK, System.nanoTime() - start);
+    	    return;
+    	}
     	
         /*
-         * Print AD data to log output
+         * Trace the raw AD fields; text is only built when a dump is decoded
          */
-    	
-        Log.i(TAG, "New LE Device: " + device.getName() + " @ " + rssi);
-        /*for (int i = 0; i<scanRecord.length; i++){
-        	Log.i(TAG, i + ":" +  String.format("%02x", scanRecord[i])  );
-        }*/
-        
-        Log.i(TAG, "Temperature: 0x" + String.format("%02x%02x", scanRecord[23],scanRecord[24]));
-        Log.i(TAG, "Light Level: 0x" + String.format("%02x%02x", scanRecord[25],scanRecord[26]));
-        Log.i(TAG, "Humidity: 0x" + String.format("%02x%02x", scanRecord[27],scanRecord[28]));
-        
+        if (TraceLog.isEnabled(TraceLog.LEVEL_INFO) && scanRecord.length >= 29) {
+            TraceLog.event(TraceLog.LEVEL_INFO, TRACE_ADVERT, MacAddress.pack(device.getAddress()),
+                    rssi, readUint16(scanRecord, 23), readUint16(scanRecord, 25),
+                    readUint16(scanRecord, 27));
+        }
+
+        final WimotoClimate beacon = new WimotoClimate(scanRecord, device.getAddress(), device.getName(), rssi);
+        if (!beacon.isDecoded()) {
+            mMetrics.increment(PipelineMetrics.ADVERTS_UNDECODED);
+            mMetrics.record(PipelineMetrics.STAGE_CALLBACK, System.nanoTime() - start);
+            return;
+        }
+        mMetrics.increment(PipelineMetrics.ADVERTS_DECODED);
 
         /*
          * Add BLE device to collection 
-         * Add scan data to collection
+         * Add decoded sensor data to collection
          */
-            mDevices.put(device.hashCode(), device);
-            scanRecords.put(device.hashCode(), scanRecord);
-            //Update the overflow menu
-            invalidateOptionsMenu();
+        final long posted = System.nanoTime();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                mMetrics.record(PipelineMetrics.STAGE_HANDLER, start - posted);
+                int slot = mDeviceSlots.register(device.getAddress());
+                if (slot == DeviceRegistry.NO_SLOT) return;
+                while (mDevices.size() <= slot) mDevices.add(null);
+                mDevices.set(slot, device);
+                mTracker.update(beacon);
+                //Update the overflow menu
+                invalidateOptionsMenu();
+                mMetrics.record(PipelineMetrics.STAGE_UI, System.nanoTime() - start);
+            }
+        });
+        mMetrics.record(PipelineMetrics.STAGE_CALLBACK, posted - start);
                        
             
         
     }
-    
 
-    
-
-
-
-}
\ No newline at end of file
+    private static int readUint16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
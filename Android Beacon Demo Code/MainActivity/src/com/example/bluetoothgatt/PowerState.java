@@ -0,0 +1,35 @@
+package com.example.bluetoothgatt;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * PowerState
+ * Maps the sticky battery broadcast onto the ScanScheduler power states.
+ */
+final class PowerState {
+    /* Below this charge level scanning is throttled */
+    private static final int LOW_PERCENT = 15;
+
+    private PowerState() {
+    }
+
+    static int read(Context context) {
+        //Sticky broadcast, no receiver needed
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return ScanScheduler.POWER_BATTERY;
+
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return ScanScheduler.POWER_PLUGGED;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0 && level * 100 / scale < LOW_PERCENT) {
+            return ScanScheduler.POWER_LOW;
+        }
+        return ScanScheduler.POWER_BATTERY;
+    }
+}